@@ -0,0 +1,224 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+
+import com.github.cjnosal.secret_storage.keymanager.BaseKeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.KeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.KeyWrapperInitializer;
+import com.github.cjnosal.secret_storage.keymanager.ObfuscationKeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.PasswordKeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.UnlockSessionManager;
+import com.github.cjnosal.secret_storage.keymanager.defaults.DefaultSpecs;
+import com.github.cjnosal.secret_storage.metrics.Metrics;
+import com.github.cjnosal.secret_storage.metrics.MetricsRegistry;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SecretStoragePoolTest {
+
+    private Context context;
+    private DataStorage configStorage;
+    private DataStorage keyStorage;
+    private DataStorage dataStorage;
+
+    @Before
+    public void setup() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        configStorage = new PreferenceStorage(context, "testConfig");
+        configStorage.clear();
+        keyStorage = new PreferenceStorage(context, "testKeys");
+        keyStorage.clear();
+        dataStorage = new PreferenceStorage(context, "testData");
+        dataStorage.clear();
+    }
+
+    @Test
+    public void tenantsAreIsolated() throws Exception {
+        SecretStoragePool pool = createPool(4, 4);
+        SecretStorage alice = unlock(pool, "alice");
+        SecretStorage bob = unlock(pool, "bob");
+        alice.store("secret", Encoding.utf8Decode("alice's secret"));
+        bob.store("secret", Encoding.utf8Decode("bob's secret"));
+
+        assertEquals("alice's secret", Encoding.utf8Encode(alice.load("secret")));
+        assertEquals("bob's secret", Encoding.utf8Encode(bob.load("secret")));
+        assertTrue(dataStorage.exists("alice:secret"));
+        assertTrue(configStorage.exists("alice:kek:CONFIG"));
+        assertTrue(keyStorage.exists("bob:dek:DATA_ENCRYPTION_KEY"));
+        assertSame(alice, pool.get("alice"));
+
+        // bob's record can't be moved into alice's scope
+        dataStorage.store("alice:secret", dataStorage.load("bob:secret"));
+        try {
+            alice.load("secret");
+            fail("Expected GeneralSecurityException");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedTenant() throws Exception {
+        SecretStoragePool pool = createPool(2, 2);
+        SecretStorage alice = unlock(pool, "alice");
+        alice.store("secret", Encoding.utf8Decode("alice's secret"));
+        SecretStorage bob = unlock(pool, "bob");
+        pool.get("alice");
+        unlock(pool, "carol");
+
+        assertEquals(2, pool.getOpenTenantCount());
+        assertFalse(bob.getEditor().isUnlocked());
+        assertTrue(alice.getEditor().isUnlocked());
+
+        pool.release("alice");
+        assertFalse(alice.getEditor().isUnlocked());
+        SecretStorage reopened = pool.get("alice");
+        assertFalse(alice == reopened);
+        ((PasswordKeyWrapper.PasswordEditor) reopened.getEditor()).unlock("alice".toCharArray());
+        assertEquals("alice's secret", Encoding.utf8Encode(reopened.load("secret")));
+    }
+
+    @Test
+    public void keyCacheIsBounded() throws Exception {
+        SecretStoragePool pool = createPool(4, 1);
+        SecretStorage alice = unlock(pool, "alice");
+        alice.store("secret", Encoding.utf8Decode("alice's secret"));
+        assertEquals(1, pool.getCachedKeyCount());
+        SecretStorage bob = unlock(pool, "bob");
+        bob.store("secret", Encoding.utf8Decode("bob's secret"));
+        assertEquals(1, pool.getCachedKeyCount());
+
+        // alice's keys were evicted and are unwrapped again
+        assertEquals("alice's secret", Encoding.utf8Encode(alice.load("secret")));
+
+        alice.getEditor().lock();
+        assertEquals(0, pool.getCachedKeyCount());
+        try {
+            alice.load("secret");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void lockAfterRewrapDropsCachedKeys() throws Exception {
+        SecretStoragePool pool = createPool(4, 4);
+        SecretStorage alice = unlock(pool, "alice");
+        alice.store("secret", Encoding.utf8Decode("alice's secret"));
+
+        final DataStorage rewrapConfigStorage = new PreferenceStorage(context, "testRewrapConfig");
+        rewrapConfigStorage.clear();
+        final DataStorage rewrapKeyStorage = new PreferenceStorage(context, "testRewrapKeys");
+        rewrapKeyStorage.clear();
+        alice.rewrap(new KeyWrapperInitializer() {
+            @Override
+            public KeyWrapper initKeyWrapper() throws IOException, GeneralSecurityException {
+                ObfuscationKeyWrapper keyWrapper = new ObfuscationKeyWrapper(
+                        DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                        DefaultSpecs.getAes128KeyGenSpec(),
+                        DefaultSpecs.getAesWrapSpec(),
+                        rewrapConfigStorage,
+                        rewrapKeyStorage);
+                ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+                return keyWrapper;
+            }
+        });
+        assertEquals("alice's secret", Encoding.utf8Encode(alice.load("secret")));
+        assertEquals(1, pool.getCachedKeyCount());
+
+        // locking the replacement KeyWrapper drops the keys cached since the rewrap
+        alice.getEditor().lock();
+        assertEquals(0, pool.getCachedKeyCount());
+        try {
+            alice.load("secret");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void cachedKeysKeepSessionAlive() throws Exception {
+        SecretStoragePool pool = createPool(4, 4);
+        SecretStorage alice = unlock(pool, "alice");
+        alice.store("secret", Encoding.utf8Decode("alice's secret"));
+        BaseKeyWrapper keyWrapper = (BaseKeyWrapper) alice.getKeyWrapper();
+        UnlockSessionManager sessionManager = new UnlockSessionManager(300, 10000, TimeUnit.MILLISECONDS);
+        sessionManager.manage(keyWrapper);
+        MetricsRegistry registry = new MetricsRegistry();
+        Metrics.setRecorder(registry);
+        try {
+            // reads served from the key cache count as uses of the KeyWrapper
+            for (int i = 0; i < 8; ++i) {
+                Thread.sleep(100);
+                assertEquals("alice's secret", Encoding.utf8Encode(alice.load("secret")));
+            }
+            assertTrue(alice.getEditor().isUnlocked());
+            assertTrue(registry.snapshot().getHitRate("data_key") > 0);
+        } finally {
+            Metrics.setRecorder(null);
+            sessionManager.release(keyWrapper);
+        }
+    }
+
+    private SecretStoragePool createPool(int maxOpenTenants, int maxCachedKeys) {
+        return new SecretStoragePool.Builder()
+                .dataStorage(dataStorage)
+                .dataProtectionSpec(DefaultSpecs.getDefaultDataProtectionSpec())
+                .keyWrapperFactory(new SecretStoragePool.KeyWrapperFactory() {
+                    @Override
+                    public KeyWrapper createKeyWrapper(String tenant) {
+                        return new PasswordKeyWrapper(
+                                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                                DefaultSpecs.getAes128KeyGenSpec(),
+                                DefaultSpecs.getAesWrapSpec(),
+                                configStorage,
+                                keyStorage);
+                    }
+                })
+                .maxOpenTenants(maxOpenTenants)
+                .maxCachedKeys(maxCachedKeys)
+                .build();
+    }
+
+    // each tenant's password is its name
+    private SecretStorage unlock(SecretStoragePool pool, String tenant) throws Exception {
+        SecretStorage secretStorage = pool.get(tenant);
+        PasswordKeyWrapper.PasswordEditor editor = secretStorage.getEditor();
+        if (editor.isPasswordSet()) {
+            editor.unlock(tenant.toCharArray());
+        } else {
+            editor.setPassword(tenant.toCharArray());
+        }
+        return secretStorage;
+    }
+}
@@ -31,8 +31,11 @@ import com.github.cjnosal.secret_storage.keymanager.SignedPasswordKeyWrapper;
 import com.github.cjnosal.secret_storage.keymanager.crypto.AndroidCrypto;
 import com.github.cjnosal.secret_storage.keymanager.defaults.DefaultSpecs;
 import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.AlgorithmParameterSpecFactory;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.symmetric.SymmetricCipherStrategy;
+import com.github.cjnosal.secret_storage.keymanager.strategy.integrity.mac.MacStrategy;
 import com.github.cjnosal.secret_storage.storage.DataStorage;
 import com.github.cjnosal.secret_storage.storage.FileStorage;
 import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
@@ -41,18 +44,33 @@ import com.github.cjnosal.secret_storage.storage.ScopedDataStorage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.spec.IvParameterSpec;
 
 import static com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms.IV_SIZE_AES_128;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
 public class SecretStorageTest {
@@ -335,6 +353,438 @@ public class SecretStorageTest {
         }
     }
 
+    @Test
+    public void verifyAll() throws IOException, GeneralSecurityException {
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        secretStorage.store("intact", "message".getBytes());
+        secretStorage.store("corrupt", "message".getBytes());
+        secretStorage.store("truncated", "message".getBytes());
+
+        byte[] corrupt = dataStorage.load("corrupt");
+        corrupt[corrupt.length - 1] = (byte)(corrupt[corrupt.length - 1] ^ 0xFF);
+        dataStorage.store("corrupt", corrupt);
+        byte[] truncated = dataStorage.load("truncated");
+        dataStorage.store("truncated", Arrays.copyOf(truncated, truncated.length / 2));
+        dataStorage.store("moved", dataStorage.load("intact"));
+
+        DataStorage quarantine = new FileStorage(context.getFilesDir() + "/testQuarantine");
+        quarantine.clear();
+        IntegrityReport report = secretStorage.verifyAll(quarantine);
+
+        assertEquals(4, report.getCheckedCount());
+        assertEquals(3, report.getProblems().size());
+        assertEquals(IntegrityReport.Problem.Corrupt, report.getProblems().get("corrupt"));
+        assertEquals(IntegrityReport.Problem.Truncated, report.getProblems().get("truncated"));
+        assertEquals(IntegrityReport.Problem.IdMismatch, report.getProblems().get("moved"));
+        assertEquals(report.getProblems().keySet(), report.getQuarantined());
+        assertEquals(report.getQuarantined(), quarantine.entries());
+        assertEquals(Collections.singleton("intact"), dataStorage.entries());
+        assertTrue(secretStorage.verifyAll().isClean());
+        assertEquals("message", new String(secretStorage.load("intact")));
+    }
+
+    @Test
+    public void verifyAllWithoutDataKeys() throws IOException, GeneralSecurityException {
+        ObfuscationKeyWrapper keyWrapper = getObfuscationKeyWrapper();
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(keyWrapper)
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        secretStorage.store("id", "message".getBytes());
+        keyWrapper.eraseDataKeys();
+
+        DataStorage quarantine = new FileStorage(context.getFilesDir() + "/testQuarantine");
+        quarantine.clear();
+        IntegrityReport report = secretStorage.verifyAll(quarantine);
+
+        assertEquals(1, report.getCheckedCount());
+        assertEquals(IntegrityReport.Problem.Unverifiable, report.getProblems().get("id"));
+        assertTrue(report.getQuarantined().isEmpty());
+        assertTrue(quarantine.entries().isEmpty());
+        assertEquals(Collections.singleton("id"), dataStorage.entries());
+    }
+
+    @Test
+    public void tryLoad() throws IOException, GeneralSecurityException {
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        secretStorage.store("present", "message".getBytes());
+
+        LoadResult present = secretStorage.tryLoad("present");
+        assertTrue(present.isFound());
+        assertEquals("message", new String(present.getValue()));
+
+        LoadResult missing = secretStorage.tryLoad("missing");
+        assertEquals(SecretStorage.NotFound, missing.getResult());
+        assertNull(missing.getValue());
+        assertNull(missing.getError());
+
+        byte[] corrupt = dataStorage.load("present");
+        corrupt[corrupt.length - 1] = (byte)(corrupt[corrupt.length - 1] ^ 0xFF);
+        dataStorage.store("present", corrupt);
+        assertEquals(SecretStorage.SecurityError, secretStorage.tryLoad("present").getResult());
+    }
+
+    @Test
+    public void warmUp() throws Exception {
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getPasswordKeyWrapper())
+                .build();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // before a password is set
+            secretStorage.warmUp(executor).get();
+            secretStorage.<PasswordKeyWrapper.PasswordEditor>getEditor().setPassword("password".toCharArray());
+            secretStorage.store("id", "message".getBytes());
+            secretStorage.<PasswordKeyWrapper.PasswordEditor>getEditor().lock();
+
+            secretStorage.warmUp(executor).get();
+            secretStorage.<PasswordKeyWrapper.PasswordEditor>getEditor().unlock("password".toCharArray());
+            assertEquals("message", new String(secretStorage.load("id")));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void forEachEntry() throws IOException, GeneralSecurityException {
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        for (int i = 0; i < 100; ++i) {
+            secretStorage.store("secret" + i, ("message" + i).getBytes());
+        }
+
+        final Map<String, String> visited = new ConcurrentHashMap<>();
+        int count = secretStorage.forEachEntry(new SecretStorage.EntryVisitor() {
+            @Override
+            public void visit(String id, byte[] plainText) {
+                visited.put(id, new String(plainText));
+            }
+        });
+
+        assertEquals(100, count);
+        assertEquals(100, visited.size());
+        assertEquals("message42", visited.get("secret42"));
+    }
+
+    @Test
+    public void exportAndImport() throws IOException, GeneralSecurityException {
+        SecretStorage source = defaultBuilder()
+                .keyWrapper(getPasswordKeyWrapper())
+                .build();
+        source.<PasswordKeyWrapper.PasswordEditor>getEditor().setPassword("password".toCharArray());
+        for (int i = 0; i < 20; ++i) {
+            source.store("secret" + i, ("message" + i).getBytes());
+        }
+
+        ByteArrayOutputStream rawArchive = new ByteArrayOutputStream();
+        source.exportTo(rawArchive);
+        ArchiveKeys archiveKeys = ArchiveKeys.generate(dataProtectionSpec());
+        ByteArrayOutputStream sealedArchive = new ByteArrayOutputStream();
+        source.exportTo(sealedArchive, archiveKeys);
+
+        for (int i = 0; i < 20; ++i) {
+            source.delete("secret" + i);
+        }
+        assertEquals(20, source.importFrom(new ByteArrayInputStream(rawArchive.toByteArray())));
+        assertEquals("message7", new String(source.load("secret7")));
+
+        // a corrupt length prefix is rejected before anything is allocated for it
+        byte[] corrupt = rawArchive.toByteArray();
+        ByteArrayInputStream header = new ByteArrayInputStream(corrupt);
+        DataInputStream headerStream = new DataInputStream(header);
+        headerStream.readInt();
+        headerStream.readInt();
+        headerStream.readBoolean();
+        headerStream.readUTF();
+        headerStream.readByte();
+        ByteBuffer.wrap(corrupt, corrupt.length - header.available(), 4).putInt(Integer.MAX_VALUE);
+        try {
+            source.importFrom(new ByteArrayInputStream(corrupt));
+            fail("Expected invalid length");
+        } catch (IOException e) {}
+
+        // nothing is imported from an archive that fails the trailing check
+        source.store("secret7", "changed".getBytes());
+        byte[] archive = rawArchive.toByteArray();
+        try {
+            source.importFrom(new ByteArrayInputStream(Arrays.copyOf(archive, archive.length - 8)));
+            fail("Expected truncated archive");
+        } catch (IOException | GeneralSecurityException e) {}
+        assertEquals("changed", new String(source.load("secret7")));
+
+        configStorage = new PreferenceStorage(context, "newDestinationConfigs");
+        keyStorage = new PreferenceStorage(context, "newDestinationKeys");
+        keyStorage.clear();
+        configStorage.clear();
+        DataStorage destinationData = new PreferenceStorage(context, "newDestinationData");
+        destinationData.clear();
+        SecretStorage destination = defaultBuilder()
+                .dataStorage(destinationData)
+                .keyWrapper(getObfuscationKeyWrapper())
+                .build();
+        destination.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+
+        try {
+            destination.importFrom(new ByteArrayInputStream(rawArchive.toByteArray()));
+            fail("Expected signature mismatch");
+        } catch (SignatureException e) {}
+
+        assertEquals(20, destination.importFrom(new ByteArrayInputStream(sealedArchive.toByteArray()), archiveKeys));
+        assertEquals("message19", new String(destination.load("secret19")));
+    }
+
+    @Test
+    public void exportRefusesRecordsTooLargeToImport() throws IOException, GeneralSecurityException {
+        final Map<String, byte[]> records = new HashMap<>();
+        records.put("small", new byte[64]);
+        records.put("large", new byte[65]);
+        SecretArchive archive = new SecretArchive(new SecretArchive.RecordStorage() {
+            @Override
+            public byte[] load(String id) {
+                return records.get(id);
+            }
+
+            @Override
+            public void store(String id, byte[] record) {
+                records.put(id, record);
+            }
+        }, dataProtectionSpec(), new ProtectionStrategy(new SymmetricCipherStrategy(), new MacStrategy()), 2, 64);
+        ArchiveKeys keys = ArchiveKeys.generate(dataProtectionSpec());
+
+        archive.export(new ByteArrayOutputStream(), Collections.singleton("small").iterator(), null, keys.getSigningKey(), null, null);
+        try {
+            archive.export(new ByteArrayOutputStream(), records.keySet().iterator(), null, keys.getSigningKey(), null, null);
+            fail("Expected record too large to archive");
+        } catch (IOException e) {}
+    }
+
+    @Test
+    public void entryKeys() throws IOException, GeneralSecurityException {
+        SecretStorage plain = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .build();
+        plain.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        plain.store("legacy", "old message".getBytes());
+
+        SecretStorage derived = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .deriveEntryKeys(4)
+                .build();
+        derived.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        derived.store("id", "message".getBytes());
+        derived.store("other", "other message".getBytes());
+
+        // both formats are readable either way
+        assertEquals("old message", new String(derived.load("legacy")));
+        assertEquals("message", new String(derived.load("id")));
+        assertEquals("message", new String(plain.load("id")));
+        assertTrue(derived.verifyAll().isClean());
+
+        // each write uses a new salt
+        byte[] first = dataStorage.load("id");
+        derived.store("id", "message".getBytes());
+        assertFalse(Arrays.equals(first, dataStorage.load("id")));
+
+        dataStorage.store("id", dataStorage.load("other"));
+        try {
+            derived.load("id");
+            fail("Expected id mismatch");
+        } catch (ProtectionStrategy.IdMismatchException e) {}
+    }
+
+    @Test
+    public void shredLargeEntries() throws IOException, GeneralSecurityException {
+        DataStorage entryKeyStorage = new PreferenceStorage(context, "testEntryKeys");
+        entryKeyStorage.clear();
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .shredLargeEntries(entryKeyStorage, 64)
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        byte[] large = new byte[1024];
+        new SecureRandom().nextBytes(large);
+        secretStorage.store("small", "message".getBytes());
+        secretStorage.store("large", large);
+
+        assertFalse(entryKeyStorage.exists("small"));
+        assertTrue(entryKeyStorage.exists("large"));
+        assertEquals("message", new String(secretStorage.load("small")));
+        assertTrue(Arrays.equals(large, secretStorage.load("large")));
+
+        // a copy of the record can't be decrypted once its key is gone
+        byte[] record = dataStorage.load("large");
+        secretStorage.delete("large");
+        assertFalse(entryKeyStorage.exists("large"));
+        dataStorage.store("large", record);
+        assertEquals(SecretStorage.NotFound, secretStorage.tryLoad("large").getResult());
+
+        // or once the entry is stored again
+        secretStorage.store("large", large);
+        record = dataStorage.load("large");
+        secretStorage.store("large", large);
+        dataStorage.store("large", record);
+        try {
+            secretStorage.load("large");
+            fail("Expected shredded entry");
+        } catch (ProtectionStrategy.ShreddedEntryException e) {}
+
+        secretStorage.store("large", "message".getBytes());
+        assertFalse(entryKeyStorage.exists("large"));
+        assertEquals("message", new String(secretStorage.load("large")));
+
+        // archives don't carry entry keys, so large entries are exported as ordinary records
+        secretStorage.store("large", large);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        secretStorage.exportTo(archive);
+        secretStorage.delete("large");
+        assertEquals(2, secretStorage.importFrom(new ByteArrayInputStream(archive.toByteArray())));
+        assertTrue(Arrays.equals(large, secretStorage.load("large")));
+    }
+
+    @Test
+    public void packSmallEntries() throws IOException, GeneralSecurityException {
+        DataStorage pageStorage = new PreferenceStorage(context, "testPages");
+        pageStorage.clear();
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .packSmallEntries(pageStorage, 16, 3)
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        for (int i = 0; i < 7; ++i) {
+            secretStorage.store("id" + i, ("value" + i).getBytes());
+        }
+        secretStorage.store("large", "a value too long to pack".getBytes());
+
+        // three pages and the generation marker
+        assertEquals(4, countEntries(pageStorage));
+        assertEquals(1, countEntries(dataStorage));
+        assertEquals("value3", new String(secretStorage.load("id3")));
+        assertTrue(secretStorage.exists("id6"));
+
+        // pages are signed as pages, so a page copied into the data storage doesn't pass as an entry
+        assertTrue(secretStorage.verifyAll().isClean());
+        dataStorage.store("0", pageStorage.load("0"));
+        assertEquals(IntegrityReport.Problem.IdMismatch, secretStorage.verifyAll().getProblems().get("0"));
+        dataStorage.delete("0");
+        // even under the id the page is reported with
+        dataStorage.store("page:0", pageStorage.load("0"));
+        assertEquals(IntegrityReport.Problem.IdMismatch, secretStorage.verifyAll().getProblems().get("page:0"));
+        try {
+            secretStorage.load("page:0");
+            fail("Expected page to be rejected as an entry");
+        } catch (ProtectionStrategy.IdMismatchException e) {}
+        dataStorage.delete("page:0");
+
+        secretStorage.store("id3", "updated".getBytes());
+        secretStorage.delete("id0");
+        assertEquals("updated", new String(secretStorage.load("id3")));
+        assertFalse(secretStorage.exists("id0"));
+        assertEquals(SecretStorage.NotFound, secretStorage.tryLoad("id0").getResult());
+
+        // entries move out of and into pages as their size changes
+        secretStorage.store("id1", "a value too long to pack".getBytes());
+        secretStorage.store("large", "small".getBytes());
+        assertEquals(1, countEntries(dataStorage));
+        assertEquals("a value too long to pack", new String(secretStorage.load("id1")));
+        assertEquals("small", new String(secretStorage.load("large")));
+        assertEquals(7, secretStorage.forEachEntry(new SecretStorage.EntryVisitor() {
+            @Override
+            public void visit(String id, byte[] plainText) {}
+        }));
+
+        // the index is rebuilt from the pages
+        SecretStorage reopened = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .packSmallEntries(pageStorage, 16, 3)
+                .build();
+        reopened.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        assertEquals("value5", new String(reopened.load("id5")));
+        assertTrue(reopened.exists("id2"));
+
+        // instances sharing the pages see each other's writes
+        secretStorage.store("id7", "value7".getBytes());
+        assertEquals("value7", new String(reopened.load("id7")));
+        reopened.delete("id7");
+        assertFalse(secretStorage.exists("id7"));
+
+        // entries stored as their own records don't need the keys to be found or deleted
+        SecretStorage locked = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .packSmallEntries(pageStorage, 16, 3)
+                .build();
+        assertTrue(locked.exists("id1"));
+        assertFalse(locked.exists("id2"));
+        locked.delete("id1");
+        assertFalse(locked.exists("id1"));
+    }
+
+    @Test
+    public void fieldRecords() throws IOException, GeneralSecurityException {
+        DataStorage recordStorage = new PreferenceStorage(context, "testRecords");
+        recordStorage.clear();
+        SecretStorage secretStorage = defaultBuilder()
+                .keyWrapper(getObfuscationKeyWrapper())
+                .fieldRecords(recordStorage)
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        byte[] photo = new byte[16384];
+        new SecureRandom().nextBytes(photo);
+        Map<String, byte[]> fields = new HashMap<>();
+        fields.put("name", "Alice".getBytes());
+        fields.put("photo", photo);
+        secretStorage.storeRecord("profile", fields);
+
+        assertTrue(secretStorage.recordExists("profile"));
+        assertFalse(secretStorage.exists("profile"));
+        assertEquals("Alice", new String(secretStorage.loadField("profile", "name")));
+        assertTrue(Arrays.equals(photo, secretStorage.loadField("profile", "photo")));
+        assertNull(secretStorage.loadField("profile", "email"));
+        assertEquals(2, secretStorage.loadRecord("profile").size());
+
+        // fields of a previous version can't be spliced into the current one
+        byte[] previous = recordStorage.load("profile");
+        fields.put("name", "Carol".getBytes());
+        secretStorage.storeRecord("profile", fields);
+        byte[] current = recordStorage.load("profile");
+        byte[] spliced = Arrays.copyOf(current, current.length);
+        System.arraycopy(previous, previous.length - 64, spliced, spliced.length - 64, 64);
+        recordStorage.store("profile", spliced);
+        try {
+            secretStorage.loadField("profile", "photo");
+            fail("Expected spliced field to be rejected");
+        } catch (IOException | GeneralSecurityException e) {}
+
+        recordStorage.store("profile", current);
+        assertEquals("Carol", new String(secretStorage.loadField("profile", "name")));
+        assertTrue(secretStorage.verifyAll().isClean());
+
+        // nor does a record copied into the data storage pass as an entry
+        dataStorage.store("profile", current);
+        assertEquals(IntegrityReport.Problem.Corrupt, secretStorage.verifyAll().getProblems().get("profile"));
+        dataStorage.delete("profile");
+
+        secretStorage.deleteRecord("profile");
+        assertFalse(secretStorage.recordExists("profile"));
+    }
+
+    private int countEntries(DataStorage storage) {
+        int count = 0;
+        Iterator<String> entries = storage.iterateEntries();
+        while (entries.hasNext()) {
+            entries.next();
+            ++count;
+        }
+        return count;
+    }
+
     @Test
     public void encryptWithExternalStorage() throws GeneralSecurityException, IOException {
         SecretStorage noDataStorage = new SecretStorage.Builder()
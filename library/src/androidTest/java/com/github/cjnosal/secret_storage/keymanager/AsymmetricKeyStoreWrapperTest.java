@@ -30,6 +30,9 @@ import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
@@ -82,7 +85,7 @@ public class AsymmetricKeyStoreWrapperTest {
         subject.storeDataEncryptionKey(enc);
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertTrue(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
 
         subject.storeDataSigningKey(sig);
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
@@ -115,7 +118,7 @@ public class AsymmetricKeyStoreWrapperTest {
 
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertFalse(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertFalse(subject.hasConfig("INTERMEDIATE_KEK"));
         assertFalse(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
     }
 
@@ -128,7 +131,7 @@ public class AsymmetricKeyStoreWrapperTest {
 
         assertFalse(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertFalse(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
         assertTrue(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
     }
 
@@ -141,4 +144,38 @@ public class AsymmetricKeyStoreWrapperTest {
         assertTrue(subject.dataKeysExist());
     }
 
+    @Test
+    public void pregenerateKeyPair() throws Exception {
+        subject.getEditor().eraseConfig();
+        assertFalse(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
+
+        subject = new AsymmetricKeyStoreWrapper(
+                context,
+                DefaultSpecs.getAesWrapSpec(),
+                DefaultSpecs.getAes256KeyGenSpec(),
+                DefaultSpecs.getRsaEcbPkcs1Spec(),
+                DefaultSpecs.getRsa2048KeyGenSpec(),
+                configStorage,
+                keyStorage
+        );
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        subject.pregenerateKeyPair(executor).get();
+        executor.shutdown();
+        assertTrue(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
+
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        subject.storeDataEncryptionKey(enc);
+
+        subject = new AsymmetricKeyStoreWrapper(
+                context,
+                DefaultSpecs.getAesWrapSpec(),
+                DefaultSpecs.getAes256KeyGenSpec(),
+                DefaultSpecs.getRsaEcbPkcs1Spec(),
+                DefaultSpecs.getRsa2048KeyGenSpec(),
+                configStorage,
+                keyStorage
+        );
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
 }
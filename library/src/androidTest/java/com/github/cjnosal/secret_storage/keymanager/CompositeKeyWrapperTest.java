@@ -27,6 +27,7 @@ import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -35,7 +36,9 @@ import javax.crypto.SecretKey;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class CompositeKeyWrapperTest {
 
@@ -43,6 +46,7 @@ public class CompositeKeyWrapperTest {
     private DataStorage configStorage;
     private DataStorage keyStorage;
     private CompositeKeyWrapper subject;
+    private List<KeyWrapper> keyWrappers;
     private KeyGenerator keyGenerator;
     private SecretKey enc;
     private SecretKey sig;
@@ -55,22 +59,7 @@ public class CompositeKeyWrapperTest {
         keyStorage = new PreferenceStorage(context, "testKeys");
         keyStorage.clear();
 
-        List<KeyWrapper> keyWrappers = Arrays.<KeyWrapper>asList(
-                new PasswordKeyWrapper(
-                        DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
-                        DefaultSpecs.getAes128KeyGenSpec(),
-                        DefaultSpecs.getAesWrapSpec(),
-                        configStorage,
-                        keyStorage
-                ),
-                new PasswordKeyWrapper(
-                        DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
-                        DefaultSpecs.getAes128KeyGenSpec(),
-                        DefaultSpecs.getAesWrapSpec(),
-                        configStorage,
-                        keyStorage
-                )
-        );
+        keyWrappers = Arrays.<KeyWrapper>asList(createPasswordKeyWrapper(), createPasswordKeyWrapper());
 
         subject = new CompositeKeyWrapper(keyWrappers);
         getFirstEditor().setPassword("password1".toCharArray());
@@ -82,6 +71,20 @@ public class CompositeKeyWrapperTest {
         sig = keyGenerator.generateKey();
     }
 
+    private PasswordKeyWrapper createPasswordKeyWrapper() {
+        return new PasswordKeyWrapper(
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        );
+    }
+
+    private boolean hasConfig(int index, String field) {
+        return ((BaseKeyWrapper) keyWrappers.get(index)).hasConfig(field);
+    }
+
     private PasswordKeyWrapper.PasswordEditor getFirstEditor() {
         return (PasswordKeyWrapper.PasswordEditor) ((CompositeKeyWrapper.CompositeEditor)subject.getEditor()).getEditor(0);
     }
@@ -94,16 +97,16 @@ public class CompositeKeyWrapperTest {
     public void storeAndLoad() throws Exception {
         subject.storeDataEncryptionKey(enc);
         assertTrue(keyStorage.exists("shared:DATA_ENCRYPTION_KEY"));
-        assertTrue(configStorage.exists("kek0:INTERMEDIATE_KEK"));
-        assertTrue(configStorage.exists("kek1:INTERMEDIATE_KEK"));
+        assertTrue(hasConfig(0, "INTERMEDIATE_KEK"));
+        assertTrue(hasConfig(1, "INTERMEDIATE_KEK"));
 
         subject.storeDataSigningKey(sig);
         assertTrue(keyStorage.exists("shared:DATA_SIGNING_KEY"));
 
-        assertTrue(configStorage.exists("kek0:ENC_SALT"));
-        assertTrue(configStorage.exists("kek0:VERIFICATION"));
-        assertTrue(configStorage.exists("kek1:ENC_SALT"));
-        assertTrue(configStorage.exists("kek1:VERIFICATION"));
+        assertTrue(hasConfig(0, "ENC_SALT"));
+        assertTrue(hasConfig(0, "VERIFICATION"));
+        assertTrue(hasConfig(1, "ENC_SALT"));
+        assertTrue(hasConfig(1, "VERIFICATION"));
 
         getFirstEditor().lock();
 
@@ -132,12 +135,12 @@ public class CompositeKeyWrapperTest {
 
         assertTrue(keyStorage.exists("shared:DATA_ENCRYPTION_KEY"));
         assertTrue(keyStorage.exists("shared:DATA_SIGNING_KEY"));
-        assertFalse(configStorage.exists("kek0:INTERMEDIATE_KEK"));
-        assertFalse(configStorage.exists("kek1:INTERMEDIATE_KEK"));
-        assertFalse(configStorage.exists("kek0:ENC_SALT"));
-        assertFalse(configStorage.exists("kek0:VERIFICATION"));
-        assertFalse(configStorage.exists("kek1:ENC_SALT"));
-        assertFalse(configStorage.exists("kek1:VERIFICATION"));
+        assertFalse(hasConfig(0, "INTERMEDIATE_KEK"));
+        assertFalse(hasConfig(1, "INTERMEDIATE_KEK"));
+        assertFalse(hasConfig(0, "ENC_SALT"));
+        assertFalse(hasConfig(0, "VERIFICATION"));
+        assertFalse(hasConfig(1, "ENC_SALT"));
+        assertFalse(hasConfig(1, "VERIFICATION"));
     }
 
     @Test
@@ -149,12 +152,12 @@ public class CompositeKeyWrapperTest {
 
         assertFalse(keyStorage.exists("shared:DATA_ENCRYPTION_KEY"));
         assertFalse(keyStorage.exists("shared:DATA_SIGNING_KEY"));
-        assertTrue(configStorage.exists("kek0:INTERMEDIATE_KEK"));
-        assertTrue(configStorage.exists("kek1:INTERMEDIATE_KEK"));
-        assertTrue(configStorage.exists("kek0:ENC_SALT"));
-        assertTrue(configStorage.exists("kek0:VERIFICATION"));
-        assertTrue(configStorage.exists("kek1:ENC_SALT"));
-        assertTrue(configStorage.exists("kek1:VERIFICATION"));
+        assertTrue(hasConfig(0, "INTERMEDIATE_KEK"));
+        assertTrue(hasConfig(1, "INTERMEDIATE_KEK"));
+        assertTrue(hasConfig(0, "ENC_SALT"));
+        assertTrue(hasConfig(0, "VERIFICATION"));
+        assertTrue(hasConfig(1, "ENC_SALT"));
+        assertTrue(hasConfig(1, "VERIFICATION"));
     }
 
     @Test
@@ -215,4 +218,53 @@ public class CompositeKeyWrapperTest {
         getSecondEditor().lock();
     }
 
+    @Test
+    public void unlockTracking() throws Exception {
+        subject.storeDataEncryptionKey(enc);
+        assertSame(subject.getEditor(), subject.getEditor());
+
+        getFirstEditor().lock();
+        assertTrue(subject.getEditor().isUnlocked());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+
+        getSecondEditor().lock();
+        assertFalse(subject.getEditor().isUnlocked());
+        try {
+            subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES);
+            fail("Expected GeneralSecurityException");
+        } catch (GeneralSecurityException expected) {
+        }
+
+        getSecondEditor().unlock("password2".toCharArray());
+        assertTrue(subject.getEditor().isUnlocked());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
+
+    @Test
+    public void lockBeforeUnlockEvent() throws Exception {
+        subject.storeDataEncryptionKey(enc);
+        subject.getEditor().lock();
+
+        List<KeyWrapper> wrappers = Arrays.<KeyWrapper>asList(createPasswordKeyWrapper(), createPasswordKeyWrapper());
+        // locks the first wrapper before the composite hears of its unlock, as a concurrent lock() could
+        ((BaseKeyWrapper) wrappers.get(0)).addLockListener(new KeyWrapper.LockListener() {
+            @Override
+            public void onUnlock(KeyWrapper keyWrapper) {
+                ((BaseKeyWrapper) keyWrapper).lock();
+            }
+
+            @Override
+            public void onLock(KeyWrapper keyWrapper) {
+            }
+        });
+        CompositeKeyWrapper composite = new CompositeKeyWrapper(wrappers);
+        CompositeKeyWrapper.CompositeEditor editor = (CompositeKeyWrapper.CompositeEditor) composite.getEditor();
+
+        editor.<PasswordKeyWrapper.PasswordEditor>getEditor(0).unlock("password1".toCharArray());
+        assertFalse(editor.isUnlocked());
+
+        editor.<PasswordKeyWrapper.PasswordEditor>getEditor(1).unlock("password2".toCharArray());
+        assertTrue(editor.isUnlocked());
+        assertEquals(enc, composite.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
 }
@@ -108,7 +108,7 @@ public class KeyStoreWrapperTest {
 
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertFalse(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertFalse(subject.hasConfig("INTERMEDIATE_KEK"));
         assertFalse(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
     }
 
@@ -121,7 +121,7 @@ public class KeyStoreWrapperTest {
 
         assertFalse(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertFalse(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
         assertTrue(androidCrypto.hasEntry("kek:ROOT_ENCRYPTION_KEY"));
     }
 
@@ -69,13 +69,13 @@ public class ObfuscationKeyWrapperTest {
 
         subject.storeDataEncryptionKey(enc);
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
 
         subject.storeDataSigningKey(sig);
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
 
-        assertTrue(configStorage.exists("kek:ENC_SALT"));
-        assertTrue(configStorage.exists("kek:VERIFICATION"));
+        assertTrue(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("VERIFICATION"));
 
         subject = new ObfuscationKeyWrapper(
                 DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
@@ -94,6 +94,70 @@ public class ObfuscationKeyWrapperTest {
         assertEquals(sig, unwrappedSig);
     }
 
+    @Test
+    public void fastUnlock() throws Exception {
+        configStorage.clear();
+        keyStorage.clear();
+        subject = getFastUnlockWrapper();
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(SecurityAlgorithms.KeyGenerator_AES);
+        keyGenerator.init(SecurityAlgorithms.KEY_SIZE_AES_256);
+        SecretKey enc = keyGenerator.generateKey();
+        subject.storeDataEncryptionKey(enc);
+
+        assertTrue(subject.hasConfig("OBFUSCATION_SEED"));
+        assertFalse(subject.hasConfig("ENC_SALT"));
+
+        subject = getFastUnlockWrapper();
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
+
+    @Test
+    public void migrateToFastUnlock() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(SecurityAlgorithms.KeyGenerator_AES);
+        keyGenerator.init(SecurityAlgorithms.KEY_SIZE_AES_256);
+        SecretKey enc = keyGenerator.generateKey();
+        subject.storeDataEncryptionKey(enc);
+        assertTrue(subject.hasConfig("ENC_SALT"));
+
+        subject = getFastUnlockWrapper();
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+        assertFalse(subject.hasConfig("ENC_SALT"));
+        assertFalse(subject.hasConfig("VERIFICATION"));
+        assertTrue(subject.hasConfig("OBFUSCATION_SEED"));
+
+        subject = getFastUnlockWrapper();
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
+
+    @Test
+    public void passwordModeAfterFastUnlock() throws Exception {
+        configStorage.clear();
+        keyStorage.clear();
+        subject = getFastUnlockWrapper();
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(SecurityAlgorithms.KeyGenerator_AES);
+        keyGenerator.init(SecurityAlgorithms.KEY_SIZE_AES_256);
+        SecretKey enc = keyGenerator.generateKey();
+        subject.storeDataEncryptionKey(enc);
+
+        // e.g. an app rolled back to a version without fastUnlock
+        subject = new ObfuscationKeyWrapper(
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        );
+        ((BaseKeyWrapper.NoParamsEditor) subject.getEditor()).unlock();
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+        assertFalse(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("OBFUSCATION_SEED"));
+    }
+
     @Test
     public void eraseConfig() throws Exception {
         KeyGenerator keyGenerator = KeyGenerator.getInstance(SecurityAlgorithms.KeyGenerator_AES);
@@ -106,9 +170,9 @@ public class ObfuscationKeyWrapperTest {
 
         subject.getEditor().eraseConfig();
 
-        assertFalse(configStorage.exists("kek:ENC_SALT"));
-        assertFalse(configStorage.exists("kek:VERIFICATION"));
-        assertFalse(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertFalse(subject.hasConfig("ENC_SALT"));
+        assertFalse(subject.hasConfig("VERIFICATION"));
+        assertFalse(subject.hasConfig("INTERMEDIATE_KEK"));
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
     }
@@ -127,9 +191,9 @@ public class ObfuscationKeyWrapperTest {
 
         assertFalse(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertFalse(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertTrue(configStorage.exists("kek:ENC_SALT"));
-        assertTrue(configStorage.exists("kek:VERIFICATION"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("VERIFICATION"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
     }
 
     @Test
@@ -144,4 +208,15 @@ public class ObfuscationKeyWrapperTest {
         subject.storeDataSigningKey(sig);
         assertTrue(subject.dataKeysExist());
     }
+
+    private ObfuscationKeyWrapper getFastUnlockWrapper() {
+        return new ObfuscationKeyWrapper(
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage,
+                true
+        );
+    }
 }
@@ -27,6 +27,17 @@ import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
@@ -73,13 +84,13 @@ public class PasswordKeyWrapperTest {
 
         subject.storeDataEncryptionKey(enc);
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
 
         subject.storeDataSigningKey(sig);
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
 
-        assertTrue(configStorage.exists("kek:ENC_SALT"));
-        assertTrue(configStorage.exists("kek:VERIFICATION"));
+        assertTrue(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("VERIFICATION"));
 
         subject = new PasswordKeyWrapper(
                 DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
@@ -106,9 +117,9 @@ public class PasswordKeyWrapperTest {
 
         subject.getEditor().eraseConfig();
 
-        assertFalse(configStorage.exists("kek:ENC_SALT"));
-        assertFalse(configStorage.exists("kek:VERIFICATION"));
-        assertFalse(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertFalse(subject.hasConfig("ENC_SALT"));
+        assertFalse(subject.hasConfig("VERIFICATION"));
+        assertFalse(subject.hasConfig("INTERMEDIATE_KEK"));
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
     }
@@ -124,9 +135,9 @@ public class PasswordKeyWrapperTest {
 
         assertFalse(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertFalse(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertTrue(configStorage.exists("kek:ENC_SALT"));
-        assertTrue(configStorage.exists("kek:VERIFICATION"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("VERIFICATION"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
     }
 
     @Test
@@ -233,5 +244,149 @@ public class PasswordKeyWrapperTest {
         assertTrue(editor.verifyPassword("password2".toCharArray()));
     }
 
+    @Test
+    public void calibratedRounds() throws Exception {
+        subject = new PasswordKeyWrapper(
+                DefaultSpecs.getCalibratedPBKDF2WithHmacSHA1(100),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        );
+        final PasswordKeyWrapper.PasswordEditor editor = (PasswordKeyWrapper.PasswordEditor) subject.getEditor();
+
+        editor.setPassword("password".toCharArray());
+        assertTrue(subject.hasConfig("ROUNDS"));
+        assertTrue(subject.getRounds() >= 1000);
+        subject.storeDataEncryptionKey(enc);
+
+        editor.lock();
+        editor.unlock("password".toCharArray());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+
+        editor.changePassword("password".toCharArray(), "password2".toCharArray());
+        assertTrue(subject.hasConfig("ROUNDS"));
+        editor.lock();
+        editor.unlock("password2".toCharArray());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
+
+    @Test
+    public void argon2id() throws Exception {
+        subject = new PasswordKeyWrapper(
+                DefaultSpecs.get3PassArgon2id(1024, 2),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        );
+        final PasswordKeyWrapper.PasswordEditor editor = (PasswordKeyWrapper.PasswordEditor) subject.getEditor();
+
+        editor.setPassword("password".toCharArray());
+        subject.storeDataEncryptionKey(enc);
+        editor.lock();
 
+        try {
+            editor.unlock("wrong".toCharArray());
+            fail("Expected wrong password");
+        } catch (PasswordKeyWrapper.WrongPasswordException expected) {}
+
+        editor.unlock("password".toCharArray());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
+
+    @Test
+    public void migrateLegacyConfig() throws Exception {
+        subject.setPassword("password".toCharArray());
+        subject.storeDataEncryptionKey(enc);
+
+        // split the record into the separate entries written by earlier versions
+        KeyWrapperConfig config = subject.loadConfig();
+        for (String field : subject.getConfigFields()) {
+            byte[] value = config.get(field);
+            if (value != null) {
+                configStorage.store("kek:" + field, value);
+            }
+        }
+        configStorage.delete("kek:CONFIG");
+
+        subject = new PasswordKeyWrapper(
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        );
+        ((PasswordKeyWrapper.PasswordEditor) subject.getEditor()).unlock("password".toCharArray());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+        assertTrue(configStorage.exists("kek:CONFIG"));
+        assertFalse(configStorage.exists("kek:ENC_SALT"));
+        assertFalse(configStorage.exists("kek:INTERMEDIATE_KEK"));
+    }
+
+    @Test
+    public void concurrentUnlocksShareDerivation() throws Exception {
+        subject.setPassword("password".toCharArray());
+
+        final AtomicInteger derivations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        subject = new PasswordKeyWrapper(
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        ) {
+            @Override
+            byte[] derive(char[] password, byte[] salt, int rounds, Future<?> prefetched) throws GeneralSecurityException, IOException {
+                derivations.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.derive(password, salt, rounds, prefetched);
+            }
+        };
+        final PasswordKeyWrapper.PasswordEditor editor = (PasswordKeyWrapper.PasswordEditor) subject.getEditor();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<char[]> passwords = new ArrayList<>();
+        List<Future<Void>> unlocks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final char[] password = "password".toCharArray();
+            passwords.add(password);
+            unlocks.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    editor.unlock(password);
+                    return null;
+                }
+            }));
+        }
+
+        // an unlock that joins the one in flight clears its password straight away
+        long deadline = System.currentTimeMillis() + 10000;
+        while (countCleared(passwords) < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Future<Void> unlock : unlocks) {
+            unlock.get();
+        }
+        executor.shutdown();
+
+        assertEquals(1, derivations.get());
+        assertTrue(editor.isUnlocked());
+    }
+
+    private int countCleared(List<char[]> passwords) {
+        int cleared = 0;
+        for (char[] password : passwords) {
+            if (new String(password).trim().isEmpty()) {
+                cleared++;
+            }
+        }
+        return cleared;
+    }
 }
@@ -24,12 +24,17 @@ import android.support.test.filters.SdkSuppress;
 import com.github.cjnosal.secret_storage.keymanager.crypto.AndroidCrypto;
 import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
 import com.github.cjnosal.secret_storage.keymanager.defaults.DefaultSpecs;
+import com.github.cjnosal.secret_storage.keymanager.strategy.integrity.IntegritySpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyPairGenSpec;
 import com.github.cjnosal.secret_storage.storage.DataStorage;
 import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
@@ -83,14 +88,14 @@ public class SignedPasswordKeyWrapperTest {
 
         subject.storeDataEncryptionKey(enc);
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
         assertTrue(androidCrypto.hasEntry("kek:DEVICE_BINDING"));
 
         subject.storeDataSigningKey(sig);
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
 
-        assertTrue(configStorage.exists("kek:ENC_SALT"));
-        assertTrue(configStorage.exists("kek:VERIFICATION"));
+        assertTrue(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("VERIFICATION"));
 
         subject = new SignedPasswordKeyWrapper(
                 context,
@@ -122,9 +127,9 @@ public class SignedPasswordKeyWrapperTest {
 
         assertTrue(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertTrue(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertFalse(configStorage.exists("kek:ENC_SALT"));
-        assertFalse(configStorage.exists("kek:VERIFICATION"));
-        assertFalse(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertFalse(subject.hasConfig("ENC_SALT"));
+        assertFalse(subject.hasConfig("VERIFICATION"));
+        assertFalse(subject.hasConfig("INTERMEDIATE_KEK"));
         assertFalse(androidCrypto.hasEntry("kek:DEVICE_BINDING"));
     }
 
@@ -139,9 +144,9 @@ public class SignedPasswordKeyWrapperTest {
 
         assertFalse(keyStorage.exists("dek:DATA_ENCRYPTION_KEY"));
         assertFalse(keyStorage.exists("dek:DATA_SIGNING_KEY"));
-        assertTrue(configStorage.exists("kek:ENC_SALT"));
-        assertTrue(configStorage.exists("kek:VERIFICATION"));
-        assertTrue(configStorage.exists("kek:INTERMEDIATE_KEK"));
+        assertTrue(subject.hasConfig("ENC_SALT"));
+        assertTrue(subject.hasConfig("VERIFICATION"));
+        assertTrue(subject.hasConfig("INTERMEDIATE_KEK"));
         assertTrue(androidCrypto.hasEntry("kek:DEVICE_BINDING"));
     }
 
@@ -249,5 +254,44 @@ public class SignedPasswordKeyWrapperTest {
         assertTrue(editor.verifyPassword("password2".toCharArray()));
     }
 
+    @Test
+    public void pregenerateKeyPair() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        subject.pregenerateKeyPair(executor).get();
+        executor.shutdown();
+        assertTrue(androidCrypto.hasEntry("kek:DEVICE_BINDING"));
+
+        subject.setPassword("password".toCharArray());
+        subject.storeDataEncryptionKey(enc);
+
+        subject = createSubject(DefaultSpecs.getSha256WithRsaSpec(), DefaultSpecs.getRsa2048KeyGenSpec());
+        ((PasswordKeyWrapper.PasswordEditor) subject.getEditor()).unlock("password".toCharArray());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
+
+    @Test
+    @SdkSuppress(minSdkVersion = Build.VERSION_CODES.KITKAT)
+    public void ecDeviceBinding() throws Exception {
+        subject = createSubject(DefaultSpecs.getSha256WithEcdsaSpec(), DefaultSpecs.getEc256KeyGenSpec());
+        subject.setPassword("password".toCharArray());
+        subject.storeDataEncryptionKey(enc);
+        assertEquals(SecurityAlgorithms.KeyPairGenerator_EC, androidCrypto.loadPublicKey("kek:DEVICE_BINDING").getAlgorithm());
+
+        subject = createSubject(DefaultSpecs.getSha256WithEcdsaSpec(), DefaultSpecs.getEc256KeyGenSpec());
+        ((PasswordKeyWrapper.PasswordEditor) subject.getEditor()).unlock("password".toCharArray());
+        assertEquals(enc, subject.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES));
+    }
 
+    private SignedPasswordKeyWrapper createSubject(IntegritySpec derivationIntegritySpec, KeyPairGenSpec integrityKeyGenSpec) {
+        return new SignedPasswordKeyWrapper(
+                context,
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                derivationIntegritySpec,
+                DefaultSpecs.getAesWrapSpec(),
+                integrityKeyGenSpec,
+                configStorage,
+                keyStorage
+        );
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
+import com.github.cjnosal.secret_storage.keymanager.defaults.DefaultSpecs;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UnlockSessionManagerTest {
+
+    private ObfuscationKeyWrapper keyWrapper;
+    private UnlockSessionManager subject;
+    private CountDownLatch locked;
+
+    @Before
+    public void setup() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DataStorage configStorage = new PreferenceStorage(context, "testConfig");
+        configStorage.clear();
+        DataStorage keyStorage = new PreferenceStorage(context, "testKeys");
+        keyStorage.clear();
+
+        keyWrapper = new ObfuscationKeyWrapper(
+                DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes128KeyGenSpec(),
+                DefaultSpecs.getAesWrapSpec(),
+                configStorage,
+                keyStorage
+        );
+        locked = new CountDownLatch(1);
+        keyWrapper.addLockListener(new KeyWrapper.LockListener() {
+            @Override
+            public void onUnlock(KeyWrapper keyWrapper) {
+            }
+
+            @Override
+            public void onLock(KeyWrapper keyWrapper) {
+                locked.countDown();
+            }
+        });
+        subject = new UnlockSessionManager(200, 1000, TimeUnit.MILLISECONDS);
+        subject.manage(keyWrapper);
+    }
+
+    @After
+    public void teardown() {
+        subject.release(keyWrapper);
+    }
+
+    @Test
+    public void idleTimeout() throws Exception {
+        ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+        assertTrue(keyWrapper.getEditor().isUnlocked());
+
+        assertTrue(locked.await(2, TimeUnit.SECONDS));
+        assertFalse(keyWrapper.getEditor().isUnlocked());
+    }
+
+    @Test
+    public void maxUnlockDuration() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(SecurityAlgorithms.KeyGenerator_AES);
+        keyGenerator.init(SecurityAlgorithms.KEY_SIZE_AES_128);
+        ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+        keyWrapper.storeDataEncryptionKey(keyGenerator.generateKey());
+
+        // using the keys more often than the idle timeout doesn't extend the session past the maximum
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                keyWrapper.loadDataEncryptionKey(SecurityAlgorithms.KeyGenerator_AES);
+                Thread.sleep(50);
+            }
+        } catch (IllegalStateException e) {
+            // locked
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis >= 900);
+        assertTrue(locked.await(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void expiryCheckKeepsNewUnlock() throws Exception {
+        subject.release(keyWrapper);
+        long managedAt = System.nanoTime();
+        ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+        Thread.sleep(600);
+
+        // unlocked again after the first window expired, before the check ran
+        keyWrapper.lock();
+        ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+        long nanos = TimeUnit.MILLISECONDS.toNanos(500);
+        assertTrue(keyWrapper.lockIfExpired(managedAt, nanos, nanos) > 0);
+        assertTrue(keyWrapper.getEditor().isUnlocked());
+
+        Thread.sleep(600);
+        assertEquals(0, keyWrapper.lockIfExpired(managedAt, nanos, nanos));
+        assertFalse(keyWrapper.getEditor().isUnlocked());
+    }
+
+    @Test
+    public void release() throws Exception {
+        subject.release(keyWrapper);
+        ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+
+        assertFalse(locked.await(400, TimeUnit.MILLISECONDS));
+        assertTrue(keyWrapper.getEditor().isUnlocked());
+    }
+
+    @Test
+    public void manageTwice() throws Exception {
+        try {
+            subject.manage(keyWrapper);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        // the first session is still the one release stops
+        subject.release(keyWrapper);
+        ((BaseKeyWrapper.NoParamsEditor) keyWrapper.getEditor()).unlock();
+        assertFalse(locked.await(400, TimeUnit.MILLISECONDS));
+        assertTrue(keyWrapper.getEditor().isUnlocked());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class KeyStoreSessionTest {
+
+    private File file;
+    private CountingBackend backend;
+    private KeyStoreSession subject;
+    private SecretKey key;
+
+    @Before
+    public void setup() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        file = new File(context.getCacheDir(), "test.bks");
+        file.delete();
+        backend = new CountingBackend(new FileKeyStoreBackend(file, "BKS", "password".toCharArray()));
+        subject = new KeyStoreSession(backend);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        key = generator.generateKey();
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void cachesEntries() throws Exception {
+        subject.setEntry("a", new KeyStore.SecretKeyEntry(key), null);
+
+        for (int i = 0; i < 5; ++i) {
+            KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry) subject.getEntry("a");
+            assertTrue(Arrays.equals(key.getEncoded(), entry.getSecretKey().getEncoded()));
+        }
+        assertTrue(subject.containsAlias("a"));
+        assertNull(subject.getEntry("b"));
+        assertEquals(1, backend.loads);
+    }
+
+    @Test
+    public void deleteEntriesSavesOnce() throws Exception {
+        subject.setEntry("a", new KeyStore.SecretKeyEntry(key), null);
+        subject.setEntry("b", new KeyStore.SecretKeyEntry(key), null);
+        subject.setEntry("c", new KeyStore.SecretKeyEntry(key), null);
+        backend.saves = 0;
+
+        subject.deleteEntries(Arrays.asList("a", "b"));
+        assertEquals(1, backend.saves);
+        assertFalse(subject.containsAlias("a"));
+        assertTrue(subject.containsAlias("c"));
+
+        subject.clear();
+        assertEquals(2, backend.saves);
+        assertTrue(subject.aliases().isEmpty());
+    }
+
+    @Test
+    public void persistsAcrossSessions() throws Exception {
+        subject.setEntry("a", new KeyStore.SecretKeyEntry(key), null);
+
+        KeyStoreSession other = new KeyStoreSession(new FileKeyStoreBackend(file, "BKS", "password".toCharArray()));
+        KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry) other.getEntry("a");
+        assertTrue(Arrays.equals(key.getEncoded(), entry.getSecretKey().getEncoded()));
+    }
+
+    private static class CountingBackend implements KeyStoreBackend {
+        private final KeyStoreBackend backend;
+        int loads;
+        int saves;
+
+        CountingBackend(KeyStoreBackend backend) {
+            this.backend = backend;
+        }
+
+        @Override
+        public KeyStore load() throws GeneralSecurityException, IOException {
+            loads++;
+            return backend.load();
+        }
+
+        @Override
+        public void save(KeyStore keyStore) throws GeneralSecurityException, IOException {
+            saves++;
+            backend.save(keyStore);
+        }
+
+        @Nullable
+        @Override
+        public KeyStore.ProtectionParameter getProtection() {
+            return backend.getProtection();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+
+public class RandomSourceTest {
+
+    @Test
+    public void instancePerThread() throws InterruptedException {
+        final AtomicReference<SecureRandom> other = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other.set(RandomSource.get());
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertSame(RandomSource.get(), RandomSource.get());
+        assertNotSame(RandomSource.get(), other.get());
+    }
+
+    @Test
+    public void nextBytes() {
+        byte[] first = RandomSource.nextBytes(32);
+        byte[] second = RandomSource.nextBytes(32);
+        assertEquals(32, first.length);
+        assertFalse(Arrays.equals(first, second));
+    }
+}
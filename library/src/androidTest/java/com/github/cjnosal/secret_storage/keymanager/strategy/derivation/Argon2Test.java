@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import org.junit.Test;
+
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.fail;
+
+public class Argon2Test {
+
+    @Test
+    public void rfc9106() throws Exception {
+        byte[] tag = new Argon2().derive(fill(32, 1), fill(16, 2), fill(8, 3), fill(12, 4), 3, 32, 4, 32);
+        assertEquals("0D640DF58D78766C08C037A34A8B53C9D01EF0452D75B65EB52520E96B01E659", Encoding.hexEncode(tag));
+    }
+
+    @Test
+    public void lanesChangeOutput() throws Exception {
+        byte[] salt = fill(16, 2);
+        byte[] oneLane = new Argon2().derive("password".toCharArray(), salt, 1, 64, 1, 256);
+        byte[] twoLanes = new Argon2().derive("password".toCharArray(), salt, 1, 64, 2, 256);
+        assertEquals(32, oneLane.length);
+        assertFalse(Arrays.equals(oneLane, twoLanes));
+    }
+
+    @Test
+    public void invalidParameters() throws Exception {
+        try {
+            new Argon2().derive("password".toCharArray(), fill(4, 2), 1, 64, 1, 256);
+            fail("Expected short salt to be rejected");
+        } catch (InvalidKeySpecException expected) {}
+        try {
+            new Argon2().derive("password".toCharArray(), fill(16, 2), 1, 8, 2, 256);
+            fail("Expected less than 8 blocks per lane to be rejected");
+        } catch (InvalidKeySpecException expected) {}
+    }
+
+    private byte[] fill(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
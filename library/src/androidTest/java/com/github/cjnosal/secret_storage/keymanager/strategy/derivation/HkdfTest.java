@@ -0,0 +1,46 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+
+public class HkdfTest {
+
+    // RFC 5869 A.1
+    @Test
+    public void sha256() throws Exception {
+        byte[] inputKey = new byte[22];
+        Arrays.fill(inputKey, (byte) 0x0b);
+        byte[] derived = Hkdf.deriveSha256(inputKey, Encoding.hexDecode("000102030405060708090A0B0C"), Encoding.hexDecode("F0F1F2F3F4F5F6F7F8F9"), 42);
+        assertEquals("3CB25F25FAACD57A90434F64D0362F2A2D2D0A90CF1A5A4C5DB02D56ECC4C5BF34007208D5B887185865", Encoding.hexEncode(derived));
+    }
+
+    // RFC 5869 A.3
+    @Test
+    public void emptySaltAndInfo() throws Exception {
+        byte[] inputKey = new byte[22];
+        Arrays.fill(inputKey, (byte) 0x0b);
+        byte[] derived = Hkdf.deriveSha256(inputKey, new byte[0], new byte[0], 42);
+        assertEquals("8DA4E775A563C18F715F802A063C5A31B8A11F5C5EE1879EC3454E5F3C738D2D9D201395FAA4B61A96C8", Encoding.hexEncode(derived));
+    }
+}
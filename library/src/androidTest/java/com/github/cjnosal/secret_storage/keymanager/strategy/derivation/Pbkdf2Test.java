@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import org.junit.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class Pbkdf2Test {
+
+    @Test
+    public void sha256() throws Exception {
+        byte[] derived = Pbkdf2.getInstance(Pbkdf2.HMAC_SHA256).derive("password".toCharArray(), Encoding.utf8Decode("salt"), 4096, 320);
+        assertEquals("C5E478D59288C841AA530DB6845C4C8D962893A001CE4E11A4963873AA98134AF7AD98C1B458CE3F", Encoding.hexEncode(derived));
+    }
+
+    @Test
+    public void sha512() throws Exception {
+        byte[] derived = Pbkdf2.getInstance(Pbkdf2.HMAC_SHA512).derive("password".toCharArray(), Encoding.utf8Decode("salt"), 4096, 512);
+        assertEquals("D197B1B33DB0143E018B12F3D1D1479E6CDEBDCC97C5C0F87F6902E072F457B5143F30602641B3D55CD335988CB36B84376060ECD532E039B742A239434AF2D5", Encoding.hexEncode(derived));
+    }
+
+    @Test
+    public void longPassword() throws Exception {
+        // longer than the HMAC block, so the key is hashed first
+        char[] password = new char[200];
+        Arrays.fill(password, 'p');
+        byte[] salt = Encoding.utf8Decode("salt");
+        byte[] derived = Pbkdf2.getInstance(Pbkdf2.HMAC_SHA256).derive(password, salt, 10, 256);
+
+        // platform PBKDF2WithHmacSHA256 is only available from API 26
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            byte[] expected = factory.generateSecret(new PBEKeySpec(password, salt, 10, 256)).getEncoded();
+            assertTrue(Arrays.equals(expected, derived));
+        } catch (NoSuchAlgorithmException e) {
+            assertEquals(32, derived.length);
+        }
+    }
+
+    @Test
+    public void strategyFallsBackToSecretKeyFactory() throws Exception {
+        assertNull(Pbkdf2.getInstance("PBKDF2WithHmacSHA1"));
+        KeyDerivationStrategy strategy = new KeyDerivationStrategy();
+        byte[] derived = strategy.derive(new KeyDerivationSpec(2, "PBKDF2WithHmacSHA1"), "password".toCharArray(), Encoding.utf8Decode("salt"), 2, 160);
+        assertEquals("EA6C014DC72D6F8CCD1ED92ACE1D41F0D8DE8957", Encoding.hexEncode(derived));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.metrics;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+
+import com.github.cjnosal.secret_storage.storage.InstrumentedDataStorage;
+import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    private MetricsRegistry registry;
+
+    @Before
+    public void setup() {
+        registry = new MetricsRegistry();
+        Metrics.setRecorder(registry);
+    }
+
+    @After
+    public void teardown() {
+        Metrics.setRecorder(null);
+    }
+
+    @Test
+    public void counters() {
+        Metrics.count("counter", 2);
+        Metrics.count("counter", 3);
+        assertEquals(5, registry.snapshot().getCounter("counter"));
+        assertEquals(0, registry.snapshot().getCounter("missing"));
+    }
+
+    @Test
+    public void histogram() {
+        registry.recordNanos("latency", 100);
+        registry.recordNanos("latency", 1000);
+        registry.recordNanos("latency", 10000);
+
+        HistogramSnapshot histogram = registry.snapshot().getHistogram("latency");
+        assertEquals(3, histogram.getCount());
+        assertEquals(11100, histogram.getTotalNanos());
+        assertEquals(10000, histogram.getMaxNanos());
+        assertEquals(1023, histogram.getPercentileNanos(50));
+        assertEquals(10000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void hitRate() {
+        Metrics.cacheHit("cache");
+        Metrics.cacheHit("cache");
+        Metrics.cacheHit("cache");
+        Metrics.cacheMiss("cache");
+        assertEquals(0.75, registry.snapshot().getHitRate("cache"));
+    }
+
+    @Test
+    public void instrumentedStorage() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentedDataStorage storage = new InstrumentedDataStorage("prefs", new PreferenceStorage(context, "testMetrics"));
+        storage.clear();
+        storage.store("storedKey", "storedValue".getBytes());
+        storage.load("storedKey");
+        assertTrue(storage.exists("storedKey"));
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals(1, snapshot.getHistogram("storage.prefs.store").getCount());
+        assertEquals(1, snapshot.getHistogram("storage.prefs.load").getCount());
+        assertEquals(1, snapshot.getHistogram("storage.prefs.exists").getCount());
+        assertEquals(11, snapshot.getCounter("storage.prefs.bytes_written"));
+        assertEquals(11, snapshot.getCounter("storage.prefs.bytes_read"));
+    }
+
+    @Test
+    public void disabled() {
+        Metrics.setRecorder(null);
+        Metrics.count("counter", 1);
+        Metrics.stop("latency", Metrics.start());
+        assertTrue(registry.snapshot().getCounters().isEmpty());
+        assertNull(registry.snapshot().getHistogram("latency"));
+    }
+}
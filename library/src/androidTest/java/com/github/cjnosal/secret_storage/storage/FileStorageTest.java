@@ -24,11 +24,18 @@ import org.junit.Test;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 public class FileStorageTest {
 
@@ -47,6 +54,13 @@ public class FileStorageTest {
         assertEquals("storedValue", new String(subject.load("storedKey")));
     }
 
+    @Test
+    public void loadIfPresent() throws IOException {
+        assertNull(subject.loadIfPresent("storedKey"));
+        subject.store("storedKey", "storedValue".getBytes());
+        assertEquals("storedValue", new String(subject.loadIfPresent("storedKey")));
+    }
+
     @Test
     public void writeAndRead() throws IOException {
         OutputStream os = subject.write("streamedKey");
@@ -98,4 +112,60 @@ public class FileStorageTest {
         assertTrue(entries.contains("storedKey"));
         assertTrue(entries.contains("streamedKey"));
     }
+
+    @Test
+    public void iterateEntries() throws IOException {
+        subject.store("storedKey", "storedValue".getBytes());
+        subject.store("nested/storedKey", "nestedValue".getBytes());
+
+        Set<String> entries = new HashSet<>();
+        Iterator<String> iterator = subject.iterateEntries();
+        while (iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        assertEquals(2, entries.size());
+        assertTrue(entries.contains("storedKey"));
+        assertTrue(entries.contains("nested/storedKey"));
+    }
+
+    @Test
+    public void concurrentStores() throws Exception {
+        final byte[][] values = {"first".getBytes(), "second".getBytes()};
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[values.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final byte[] value = values[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; ++j) {
+                            subject.store("storedKey", value);
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        String stored = new String(subject.load("storedKey"));
+        assertTrue(stored.equals("first") || stored.equals("second"));
+        // no temporary files are left behind
+        assertEquals(1, subject.directory.list().length);
+    }
+
+    @Test
+    public void reservedIds() throws IOException {
+        try {
+            subject.store(".tmp-storedKey", "storedValue".getBytes());
+            fail("Expected reserved id to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
 }
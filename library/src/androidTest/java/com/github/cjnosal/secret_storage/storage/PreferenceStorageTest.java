@@ -28,6 +28,7 @@ import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
 public class PreferenceStorageTest {
@@ -47,6 +48,13 @@ public class PreferenceStorageTest {
         assertEquals("storedValue", new String(subject.load("storedKey")));
     }
 
+    @Test
+    public void loadIfPresent() throws IOException {
+        assertNull(subject.loadIfPresent("storedKey"));
+        subject.store("storedKey", "storedValue".getBytes());
+        assertEquals("storedValue", new String(subject.loadIfPresent("storedKey")));
+    }
+
     @Test
     public void writeAndRead() throws IOException {
         OutputStream os = subject.write("streamedKey");
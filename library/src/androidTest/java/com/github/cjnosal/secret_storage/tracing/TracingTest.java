@@ -0,0 +1,148 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.tracing;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+
+import com.github.cjnosal.secret_storage.SecretStorage;
+import com.github.cjnosal.secret_storage.keymanager.BaseKeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.ObfuscationKeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.defaults.DefaultSpecs;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.PreferenceStorage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class TracingTest {
+
+    private final List<RecordedSpan> ended = new ArrayList<>();
+    private SecretStorage secretStorage;
+
+    @Before
+    public void setup() throws IOException, GeneralSecurityException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        DataStorage configStorage = new PreferenceStorage(context, "testTracingConfig");
+        DataStorage keyStorage = new PreferenceStorage(context, "testTracingKeys");
+        DataStorage dataStorage = new PreferenceStorage(context, "testTracingData");
+        configStorage.clear();
+        keyStorage.clear();
+        dataStorage.clear();
+        secretStorage = new SecretStorage.Builder()
+                .dataStorage(dataStorage)
+                .keyWrapper(new ObfuscationKeyWrapper(
+                        DefaultSpecs.get4096RoundPBKDF2WithHmacSHA1(),
+                        DefaultSpecs.getAes128KeyGenSpec(),
+                        DefaultSpecs.getAesWrapSpec(),
+                        configStorage,
+                        keyStorage))
+                .dataProtectionSpec(DefaultSpecs.getDefaultDataProtectionSpec())
+                .build();
+        secretStorage.<BaseKeyWrapper.NoParamsEditor>getEditor().unlock();
+        secretStorage.store("mySecret", "message".getBytes());
+    }
+
+    @After
+    public void teardown() {
+        Tracing.setTracer(null);
+    }
+
+    @Test
+    public void noTracer() {
+        assertFalse(Tracing.isEnabled());
+        assertSame(Span.NONE, Tracing.begin("span", "id"));
+    }
+
+    @Test
+    public void jfrUnavailableOnAndroid() {
+        assertNull(JfrTracer.create());
+    }
+
+    @Test
+    public void nestedSpans() throws IOException, GeneralSecurityException {
+        Tracing.setTracer(new RecordingTracer());
+        secretStorage.load("mySecret");
+
+        RecordedSpan load = ended.get(ended.size() - 1);
+        assertEquals("secret_storage.load", load.name);
+        assertEquals(0, load.depth);
+        assertFalse("mySecret".equals(load.attributes.get(Tracing.ATTRIBUTE_ID)));
+
+        boolean decrypted = false;
+        for (RecordedSpan span : ended) {
+            if (span.name.equals("protection.verify_and_decrypt")) {
+                decrypted = true;
+                assertEquals(1, span.depth);
+                assertEquals(load.attributes.get(Tracing.ATTRIBUTE_ID), span.attributes.get(Tracing.ATTRIBUTE_ID));
+            }
+        }
+        assertTrue(decrypted);
+    }
+
+    private class RecordingTracer implements Tracer {
+        private int depth = 0;
+
+        @Override
+        public Span beginSpan(String name) {
+            return new RecordedSpan(name, depth++) {
+                @Override
+                public void end() {
+                    RecordingTracer.this.depth--;
+                    ended.add(this);
+                }
+            };
+        }
+    }
+
+    private abstract static class RecordedSpan implements Span {
+        final String name;
+        final int depth;
+        final Map<String, Object> attributes = new HashMap<>();
+
+        RecordedSpan(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+
+        @Override
+        public Span setAttribute(String key, String value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Span setAttribute(String key, long value) {
+            attributes.put(key, value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import com.github.cjnosal.secret_storage.annotations.KeyPurpose;
+import com.github.cjnosal.secret_storage.keymanager.data.DataKeyGenerator;
+import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Keys used to re-encrypt entries exported by {@link SecretStorage#exportTo(java.io.OutputStream, ArchiveKeys)}.
+ * The caller is responsible for protecting the keys while the archive is in transit.
+ */
+public class ArchiveKeys {
+    private final DataProtectionSpec dataProtectionSpec;
+    private final @KeyPurpose.DataSecrecy SecretKey encryptionKey;
+    private final @KeyPurpose.DataIntegrity SecretKey signingKey;
+
+    public ArchiveKeys(DataProtectionSpec dataProtectionSpec, @KeyPurpose.DataSecrecy SecretKey encryptionKey, @KeyPurpose.DataIntegrity SecretKey signingKey) {
+        this.dataProtectionSpec = dataProtectionSpec;
+        this.encryptionKey = encryptionKey;
+        this.signingKey = signingKey;
+    }
+
+    public static ArchiveKeys generate(DataProtectionSpec dataProtectionSpec) throws GeneralSecurityException {
+        DataKeyGenerator generator = new DataKeyGenerator();
+        return new ArchiveKeys(
+                dataProtectionSpec,
+                generator.generateDataKey(dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm(), dataProtectionSpec.getCipherKeyGenSpec().getKeySize()),
+                generator.generateDataKey(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm(), dataProtectionSpec.getIntegrityKeyGenSpec().getKeySize()));
+    }
+
+    public DataProtectionSpec getDataProtectionSpec() {
+        return dataProtectionSpec;
+    }
+
+    public @KeyPurpose.DataSecrecy SecretKey getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    public @KeyPurpose.DataIntegrity SecretKey getSigningKey() {
+        return signingKey;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.metrics.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Unwrapped data keys of pooled SecretStorages, bounded across all tenants. The least recently used tenant's keys are
+ * evicted first, and a tenant's keys are dropped when its KeyWrapper locks.
+ */
+class DataKeyCache {
+
+    static final int ENCRYPTION_KEY = 0;
+    static final int SIGNING_KEY = 1;
+
+    private static final String CACHE_NAME = "data_key";
+
+    private final Map<String, SecretKey[]> keys;
+    // changes on every invalidation, so a key loaded before a lock isn't cached after it
+    private long stamp;
+
+    DataKeyCache(final int maxTenants) {
+        if (maxTenants <= 0) {
+            throw new IllegalArgumentException("maxTenants must be positive");
+        }
+        keys = new LinkedHashMap<String, SecretKey[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey[]> eldest) {
+                return size() > maxTenants;
+            }
+        };
+    }
+
+    synchronized long getStamp() {
+        return stamp;
+    }
+
+    synchronized @Nullable SecretKey get(String tenant, int purpose) {
+        SecretKey[] tenantKeys = keys.get(tenant);
+        SecretKey key = tenantKeys != null ? tenantKeys[purpose] : null;
+        if (key != null) {
+            Metrics.cacheHit(CACHE_NAME);
+        } else {
+            Metrics.cacheMiss(CACHE_NAME);
+        }
+        return key;
+    }
+
+    // ignored if the cache was invalidated since the stamp was read
+    synchronized void put(String tenant, int purpose, SecretKey key, long expectedStamp) {
+        if (expectedStamp != stamp) {
+            return;
+        }
+        SecretKey[] tenantKeys = keys.get(tenant);
+        if (tenantKeys == null) {
+            tenantKeys = new SecretKey[2];
+            keys.put(tenant, tenantKeys);
+        }
+        tenantKeys[purpose] = key;
+    }
+
+    synchronized void invalidate(String tenant) {
+        stamp++;
+        keys.remove(tenant);
+    }
+
+    synchronized void invalidateAll() {
+        stamp++;
+        keys.clear();
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
+import com.github.cjnosal.secret_storage.keymanager.data.DataKeyGenerator;
+import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
+import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyGenSpec;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keys of large entries, each wrapped by the data encryption key. Deleting the small wrapped key makes the entry
+ * unrecoverable however large its record is, and storing an entry again replaces its old key.
+ *
+ * A record refers to its key by a hash of the wrapped key, so a record whose key was replaced, or restored without its
+ * key, can't be decrypted with another one. Keys are stored under the entry id and their reference, and the references
+ * of an entry's keys are stored under its id. A new key is added before its record is stored and the old keys are only
+ * deleted once it has been, so a failed store leaves the previous value readable.
+ */
+class EntryKeyTable {
+
+    private final DataStorage keyStorage;
+    private final int minEntrySize;
+    private final DataKeyGenerator dataKeyGenerator;
+    private final DataProtectionSpec dataProtectionSpec;
+    private final ProtectionStrategy protectionStrategy;
+
+    EntryKeyTable(DataStorage keyStorage, int minEntrySize, DataKeyGenerator dataKeyGenerator, DataProtectionSpec dataProtectionSpec, ProtectionStrategy protectionStrategy) {
+        this.keyStorage = keyStorage;
+        this.minEntrySize = minEntrySize;
+        this.dataKeyGenerator = dataKeyGenerator;
+        this.dataProtectionSpec = dataProtectionSpec;
+        this.protectionStrategy = protectionStrategy;
+    }
+
+    boolean appliesTo(byte[] plainText) {
+        return plainText.length >= minEntrySize;
+    }
+
+    // encrypt with a new entry key and store the record in dataStorage, replacing the entry's previous key once it has been
+    void store(DataStorage dataStorage, String id, Key dataEncryptionKey, Key dataSigningKey, byte[] plainText) throws GeneralSecurityException, IOException {
+        KeyGenSpec keyGenSpec = dataProtectionSpec.getCipherKeyGenSpec();
+        SecretKey entryKey = dataKeyGenerator.generateDataKey(keyGenSpec.getKeygenAlgorithm(), keyGenSpec.getKeySize());
+        byte[] entryKeyBytes = entryKey.getEncoded();
+        byte[] wrappedKey;
+        try {
+            wrappedKey = protectionStrategy.getCipherStrategy().encrypt(dataEncryptionKey, dataProtectionSpec.getCipherSpec(), entryKeyBytes);
+        } finally {
+            Arrays.fill(entryKeyBytes, (byte) 0);
+        }
+        byte[] reference = getReference(wrappedKey);
+        byte[] record = protectionStrategy.encryptAndSignWithEntryKey(id, entryKey, reference, dataSigningKey, dataProtectionSpec, plainText);
+        byte[] previousReferences = getReferences(id);
+        keyStorage.store(getKeyId(id, reference), wrappedKey);
+        // listed before the record is stored, so a key left behind by a failed store is deleted with the others
+        keyStorage.store(id, concat(previousReferences, reference));
+        dataStorage.store(id, record);
+        deleteKeys(id, previousReferences);
+        keyStorage.store(id, reference);
+    }
+
+    ProtectionStrategy.EntryKeyResolver getResolver(final Key dataEncryptionKey) {
+        return new ProtectionStrategy.EntryKeyResolver() {
+            @Override
+            public Key resolveEntryKey(String id, byte[] keyReference) throws GeneralSecurityException, IOException {
+                byte[] wrappedKey = keyStorage.loadIfPresent(getKeyId(id, keyReference));
+                if (wrappedKey == null || !MessageDigest.isEqual(keyReference, getReference(wrappedKey))) {
+                    throw new ProtectionStrategy.ShreddedEntryException("Entry key of " + id + " was deleted or replaced");
+                }
+                byte[] entryKeyBytes = protectionStrategy.getCipherStrategy().decrypt(dataEncryptionKey, dataProtectionSpec.getCipherSpec(), wrappedKey);
+                try {
+                    return new SecretKeySpec(entryKeyBytes, dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm());
+                } finally {
+                    Arrays.fill(entryKeyBytes, (byte) 0);
+                }
+            }
+        };
+    }
+
+    // destroy the entry's keys, if it has any
+    void shred(String id) throws IOException {
+        if (keyStorage.exists(id)) {
+            deleteKeys(id, getReferences(id));
+            keyStorage.delete(id);
+        }
+    }
+
+    void clear() throws IOException {
+        keyStorage.clear();
+    }
+
+    private byte[] getReferences(String id) throws IOException {
+        byte[] references = keyStorage.loadIfPresent(id);
+        if (references == null) {
+            return new byte[0];
+        }
+        if (references.length % ProtectionStrategy.KEY_REFERENCE_LENGTH != 0) {
+            throw new IOException("Invalid key references of " + id);
+        }
+        return references;
+    }
+
+    private void deleteKeys(String id, byte[] references) throws IOException {
+        for (int i = 0; i < references.length; i += ProtectionStrategy.KEY_REFERENCE_LENGTH) {
+            String keyId = getKeyId(id, Arrays.copyOfRange(references, i, i + ProtectionStrategy.KEY_REFERENCE_LENGTH));
+            if (keyStorage.exists(keyId)) {
+                keyStorage.delete(keyId);
+            }
+        }
+    }
+
+    private static String getKeyId(String id, byte[] reference) {
+        return id + "#" + Encoding.hexEncode(reference);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    private static byte[] getReference(byte[] wrappedKey) throws GeneralSecurityException {
+        byte[] hash = MessageDigest.getInstance(SecurityAlgorithms.MessageDigest_SHA_256).digest(wrappedKey);
+        return Arrays.copyOf(hash, ProtectionStrategy.KEY_REFERENCE_LENGTH);
+    }
+}
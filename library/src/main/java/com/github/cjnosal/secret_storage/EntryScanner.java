@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a task for each id of a lazy entry iterator on a fixed pool of workers.
+ *
+ * Ids are handed out in small batches as they are read, with at most {@code 2 * parallelism} batches in flight,
+ * so the ids never have to be collected up front.
+ */
+class EntryScanner {
+
+    interface Task {
+        void run(String id) throws GeneralSecurityException, IOException;
+    }
+
+    private final int parallelism;
+    private final int batchSize;
+
+    EntryScanner(int parallelism, int batchSize) {
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+    }
+
+    // returns the number of ids passed to the task
+    int scan(Iterator<String> ids, final Task task) throws GeneralSecurityException, IOException {
+        int count = 0;
+        if (!ids.hasNext()) {
+            return count;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Deque<Future<Void>> pending = new ArrayDeque<>();
+        try {
+            while (ids.hasNext()) {
+                final List<String> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && ids.hasNext()) {
+                    batch.add(ids.next());
+                }
+                count += batch.size();
+                if (pending.size() >= parallelism * 2) {
+                    await(pending.poll());
+                }
+                pending.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws GeneralSecurityException, IOException {
+                        for (String id : batch) {
+                            task.run(id);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                await(pending.poll());
+            }
+        } finally {
+            cancel(pending);
+            executor.shutdownNow();
+        }
+        return count;
+    }
+
+    static <T> T await(Future<T> future) throws GeneralSecurityException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for workers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    static void cancel(Deque<? extends Future<?>> pending) {
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.github.cjnosal.secret_storage;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
+import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+import com.github.cjnosal.secret_storage.storage.util.ByteArrayUtil;
+import com.github.cjnosal.secret_storage.storage.util.DataStreamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records of named fields, each encrypted and signed on its own within one stored entry. The entry starts with a
+ * directory of field names and their offsets, itself encrypted and signed as a record bound to the entry id, so reading
+ * a field only verifies and decrypts the directory and that field.
+ *
+ * Fields are bound to their name and to a nonce generated for each version of the record, which is kept in the
+ * directory, so they can't be swapped between fields, records or versions of the same record.
+ */
+class FieldRecords {
+
+    // the directory is signed with the record id and fields with a field id, both internal ids, so neither can pass as
+    // an entry or page
+    static final String RECORD_PREFIX = "record:";
+    private static final String FIELD_PREFIX = "field:";
+    private static final int VERSION = 1;
+    private static final int NONCE_LENGTH = 16;
+    private static final int LENGTH_SIZE = Integer.SIZE / Byte.SIZE;
+
+    private final DataStorage recordStorage;
+    private final DataProtectionSpec dataProtectionSpec;
+    private final ProtectionStrategy protectionStrategy;
+    private final DataStreamUtil dataStreamUtil = new DataStreamUtil();
+
+    FieldRecords(DataStorage recordStorage, DataProtectionSpec dataProtectionSpec, ProtectionStrategy protectionStrategy) {
+        this.recordStorage = recordStorage;
+        this.dataProtectionSpec = dataProtectionSpec;
+        this.protectionStrategy = protectionStrategy.forInternalRecords();
+    }
+
+    void store(String id, Map<String, byte[]> fields, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        byte[] nonce = RandomSource.nextBytes(NONCE_LENGTH);
+        ByteArrayOutputStream sealedFields = new ByteArrayOutputStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(buffer);
+        directory.writeInt(VERSION);
+        dataStreamUtil.writeByteArray(nonce, directory);
+        directory.writeInt(fields.size());
+        // sorted so the layout doesn't depend on the map implementation
+        for (Map.Entry<String, byte[]> field : new TreeMap<>(fields).entrySet()) {
+            byte[] sealedField = protectionStrategy.encryptAndSign(getFieldId(nonce, field.getKey()), dataEncryptionKey, dataSigningKey, dataProtectionSpec, field.getValue());
+            dataStreamUtil.writeByteArray(Encoding.utf8Decode(field.getKey()), directory);
+            directory.writeInt(sealedFields.size());
+            directory.writeInt(sealedField.length);
+            sealedFields.write(sealedField);
+        }
+        directory.flush();
+        byte[] plainText = buffer.toByteArray();
+        try {
+            byte[] sealedDirectory = protectionStrategy.encryptAndSign(RECORD_PREFIX + id, dataEncryptionKey, dataSigningKey, dataProtectionSpec, plainText);
+            recordStorage.store(id, ByteArrayUtil.join(sealedDirectory, sealedFields.toByteArray()));
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+    }
+
+    // null if the record has no such field
+    @Nullable byte[] loadField(String id, String field, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        byte[] entry = recordStorage.load(id);
+        Directory directory = readDirectory(id, entry, dataEncryptionKey, dataSigningKey);
+        if (!directory.slots.containsKey(field)) {
+            return null;
+        }
+        return openField(directory, field, entry, dataEncryptionKey, dataSigningKey);
+    }
+
+    Map<String, byte[]> loadRecord(String id, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        byte[] entry = recordStorage.load(id);
+        Directory directory = readDirectory(id, entry, dataEncryptionKey, dataSigningKey);
+        Map<String, byte[]> fields = new HashMap<>();
+        for (String field : directory.slots.keySet()) {
+            fields.put(field, openField(directory, field, entry, dataEncryptionKey, dataSigningKey));
+        }
+        return fields;
+    }
+
+    Iterator<String> iterateRecords() {
+        return recordStorage.iterateEntries();
+    }
+
+    byte[] loadEntry(String id) throws IOException {
+        return recordStorage.load(id);
+    }
+
+    // check the directory and the signature of every field, decrypting only the directory
+    void verify(String id, byte[] entry, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        Directory directory = readDirectory(id, entry, dataEncryptionKey, dataSigningKey);
+        for (Map.Entry<String, int[]> slot : directory.slots.entrySet()) {
+            int start = directory.fieldsOffset + slot.getValue()[0];
+            byte[] sealedField = Arrays.copyOfRange(entry, start, start + slot.getValue()[1]);
+            protectionStrategy.verify(getFieldId(directory.nonce, slot.getKey()), dataSigningKey, dataProtectionSpec, sealedField);
+        }
+    }
+
+    boolean exists(String id) {
+        return recordStorage.exists(id);
+    }
+
+    void delete(String id) throws IOException {
+        recordStorage.delete(id);
+    }
+
+    void clear() throws IOException {
+        recordStorage.clear();
+    }
+
+    // the entry is laid out as ByteArrayUtil.join(directory, fields), but only the directory is copied out of it
+    private Directory readDirectory(String id, byte[] entry, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        if (entry.length < LENGTH_SIZE * 2) {
+            throw truncated(id);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(entry);
+        int directoryLength = buffer.getInt();
+        if (directoryLength < 0 || directoryLength > buffer.remaining() - LENGTH_SIZE) {
+            throw truncated(id);
+        }
+        byte[] sealedDirectory = Arrays.copyOfRange(entry, LENGTH_SIZE, LENGTH_SIZE + directoryLength);
+        buffer.position(LENGTH_SIZE + directoryLength);
+        int fieldsLength = buffer.getInt();
+        if (fieldsLength != buffer.remaining()) {
+            throw truncated(id);
+        }
+
+        byte[] plainText = protectionStrategy.verifyAndDecrypt(RECORD_PREFIX + id, dataEncryptionKey, dataSigningKey, dataProtectionSpec, sealedDirectory);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plainText));
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported record version " + version);
+            }
+            Directory directory = new Directory(dataStreamUtil.readByteArray(in), buffer.position());
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String field = Encoding.utf8Encode(dataStreamUtil.readByteArray(in));
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (offset < 0 || length < 0 || offset > fieldsLength - length) {
+                    throw truncated(id);
+                }
+                directory.slots.put(field, new int[] {offset, length});
+            }
+            return directory;
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+    }
+
+    private byte[] openField(Directory directory, String field, byte[] entry, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        int[] slot = directory.slots.get(field);
+        int start = directory.fieldsOffset + slot[0];
+        byte[] sealedField = Arrays.copyOfRange(entry, start, start + slot[1]);
+        return protectionStrategy.verifyAndDecrypt(getFieldId(directory.nonce, field), dataEncryptionKey, dataSigningKey, dataProtectionSpec, sealedField);
+    }
+
+    private static String getFieldId(byte[] nonce, String field) {
+        return FIELD_PREFIX + Encoding.hexEncode(nonce) + ":" + field;
+    }
+
+    private static ProtectionStrategy.TruncatedRecordException truncated(String id) {
+        return new ProtectionStrategy.TruncatedRecordException("Record " + id + " is truncated or has invalid offsets");
+    }
+
+    private static class Directory {
+        private final byte[] nonce;
+        // start of the sealed fields within the entry
+        private final int fieldsOffset;
+        // field name to offset and length of the sealed field
+        private final Map<String, int[]> slots = new LinkedHashMap<>();
+
+        private Directory(byte[] nonce, int fieldsOffset) {
+            this.nonce = nonce;
+            this.fieldsOffset = fieldsOffset;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of {@link SecretStorage#verifyAll()}: the entries whose signature, framing or id check failed
+ */
+public class IntegrityReport {
+
+    public enum Problem {
+        Truncated,    // length prefixes don't match the stored bytes (e.g. a torn write)
+        Corrupt,      // signature check failed
+        IdMismatch,   // signed id doesn't match the id the record is stored under
+        Unreadable,   // storage failed to return the record
+        Unverifiable; // no data signing key exists to check the record with
+
+        // only records proven bad are moved out; unreadable or unverifiable ones may still be intact
+        boolean isQuarantinable() {
+            return this != Unreadable && this != Unverifiable;
+        }
+    }
+
+    private final int checkedCount;
+    private final Map<String, Problem> problems;
+    private final Set<String> quarantined;
+
+    IntegrityReport(int checkedCount, Map<String, Problem> problems, Set<String> quarantined) {
+        this.checkedCount = checkedCount;
+        this.problems = Collections.unmodifiableMap(new HashMap<>(problems));
+        this.quarantined = Collections.unmodifiableSet(new HashSet<>(quarantined));
+    }
+
+    public int getCheckedCount() {
+        return checkedCount;
+    }
+
+    public Map<String, Problem> getProblems() {
+        return problems;
+    }
+
+    // entries moved to the quarantine storage and removed from the SecretStorage
+    public Set<String> getQuarantined() {
+        return quarantined;
+    }
+
+    public boolean isClean() {
+        return problems.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "IntegrityReport{" +
+                "checkedCount=" + checkedCount +
+                ", problems=" + problems +
+                ", quarantined=" + quarantined +
+                '}';
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Result of {@link SecretStorage#tryLoad(String)}: the decrypted value, or why it couldn't be loaded
+ */
+public class LoadResult {
+
+    private static final LoadResult NOT_FOUND = new LoadResult(SecretStorage.NotFound, null, null);
+
+    private final @SecretStorage.Result int result;
+    private final @Nullable byte[] value;
+    private final @Nullable Exception error;
+
+    private LoadResult(@SecretStorage.Result int result, @Nullable byte[] value, @Nullable Exception error) {
+        this.result = result;
+        this.value = value;
+        this.error = error;
+    }
+
+    static LoadResult found(byte[] value) {
+        return new LoadResult(SecretStorage.Success, value, null);
+    }
+
+    // shared instance so that misses don't allocate
+    static LoadResult notFound() {
+        return NOT_FOUND;
+    }
+
+    static LoadResult failed(@SecretStorage.Result int result, Exception error) {
+        return new LoadResult(result, null, error);
+    }
+
+    public @SecretStorage.Result int getResult() {
+        return result;
+    }
+
+    public boolean isFound() {
+        return result == SecretStorage.Success;
+    }
+
+    public @Nullable byte[] getValue() {
+        return value;
+    }
+
+    // the IOException or GeneralSecurityException for IoError and SecurityError results
+    public @Nullable Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadResult{" +
+                "result=" + result +
+                ", error=" + error +
+                '}';
+    }
+}
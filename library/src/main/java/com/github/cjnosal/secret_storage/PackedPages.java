@@ -0,0 +1,364 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
+import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+import com.github.cjnosal.secret_storage.storage.util.DataStreamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small entries packed into pages of up to entriesPerPage entries. Each page is encrypted and signed as one record,
+ * bound to its page id, so the IV, length prefixes and signature are paid once per page instead of once per entry.
+ *
+ * Updating an entry rewrites its whole page as a new record which replaces the old one. Only the page of each entry id
+ * is kept in memory, and it is read from every page the first time it's needed; values are decrypted per access.
+ *
+ * Every write also replaces a random generation marker in the page storage. The index is read again whenever the marker
+ * changed, so instances sharing the page storage see each other's entries. Writes from several instances must not
+ * overlap though, as each rewrites a page from its own read of it.
+ */
+class PackedPages {
+
+    private static final int VERSION = 1;
+    // signed with the page id as an internal id, so a page can't pass as an entry or record
+    static final String PAGE_PREFIX = "page:";
+    private static final String GENERATION_ID = "generation";
+    private static final int GENERATION_LENGTH = 16;
+
+    private final DataStorage pageStorage;
+    private final int maxEntrySize;
+    private final int entriesPerPage;
+    private final DataProtectionSpec dataProtectionSpec;
+    private final ProtectionStrategy protectionStrategy;
+    private final DataStreamUtil dataStreamUtil = new DataStreamUtil();
+
+    // entry id to page id, null until the pages are first read
+    private volatile @Nullable Map<String, String> index;
+    // entries per page, guarded by this
+    private final Map<String, Integer> pageSizes = new HashMap<>();
+    private int nextPage;
+    // marker of the last write when the index was read, null if there were no writes
+    private @Nullable byte[] generation;
+
+    PackedPages(DataStorage pageStorage, int maxEntrySize, int entriesPerPage, DataProtectionSpec dataProtectionSpec, ProtectionStrategy protectionStrategy) {
+        this.pageStorage = pageStorage;
+        this.maxEntrySize = maxEntrySize;
+        this.entriesPerPage = entriesPerPage;
+        this.dataProtectionSpec = dataProtectionSpec;
+        this.protectionStrategy = protectionStrategy.forInternalRecords();
+    }
+
+    boolean appliesTo(byte[] plainText) {
+        return plainText.length <= maxEntrySize;
+    }
+
+    boolean isIndexed() {
+        return index != null;
+    }
+
+    // as of the last time the index was read; false if it hasn't been
+    boolean contains(String id) {
+        Map<String, String> current = index;
+        return current != null && current.containsKey(id);
+    }
+
+    boolean contains(String id, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        return loadIndex(dataEncryptionKey, dataSigningKey).containsKey(id);
+    }
+
+    // read the index, or read it again if the pages were written by another instance since. Callers that don't hold the
+    // lock must use the returned map, as a deleted page clears the index
+    synchronized Map<String, String> loadIndex(Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        byte[] current = pageStorage.loadIfPresent(GENERATION_ID);
+        if (index != null && Arrays.equals(current, generation)) {
+            return index;
+        }
+        pageSizes.clear();
+        nextPage = 0;
+        Map<String, String> loaded = new ConcurrentHashMap<>();
+        Iterator<String> pageIds = iteratePages();
+        while (pageIds.hasNext()) {
+            String pageId = pageIds.next();
+            Map<String, byte[]> page = readPage(pageId, dataEncryptionKey, dataSigningKey);
+            for (String id : page.keySet()) {
+                loaded.put(id, pageId);
+            }
+            pageSizes.put(pageId, page.size());
+            wipe(page);
+            try {
+                nextPage = Math.max(nextPage, Integer.parseInt(pageId) + 1);
+            } catch (NumberFormatException e) {
+                // not written by this class, but still a valid page
+            }
+        }
+        generation = current;
+        index = loaded;
+        return loaded;
+    }
+
+    // null if the entry isn't packed
+    @Nullable byte[] get(String id, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        String pageId = loadIndex(dataEncryptionKey, dataSigningKey).get(id);
+        if (pageId == null) {
+            return null;
+        }
+        Map<String, byte[]> page = readPage(pageId, dataEncryptionKey, dataSigningKey);
+        byte[] value = page.remove(id);
+        wipe(page);
+        return value;
+    }
+
+    synchronized void put(String id, byte[] value, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        loadIndex(dataEncryptionKey, dataSigningKey);
+        String pageId = index.get(id);
+        if (pageId == null) {
+            pageId = findOpenPage();
+        }
+        Map<String, byte[]> page = pageSizes.containsKey(pageId) ? readPage(pageId, dataEncryptionKey, dataSigningKey) : new HashMap<String, byte[]>();
+        try {
+            byte[] previous = page.put(id, value.clone());
+            if (previous != null) {
+                Arrays.fill(previous, (byte) 0);
+            }
+            writePage(pageId, page, dataEncryptionKey, dataSigningKey);
+        } finally {
+            wipe(page);
+        }
+        pageSizes.put(pageId, page.size());
+        index.put(id, pageId);
+    }
+
+    // returns false if the entry isn't packed
+    synchronized boolean remove(String id, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        loadIndex(dataEncryptionKey, dataSigningKey);
+        String pageId = index.get(id);
+        if (pageId == null) {
+            return false;
+        }
+        Map<String, byte[]> page = readPage(pageId, dataEncryptionKey, dataSigningKey);
+        try {
+            byte[] previous = page.remove(id);
+            if (previous != null) {
+                Arrays.fill(previous, (byte) 0);
+            }
+            if (page.isEmpty()) {
+                pageStorage.delete(pageId);
+                markWritten();
+                pageSizes.remove(pageId);
+            } else {
+                writePage(pageId, page, dataEncryptionKey, dataSigningKey);
+                pageSizes.put(pageId, page.size());
+            }
+        } finally {
+            wipe(page);
+        }
+        index.remove(id);
+        return true;
+    }
+
+    // decrypt each page once, passing its entries to the visitor on the calling thread. Returns the number of entries
+    int forEachEntry(Key dataEncryptionKey, Key dataSigningKey, SecretStorage.EntryVisitor visitor) throws GeneralSecurityException, IOException {
+        loadIndex(dataEncryptionKey, dataSigningKey);
+        List<String> pageIds;
+        synchronized (this) {
+            pageIds = new ArrayList<>(pageSizes.keySet());
+        }
+        int count = 0;
+        for (String pageId : pageIds) {
+            Map<String, byte[]> page = readPage(pageId, dataEncryptionKey, dataSigningKey);
+            try {
+                for (Map.Entry<String, byte[]> entry : page.entrySet()) {
+                    visitor.visit(entry.getKey(), entry.getValue());
+                    count++;
+                }
+            } finally {
+                wipe(page);
+            }
+        }
+        return count;
+    }
+
+    // stored ids which aren't also packed, followed by the packed ids
+    Iterator<String> withPackedIds(Iterator<String> storedIds, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        return new IdIterator(storedIds, loadIndex(dataEncryptionKey, dataSigningKey), true);
+    }
+
+    // stored ids which aren't also packed
+    Iterator<String> withoutPackedIds(Iterator<String> storedIds, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        return new IdIterator(storedIds, loadIndex(dataEncryptionKey, dataSigningKey), false);
+    }
+
+    // page ids, without the generation marker
+    Iterator<String> iteratePages() {
+        return new IdIterator(pageStorage.iterateEntries(), Collections.singletonMap(GENERATION_ID, GENERATION_ID), false);
+    }
+
+    byte[] loadPage(String pageId) throws IOException {
+        return pageStorage.load(pageId);
+    }
+
+    // check the signature of a page without decrypting it
+    void verifyPage(String pageId, byte[] record, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        protectionStrategy.verify(PAGE_PREFIX + pageId, dataSigningKey, dataProtectionSpec, record);
+    }
+
+    // drop a page along with its entries, e.g. to quarantine it
+    synchronized void deletePage(String pageId) throws IOException {
+        pageStorage.delete(pageId);
+        markWritten();
+        index = null;
+    }
+
+    synchronized void clear() throws IOException {
+        pageStorage.clear();
+        pageSizes.clear();
+        nextPage = 0;
+        generation = null;
+        index = new ConcurrentHashMap<>();
+    }
+
+    private String findOpenPage() {
+        for (Map.Entry<String, Integer> page : pageSizes.entrySet()) {
+            if (page.getValue() < entriesPerPage) {
+                return page.getKey();
+            }
+        }
+        return Integer.toString(nextPage++);
+    }
+
+    // an empty page if it was deleted since the index was read
+    private Map<String, byte[]> readPage(String pageId, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        byte[] record = pageStorage.loadIfPresent(pageId);
+        Map<String, byte[]> page = new HashMap<>();
+        if (record == null) {
+            return page;
+        }
+        byte[] plainText = protectionStrategy.verifyAndDecrypt(PAGE_PREFIX + pageId, dataEncryptionKey, dataSigningKey, dataProtectionSpec, record);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plainText));
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported page version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String id = Encoding.utf8Encode(dataStreamUtil.readByteArray(in));
+                page.put(id, dataStreamUtil.readByteArray(in));
+            }
+            return page;
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+    }
+
+    private void writePage(String pageId, Map<String, byte[]> page, Key dataEncryptionKey, Key dataSigningKey) throws GeneralSecurityException, IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(VERSION);
+        out.writeInt(page.size());
+        for (Map.Entry<String, byte[]> entry : page.entrySet()) {
+            dataStreamUtil.writeByteArray(Encoding.utf8Decode(entry.getKey()), out);
+            dataStreamUtil.writeByteArray(entry.getValue(), out);
+        }
+        out.flush();
+        byte[] plainText = buffer.toByteArray();
+        try {
+            pageStorage.store(pageId, protectionStrategy.encryptAndSign(PAGE_PREFIX + pageId, dataEncryptionKey, dataSigningKey, dataProtectionSpec, plainText));
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+        markWritten();
+    }
+
+    // tell other instances to read the index again
+    private void markWritten() throws IOException {
+        byte[] marker = RandomSource.nextBytes(GENERATION_LENGTH);
+        pageStorage.store(GENERATION_ID, marker);
+        generation = marker;
+    }
+
+    private static void wipe(Map<String, byte[]> page) {
+        for (byte[] value : page.values()) {
+            Arrays.fill(value, (byte) 0);
+        }
+    }
+
+    // an id left in storage as well as in a page, e.g. if the process died while moving it, is read from the page
+    private static class IdIterator implements Iterator<String> {
+        private final Iterator<String> storedIds;
+        private final Map<String, String> index;
+        private final Iterator<String> packedIds;
+        private @Nullable String next;
+
+        IdIterator(Iterator<String> storedIds, Map<String, String> index, boolean includePacked) {
+            this.storedIds = storedIds;
+            this.index = index;
+            this.packedIds = includePacked ? new ArrayList<>(index.keySet()).iterator() : Collections.<String>emptyList().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && storedIds.hasNext()) {
+                String id = storedIds.next();
+                if (!index.containsKey(id)) {
+                    next = id;
+                }
+            }
+            return next != null || packedIds.hasNext();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (next != null) {
+                String id = next;
+                next = null;
+                return id;
+            }
+            return packedIds.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
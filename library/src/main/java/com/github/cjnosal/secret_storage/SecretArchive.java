@@ -0,0 +1,276 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+import com.github.cjnosal.secret_storage.storage.util.DataStreamUtil;
+import com.github.cjnosal.secret_storage.storage.util.MacInputStream;
+import com.github.cjnosal.secret_storage.storage.util.MacOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Streams the entries of a DataStorage into or out of a single archive.
+ *
+ * Records are transformed by a fixed pool of workers while the calling thread reads or writes the archive.
+ * Exporting keeps at most {@code 2 * parallelism} records in flight, so its memory use doesn't grow with the number
+ * of entries. Restoring holds the verified records in memory until the trailing Mac is checked, so an archive that
+ * fails the check leaves the storage unchanged.
+ *
+ * Format: header (magic, version, sealed flag, protection spec), entries (id, record), entry count, and a Mac over
+ * everything before it. Each record is signed individually so it can be verified as soon as it is read; the trailing
+ * Mac detects archives that were truncated or had entries removed.
+ */
+class SecretArchive {
+
+    private static final int MAGIC = 0x53534152; // SSAR
+    private static final int VERSION = 1;
+    private static final byte ENTRY = 1;
+    private static final byte END = 0;
+    // bounds on the lengths read from an archive, which is untrusted until its trailing Mac is checked.
+    // Larger records are refused on export, so every archive written can be restored
+    private static final int MAX_ID_LENGTH = 64 * 1024;
+    static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final int MAX_MAC_LENGTH = 1024;
+
+    private final RecordStorage recordStorage;
+    private final DataProtectionSpec dataProtectionSpec;
+    private final ProtectionStrategy protectionStrategy;
+    private final int parallelism;
+    private final int maxRecordLength;
+    private final DataStreamUtil dataStreamUtil = new DataStreamUtil();
+
+    SecretArchive(RecordStorage recordStorage, DataProtectionSpec dataProtectionSpec, ProtectionStrategy protectionStrategy, int parallelism) {
+        this(recordStorage, dataProtectionSpec, protectionStrategy, parallelism, MAX_RECORD_LENGTH);
+    }
+
+    SecretArchive(RecordStorage recordStorage, DataProtectionSpec dataProtectionSpec, ProtectionStrategy protectionStrategy, int parallelism, int maxRecordLength) {
+        this.recordStorage = recordStorage;
+        this.dataProtectionSpec = dataProtectionSpec;
+        this.protectionStrategy = protectionStrategy;
+        this.parallelism = parallelism;
+        this.maxRecordLength = maxRecordLength;
+    }
+
+    // without archiveKeys stored records are copied as-is and dataEncryptionKey may be null
+    void export(OutputStream out, Iterator<String> ids, @Nullable final SecretKey dataEncryptionKey, final SecretKey dataSigningKey, @Nullable final ArchiveKeys archiveKeys, @Nullable final ProtectionStrategy.EntryKeyResolver entryKeyResolver) throws GeneralSecurityException, IOException {
+        Mac mac = initMac(archiveKeys, dataSigningKey);
+        DataOutputStream archive = new DataOutputStream(new MacOutputStream(new BufferedOutputStream(out), mac));
+        archive.writeInt(MAGIC);
+        archive.writeInt(VERSION);
+        archive.writeBoolean(archiveKeys != null);
+        archive.writeUTF(getArchiveSpec(archiveKeys).toString());
+
+        int count = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Deque<Future<byte[][]>> pending = new ArrayDeque<>();
+        try {
+            while (ids.hasNext()) {
+                final String id = ids.next();
+                if (pending.size() >= parallelism * 2) {
+                    writeEntry(archive, EntryScanner.await(pending.poll()));
+                    count++;
+                }
+                pending.add(executor.submit(new Callable<byte[][]>() {
+                    @Override
+                    public byte[][] call() throws GeneralSecurityException, IOException {
+                        byte[] record = exportRecord(id, dataEncryptionKey, dataSigningKey, archiveKeys, entryKeyResolver);
+                        return new byte[][] {Encoding.utf8Decode(id), record};
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                writeEntry(archive, EntryScanner.await(pending.poll()));
+                count++;
+            }
+        } finally {
+            EntryScanner.cancel(pending);
+            executor.shutdownNow();
+        }
+
+        archive.writeByte(END);
+        archive.writeInt(count);
+        dataStreamUtil.writeByteArray(mac.doFinal(), archive);
+        archive.flush();
+    }
+
+    // returns the number of imported entries
+    int restore(InputStream in, @Nullable final SecretKey dataEncryptionKey, final SecretKey dataSigningKey, @Nullable final ArchiveKeys archiveKeys) throws GeneralSecurityException, IOException {
+        Mac mac = initMac(archiveKeys, dataSigningKey);
+        DataInputStream archive = new DataInputStream(new MacInputStream(new BufferedInputStream(in), mac));
+        if (archive.readInt() != MAGIC) {
+            throw new IOException("Not a SecretStorage archive");
+        }
+        int version = archive.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported archive version " + version);
+        }
+        boolean sealed = archive.readBoolean();
+        if (sealed != (archiveKeys != null)) {
+            throw new IOException(sealed ? "Archive requires ArchiveKeys" : "Archive was not exported with ArchiveKeys");
+        }
+        if (!getArchiveSpec(archiveKeys).toString().equals(archive.readUTF())) {
+            throw new IOException("Archive was written with a different DataProtectionSpec");
+        }
+
+        int count = 0;
+        // later entries for the same id replace earlier ones, as storing them in order would
+        Map<String, byte[]> staged = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Deque<Future<byte[][]>> pending = new ArrayDeque<>();
+        Deque<Future<Void>> storing = new ArrayDeque<>();
+        try {
+            byte marker = archive.readByte();
+            while (marker == ENTRY) {
+                final byte[] id = dataStreamUtil.readByteArray(archive, MAX_ID_LENGTH);
+                final byte[] record = dataStreamUtil.readByteArray(archive, maxRecordLength);
+                if (pending.size() >= parallelism * 2) {
+                    stage(staged, EntryScanner.await(pending.poll()));
+                }
+                pending.add(executor.submit(new Callable<byte[][]>() {
+                    @Override
+                    public byte[][] call() throws GeneralSecurityException, IOException {
+                        return new byte[][] {id, restoreRecord(Encoding.utf8Encode(id), record, dataEncryptionKey, dataSigningKey, archiveKeys)};
+                    }
+                }));
+                count++;
+                marker = archive.readByte();
+            }
+            if (marker != END) {
+                throw new IOException("Malformed archive entry");
+            }
+            while (!pending.isEmpty()) {
+                stage(staged, EntryScanner.await(pending.poll()));
+            }
+
+            int expectedCount = archive.readInt();
+            byte[] expectedMac = mac.doFinal();
+            byte[] actualMac = dataStreamUtil.readByteArray(archive, MAX_MAC_LENGTH);
+            if (expectedCount != count || !MessageDigest.isEqual(expectedMac, actualMac)) {
+                throw new SignatureException("Archive signature check failed");
+            }
+
+            // nothing is stored until the whole archive is verified
+            for (final Map.Entry<String, byte[]> entry : staged.entrySet()) {
+                if (storing.size() >= parallelism * 2) {
+                    EntryScanner.await(storing.poll());
+                }
+                storing.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws GeneralSecurityException, IOException {
+                        recordStorage.store(entry.getKey(), entry.getValue());
+                        return null;
+                    }
+                }));
+            }
+            while (!storing.isEmpty()) {
+                EntryScanner.await(storing.poll());
+            }
+        } finally {
+            EntryScanner.cancel(pending);
+            EntryScanner.cancel(storing);
+            executor.shutdownNow();
+        }
+        return count;
+    }
+
+    private void stage(Map<String, byte[]> staged, byte[][] entry) {
+        String id = Encoding.utf8Encode(entry[0]);
+        staged.remove(id);
+        staged.put(id, entry[1]);
+    }
+
+    private byte[] exportRecord(String id, SecretKey dataEncryptionKey, SecretKey dataSigningKey, @Nullable ArchiveKeys archiveKeys, @Nullable ProtectionStrategy.EntryKeyResolver entryKeyResolver) throws GeneralSecurityException, IOException {
+        byte[] record = recordStorage.load(id);
+        if (archiveKeys != null) {
+            byte[] plainText = protectionStrategy.verifyAndDecrypt(id, dataEncryptionKey, dataSigningKey, dataProtectionSpec, record, entryKeyResolver);
+            try {
+                record = protectionStrategy.encryptAndSign(id, archiveKeys.getEncryptionKey(), archiveKeys.getSigningKey(), archiveKeys.getDataProtectionSpec(), plainText);
+            } finally {
+                Arrays.fill(plainText, (byte) 0);
+            }
+        }
+        if (record.length > maxRecordLength) {
+            throw new IOException("Entry is too large to archive: " + record.length + " bytes");
+        }
+        return record;
+    }
+
+    // the record to store for an archived one
+    private byte[] restoreRecord(String id, byte[] record, SecretKey dataEncryptionKey, SecretKey dataSigningKey, @Nullable ArchiveKeys archiveKeys) throws GeneralSecurityException, IOException {
+        if (archiveKeys == null) {
+            protectionStrategy.verify(id, dataSigningKey, dataProtectionSpec, record);
+            return record;
+        }
+        byte[] plainText = protectionStrategy.verifyAndDecrypt(id, archiveKeys.getEncryptionKey(), archiveKeys.getSigningKey(), archiveKeys.getDataProtectionSpec(), record);
+        try {
+            return protectionStrategy.encryptAndSign(id, dataEncryptionKey, dataSigningKey, dataProtectionSpec, plainText);
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+    }
+
+    private void writeEntry(DataOutputStream archive, byte[][] entry) throws IOException {
+        archive.writeByte(ENTRY);
+        dataStreamUtil.writeByteArray(entry[0], archive);
+        dataStreamUtil.writeByteArray(entry[1], archive);
+    }
+
+    private DataProtectionSpec getArchiveSpec(@Nullable ArchiveKeys archiveKeys) {
+        return archiveKeys != null ? archiveKeys.getDataProtectionSpec() : dataProtectionSpec;
+    }
+
+    private Mac initMac(@Nullable ArchiveKeys archiveKeys, SecretKey dataSigningKey) throws GeneralSecurityException {
+        Key key = archiveKeys != null ? archiveKeys.getSigningKey() : dataSigningKey;
+        Mac mac = Mac.getInstance(getArchiveSpec(archiveKeys).getIntegritySpec().getIntegrityTransformation());
+        mac.init(key);
+        return mac;
+    }
+
+    // where archived records are read from and restored to
+    interface RecordStorage {
+        byte[] load(String id) throws GeneralSecurityException, IOException;
+        void store(String id, byte[] record) throws GeneralSecurityException, IOException;
+    }
+}
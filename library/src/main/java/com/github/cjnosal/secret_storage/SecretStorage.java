@@ -21,47 +21,142 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.github.cjnosal.secret_storage.annotations.KeyPurpose;
+import com.github.cjnosal.secret_storage.keymanager.BaseKeyWrapper;
 import com.github.cjnosal.secret_storage.keymanager.KeyWrapper;
 import com.github.cjnosal.secret_storage.keymanager.KeyWrapperInitializer;
 import com.github.cjnosal.secret_storage.keymanager.crypto.PRNGFixes;
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
 import com.github.cjnosal.secret_storage.keymanager.data.DataKeyGenerator;
 import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.EntryKeyDeriver;
 import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.symmetric.SymmetricCipherStrategy;
 import com.github.cjnosal.secret_storage.keymanager.strategy.integrity.mac.MacStrategy;
+import com.github.cjnosal.secret_storage.metrics.Metrics;
 import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 
 public class SecretStorage {
 
+    private static final int SCAN_BATCH_SIZE = 32;
+
     private final @Nullable DataStorage dataStorage;
     private final DataProtectionSpec dataProtectionSpec;
     private final DataKeyGenerator dataKeyGenerator;
     private final ProtectionStrategy dataProtectionStrategy;
+    private final @Nullable DataKeyCache dataKeyCache;
+    private final @Nullable String tenant;
+    private final @Nullable EntryKeyTable entryKeyTable;
+    private final @Nullable PackedPages packedPages;
+    private final @Nullable FieldRecords fieldRecords;
+    private final KeyWrapper.LockListener lockListener = new KeyWrapper.LockListener() {
+        @Override
+        public void onUnlock(KeyWrapper keyWrapper) {
+        }
+
+        @Override
+        public void onLock(KeyWrapper keyWrapper) {
+            invalidateCachedKeys();
+        }
+    };
     private KeyWrapper keyWrapper;
 
     public SecretStorage(@Nullable DataStorage dataStorage, DataProtectionSpec dataProtectionSpec, KeyWrapper keyWrapper) {
+        this(dataStorage, dataProtectionSpec, keyWrapper, new DataKeyGenerator(), new ProtectionStrategy(new SymmetricCipherStrategy(), new MacStrategy()), null, null, null, null, null);
+        PRNGFixes.apply();
+    }
+
+    // a pooled tenant, sharing the generator, strategy and key cache with the other tenants
+    SecretStorage(@Nullable DataStorage dataStorage, DataProtectionSpec dataProtectionSpec, KeyWrapper keyWrapper, DataKeyGenerator dataKeyGenerator, ProtectionStrategy dataProtectionStrategy, @Nullable DataKeyCache dataKeyCache, @Nullable String tenant, @Nullable EntryKeyTable entryKeyTable, @Nullable PackedPages packedPages, @Nullable FieldRecords fieldRecords) {
         this.dataStorage = dataStorage;
         this.dataProtectionSpec = dataProtectionSpec;
-        this.dataKeyGenerator = new DataKeyGenerator();
-        this.dataProtectionStrategy = new ProtectionStrategy(new SymmetricCipherStrategy(), new MacStrategy());
+        this.dataKeyGenerator = dataKeyGenerator;
+        this.dataProtectionStrategy = dataProtectionStrategy;
+        this.dataKeyCache = dataKeyCache;
+        this.tenant = tenant;
+        this.entryKeyTable = entryKeyTable;
+        this.packedPages = packedPages;
+        this.fieldRecords = fieldRecords;
         this.keyWrapper = keyWrapper;
-        PRNGFixes.apply();
+        clearKeysOnLock(keyWrapper);
+    }
+
+    // load providers, instantiate primitives and read stored keys and configuration on the executor,
+    // so the first unlock and encrypt don't pay for it on the calling thread
+    public Future<Void> warmUp(Executor executor) {
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws GeneralSecurityException, IOException {
+                PRNGFixes.apply();
+                RandomSource.nextBytes(1);
+                Cipher.getInstance(dataProtectionSpec.getCipherSpec().getCipherTransformation());
+                Mac.getInstance(dataProtectionSpec.getIntegritySpec().getIntegrityTransformation());
+                KeyGenerator.getInstance(dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm());
+                KeyGenerator.getInstance(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm());
+                keyWrapper.warmUp();
+                return null;
+            }
+        });
+        executor.execute(task);
+        return task;
     }
 
     public void store(String id, byte[] plainText) throws GeneralSecurityException, IOException {
         if (dataStorage == null) {
             throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
         }
-        byte[] cipherText = encrypt(id, plainText);
-        dataStorage.store(id, cipherText);
+        Span span = Tracing.begin("secret_storage.store", id);
+        try {
+            if (packedPages != null && packedPages.appliesTo(plainText)) {
+                packedPages.put(id, plainText, prepareDataEncryptionKey(), prepareDataSigningKey());
+                // the previous value may have been stored as its own record
+                if (dataStorage.exists(id)) {
+                    deleteStoredEntry(id);
+                }
+                return;
+            }
+            if (entryKeyTable != null && entryKeyTable.appliesTo(plainText)) {
+                entryKeyTable.store(dataStorage, id, prepareDataEncryptionKey(), prepareDataSigningKey(), plainText);
+            } else {
+                byte[] cipherText = encrypt(id, plainText);
+                dataStorage.store(id, cipherText);
+                if (entryKeyTable != null) {
+                    // the previous value may have had its own key
+                    entryKeyTable.shred(id);
+                }
+            }
+            if (isPacked(id)) {
+                packedPages.remove(id, prepareDataEncryptionKey(), prepareDataSigningKey());
+            }
+        } finally {
+            span.end();
+        }
     }
 
     public @Result int storeValue(String id, byte[] plainText) {
@@ -81,27 +176,95 @@ public class SecretStorage {
         if (dataStorage == null) {
             throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
         }
-        byte[] cipherText = dataStorage.load(id);
-        return decrypt(id, cipherText);
+        Span span = Tracing.begin("secret_storage.load", id);
+        try {
+            byte[] packed = loadPacked(id);
+            if (packed != null) {
+                return packed;
+            }
+            byte[] cipherText = dataStorage.load(id);
+            return decrypt(id, cipherText);
+        } finally {
+            span.end();
+        }
     }
 
     public @Nullable byte[] loadValue(String id) {
+        LoadResult result = tryLoad(id);
+        if (result.getError() != null) {
+            result.getError().printStackTrace();
+        }
+        return result.getValue();
+    }
+
+    // load without throwing; a missing id is reported as NotFound without creating an exception
+    public LoadResult tryLoad(String id) {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        Span span = Tracing.begin("secret_storage.try_load", id);
         try {
-            return load(id);
-        } catch (GeneralSecurityException | IOException e) {
-            e.printStackTrace();
+            byte[] packed = loadPacked(id);
+            if (packed != null) {
+                return LoadResult.found(packed);
+            }
+            byte[] cipherText = dataStorage.loadIfPresent(id);
+            if (cipherText == null) {
+                return LoadResult.notFound();
+            }
+            return LoadResult.found(decrypt(id, cipherText));
+        } catch (ProtectionStrategy.ShreddedEntryException e) {
+            return LoadResult.notFound();
+        } catch (IOException e) {
+            return LoadResult.failed(IoError, e);
+        } catch (GeneralSecurityException e) {
+            return LoadResult.failed(SecurityError, e);
+        } finally {
+            span.end();
         }
-        return null;
     }
 
+    // packed entries are only found once the page index has been read, which needs the data keys, so while locked
+    // they are only reported if it has been
     public boolean exists(String id) {
-        return dataStorage != null && dataStorage.exists(id);
+        if (dataStorage == null) {
+            return false;
+        }
+        if (dataStorage.exists(id)) {
+            return true;
+        }
+        if (packedPages == null) {
+            return false;
+        }
+        if (!keyWrapper.getEditor().isUnlocked()) {
+            return packedPages.contains(id);
+        }
+        try {
+            return isPacked(id);
+        } catch (GeneralSecurityException | IOException e) {
+            return false;
+        }
     }
 
     public void delete(String id) throws IOException {
         if (dataStorage == null) {
             throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
         }
+        try {
+            if (isPacked(id)) {
+                packedPages.remove(id, prepareDataEncryptionKey(), prepareDataSigningKey());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to remove packed entry " + id, e);
+        }
+        deleteStoredEntry(id);
+    }
+
+    // an entry with its own key is unrecoverable once the key is deleted, so its record is only unlinked
+    private void deleteStoredEntry(String id) throws IOException {
+        if (entryKeyTable != null) {
+            entryKeyTable.shred(id);
+        }
         dataStorage.delete(id);
     }
 
@@ -115,11 +278,111 @@ public class SecretStorage {
         }
     }
 
+    // store fields which can be read back individually, replacing any previous record with this id
+    public void storeRecord(String id, Map<String, byte[]> fields) throws GeneralSecurityException, IOException {
+        if (fieldRecords == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with record storage");
+        }
+        Span span = Tracing.begin("secret_storage.store_record", id);
+        try {
+            fieldRecords.store(id, fields, prepareDataEncryptionKey(), prepareDataSigningKey());
+        } finally {
+            span.end();
+        }
+    }
+
+    public @Result int storeRecordValue(String id, Map<String, byte[]> fields) {
+        try {
+            storeRecord(id, fields);
+            return Success;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return SecurityError;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return IoError;
+        }
+    }
+
+    // verify and decrypt only the record's directory and the requested field; null if the record has no such field
+    public @Nullable byte[] loadField(String id, String field) throws GeneralSecurityException, IOException {
+        if (fieldRecords == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with record storage");
+        }
+        Span span = Tracing.begin("secret_storage.load_field", id);
+        try {
+            return fieldRecords.loadField(id, field, prepareDataEncryptionKey(), prepareDataSigningKey());
+        } finally {
+            span.end();
+        }
+    }
+
+    public @Nullable byte[] loadFieldValue(String id, String field) {
+        try {
+            return loadField(id, field);
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public Map<String, byte[]> loadRecord(String id) throws GeneralSecurityException, IOException {
+        if (fieldRecords == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with record storage");
+        }
+        Span span = Tracing.begin("secret_storage.load_record", id);
+        try {
+            return fieldRecords.loadRecord(id, prepareDataEncryptionKey(), prepareDataSigningKey());
+        } finally {
+            span.end();
+        }
+    }
+
+    public @Nullable Map<String, byte[]> loadRecordValue(String id) {
+        try {
+            return loadRecord(id);
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public boolean recordExists(String id) {
+        return fieldRecords != null && fieldRecords.exists(id);
+    }
+
+    public void deleteRecord(String id) throws IOException {
+        if (fieldRecords == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with record storage");
+        }
+        fieldRecords.delete(id);
+    }
+
+    public @Result int deleteRecordValue(String id) {
+        try {
+            deleteRecord(id);
+            return Success;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return IoError;
+        }
+    }
+
     // erase encrypted data and wrapped keys
     public void clear() throws IOException, GeneralSecurityException {
         if (dataStorage != null) {
             dataStorage.clear();
         }
+        if (entryKeyTable != null) {
+            entryKeyTable.clear();
+        }
+        if (packedPages != null) {
+            packedPages.clear();
+        }
+        if (fieldRecords != null) {
+            fieldRecords.clear();
+        }
+        invalidateCachedKeys();
         keyWrapper.eraseDataKeys();
     }
 
@@ -163,9 +426,10 @@ public class SecretStorage {
         if (dataStorage == null) {
             throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
         }
-        Set<String> entries = dataStorage.entries();
-        for (String s : entries) {
-            other.store(s, load(s));
+        Iterator<String> entries = iterateEntries();
+        while (entries.hasNext()) {
+            String id = entries.next();
+            other.store(id, load(id));
         }
     }
 
@@ -183,8 +447,191 @@ public class SecretStorage {
         }
     }
 
+    // stream all stored records into a signed archive which can be imported by storage sharing the same data keys
+    public void exportTo(OutputStream out) throws GeneralSecurityException, IOException {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        // packed entries and entries with their own keys are exported as ordinary records
+        @KeyPurpose.DataSecrecy SecretKey encryptionKey = packedPages != null || entryKeyTable != null ? prepareDataEncryptionKey() : null;
+        @KeyPurpose.DataIntegrity SecretKey signingKey = prepareDataSigningKey();
+        createArchive(encryptionKey, signingKey).export(out, iterateEntries(), null, signingKey, null, null);
+    }
+
+    // stream all entries into a signed archive, re-encrypted with the archive keys
+    public void exportTo(OutputStream out, ArchiveKeys archiveKeys) throws GeneralSecurityException, IOException {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        @KeyPurpose.DataSecrecy SecretKey encryptionKey = prepareDataEncryptionKey();
+        @KeyPurpose.DataIntegrity SecretKey signingKey = prepareDataSigningKey();
+        createArchive(encryptionKey, signingKey).export(out, iterateEntries(), encryptionKey, signingKey, archiveKeys, getEntryKeyResolver(encryptionKey));
+    }
+
+    public @Result int exportValuesTo(OutputStream out, @Nullable ArchiveKeys archiveKeys) {
+        try {
+            if (archiveKeys == null) {
+                exportTo(out);
+            } else {
+                exportTo(out, archiveKeys);
+            }
+            return Success;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return SecurityError;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return IoError;
+        }
+    }
+
+    // store all records from an archive created by exportTo(OutputStream), returning the number of entries
+    public int importFrom(InputStream in) throws GeneralSecurityException, IOException {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        @KeyPurpose.DataSecrecy SecretKey encryptionKey = packedPages != null ? prepareDataEncryptionKey() : null;
+        @KeyPurpose.DataIntegrity SecretKey signingKey = prepareDataSigningKey();
+        return createArchive(encryptionKey, signingKey).restore(in, null, signingKey, null);
+    }
+
+    // decrypt all entries from an archive created by exportTo(OutputStream, ArchiveKeys) and store them, returning the number of entries
+    public int importFrom(InputStream in, ArchiveKeys archiveKeys) throws GeneralSecurityException, IOException {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        @KeyPurpose.DataSecrecy SecretKey encryptionKey = prepareDataEncryptionKey();
+        @KeyPurpose.DataIntegrity SecretKey signingKey = prepareDataSigningKey();
+        return createArchive(encryptionKey, signingKey).restore(in, encryptionKey, signingKey, archiveKeys);
+    }
+
+    public @Result int importValuesFrom(InputStream in, @Nullable ArchiveKeys archiveKeys) {
+        try {
+            if (archiveKeys == null) {
+                importFrom(in);
+            } else {
+                importFrom(in, archiveKeys);
+            }
+            return Success;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return SecurityError;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return IoError;
+        }
+    }
+
+    // decrypt every entry using all cores, passing each to the visitor from a worker thread. Returns the number of entries
+    public int forEachEntry(final EntryVisitor visitor) throws GeneralSecurityException, IOException {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        Iterator<String> entries = dataStorage.iterateEntries();
+        boolean packed = packedPages != null && keyWrapper.dataKeysExist();
+        if (!entries.hasNext() && !packed) {
+            return 0;
+        }
+        final @KeyPurpose.DataSecrecy SecretKey decryptionKey = prepareDataEncryptionKey();
+        final @KeyPurpose.DataIntegrity SecretKey verificationKey = prepareDataSigningKey();
+        final ProtectionStrategy.EntryKeyResolver entryKeyResolver = getEntryKeyResolver(decryptionKey);
+        if (packed) {
+            entries = packedPages.withoutPackedIds(entries, decryptionKey, verificationKey);
+        }
+        int count = 0;
+        if (entries.hasNext()) {
+            count = createScanner().scan(entries, new EntryScanner.Task() {
+                @Override
+                public void run(String id) throws GeneralSecurityException, IOException {
+                    byte[] cipherText = dataStorage.load(id);
+                    visitor.visit(id, dataProtectionStrategy.verifyAndDecrypt(id, decryptionKey, verificationKey, dataProtectionSpec, cipherText, entryKeyResolver));
+                }
+            });
+        }
+        if (packed) {
+            count += packedPages.forEachEntry(decryptionKey, verificationKey, visitor);
+        }
+        return count;
+    }
+
+    public @Result int forEachEntryValue(EntryVisitor visitor) {
+        try {
+            forEachEntry(visitor);
+            return Success;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return SecurityError;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return IoError;
+        }
+    }
+
+    // check the signature of every stored record using all cores, without decrypting payloads
+    public IntegrityReport verifyAll() throws GeneralSecurityException, IOException {
+        return verifyAll(null);
+    }
+
+    // check the signature of every stored record, page and field record, moving failed ones to quarantineStorage if provided.
+    // Field records also need the encryption key, to read their directories
+    public IntegrityReport verifyAll(@Nullable DataStorage quarantineStorage) throws GeneralSecurityException, IOException {
+        if (dataStorage == null) {
+            throw new UnsupportedOperationException("SecretStorage was not configured with data storage");
+        }
+        boolean keysExist = keyWrapper.dataKeysExist();
+        @KeyPurpose.DataIntegrity SecretKey verificationKey = keysExist ? keyWrapper.loadDataSigningKey(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm()) : null;
+        @KeyPurpose.DataSecrecy SecretKey decryptionKey = keysExist && fieldRecords != null ? keyWrapper.loadDataEncryptionKey(dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm()) : null;
+        Map<String, IntegrityReport.Problem> problems = new HashMap<>();
+        Set<String> quarantined = new HashSet<>();
+        int checkedCount = 0;
+        for (final RecordSet recordSet : getRecordSets(decryptionKey, verificationKey)) {
+            final Map<String, IntegrityReport.Problem> found = new ConcurrentHashMap<>();
+            Iterator<String> ids = recordSet.iterateIds();
+            if (keysExist) {
+                checkedCount += createScanner().scan(ids, new EntryScanner.Task() {
+                    @Override
+                    public void run(String id) {
+                        IntegrityReport.Problem problem = verifyRecord(recordSet, id);
+                        if (problem != null) {
+                            found.put(id, problem);
+                        }
+                    }
+                });
+            } else {
+                // no signing key exists (e.g. the key wrapper was erased), so the records can't be checked
+                while (ids.hasNext()) {
+                    found.put(ids.next(), IntegrityReport.Problem.Unverifiable);
+                    checkedCount++;
+                }
+            }
+
+            for (Map.Entry<String, IntegrityReport.Problem> problem : found.entrySet()) {
+                String id = problem.getKey();
+                String reportedId = recordSet.getPrefix() + id;
+                problems.put(reportedId, problem.getValue());
+                if (quarantineStorage != null && problem.getValue().isQuarantinable()) {
+                    quarantineStorage.store(reportedId, recordSet.load(id));
+                    recordSet.delete(id);
+                    quarantined.add(reportedId);
+                }
+            }
+        }
+        return new IntegrityReport(checkedCount, problems, quarantined);
+    }
+
+    public @Nullable IntegrityReport verifyAllValues(@Nullable DataStorage quarantineStorage) {
+        try {
+            return verifyAll(quarantineStorage);
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     // decrypt and copy data encryption keys to another KeyManager instance
     public void rewrap(KeyWrapperInitializer initializer) throws IOException, GeneralSecurityException {
+        invalidateCachedKeys();
+        KeyWrapper previous = keyWrapper;
         if (keyWrapper.dataKeysExist()) {
             @KeyPurpose.DataSecrecy SecretKey encryptionKey = keyWrapper.loadDataEncryptionKey(dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm());
             @KeyPurpose.DataIntegrity SecretKey signingKey = keyWrapper.loadDataSigningKey(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm());
@@ -194,6 +641,10 @@ public class SecretStorage {
         } else {
             keyWrapper = initializer.initKeyWrapper();
         }
+        if (previous instanceof BaseKeyWrapper) {
+            ((BaseKeyWrapper) previous).removeLockListener(lockListener);
+        }
+        clearKeysOnLock(keyWrapper);
     }
 
     public @Result int rewrapValues(KeyWrapperInitializer initializer) {
@@ -222,7 +673,7 @@ public class SecretStorage {
     public byte[] decrypt(String id, byte[] cipherText) throws GeneralSecurityException, IOException {
         @KeyPurpose.DataSecrecy SecretKey decryptionKey = prepareDataEncryptionKey();
         @KeyPurpose.DataIntegrity SecretKey verificationKey = prepareDataSigningKey();
-        return dataProtectionStrategy.verifyAndDecrypt(id, decryptionKey, verificationKey, dataProtectionSpec, cipherText);
+        return dataProtectionStrategy.verifyAndDecrypt(id, decryptionKey, verificationKey, dataProtectionSpec, cipherText, getEntryKeyResolver(decryptionKey));
     }
 
     public @Nullable byte[] encryptValue(String id, byte[] plainText) {
@@ -243,26 +694,269 @@ public class SecretStorage {
         return null;
     }
 
+    private @Nullable ProtectionStrategy.EntryKeyResolver getEntryKeyResolver(SecretKey decryptionKey) {
+        return entryKeyTable != null ? entryKeyTable.getResolver(decryptionKey) : null;
+    }
+
+    private EntryScanner createScanner() {
+        return new EntryScanner(Runtime.getRuntime().availableProcessors(), SCAN_BATCH_SIZE);
+    }
+
+    // records of packed entries and entries with their own keys are re-encrypted with encryptionKey, which is only
+    // needed if packing or shredding is configured
+    private SecretArchive createArchive(@Nullable final SecretKey encryptionKey, final SecretKey signingKey) throws GeneralSecurityException, IOException {
+        if (packedPages != null) {
+            packedPages.loadIndex(encryptionKey, signingKey);
+        }
+        SecretArchive.RecordStorage recordStorage = new SecretArchive.RecordStorage() {
+            @Override
+            public byte[] load(String id) throws GeneralSecurityException, IOException {
+                byte[] plainText = null;
+                if (packedPages != null && packedPages.contains(id)) {
+                    plainText = packedPages.get(id, encryptionKey, signingKey);
+                }
+                if (plainText == null) {
+                    byte[] record = dataStorage.load(id);
+                    // the archive doesn't carry entry keys, so the entry couldn't be decrypted after import
+                    if (entryKeyTable == null || !ProtectionStrategy.hasWrappedEntryKey(record)) {
+                        return record;
+                    }
+                    plainText = dataProtectionStrategy.verifyAndDecrypt(id, encryptionKey, signingKey, dataProtectionSpec, record, entryKeyTable.getResolver(encryptionKey));
+                }
+                try {
+                    return dataProtectionStrategy.encryptAndSign(id, encryptionKey, signingKey, dataProtectionSpec, plainText);
+                } finally {
+                    Arrays.fill(plainText, (byte) 0);
+                }
+            }
+
+            @Override
+            public void store(String id, byte[] record) throws GeneralSecurityException, IOException {
+                dataStorage.store(id, record);
+                if (entryKeyTable != null) {
+                    // the replaced entry may have had its own key
+                    entryKeyTable.shred(id);
+                }
+                // restored entries are kept as records of their own
+                if (packedPages != null && packedPages.contains(id)) {
+                    packedPages.remove(id, encryptionKey, signingKey);
+                }
+            }
+        };
+        return new SecretArchive(recordStorage, dataProtectionSpec, dataProtectionStrategy, Runtime.getRuntime().availableProcessors());
+    }
+
+    // stored ids, and packed ids if packing is configured
+    private Iterator<String> iterateEntries() throws GeneralSecurityException, IOException {
+        // without data keys there are no pages
+        if (packedPages != null && keyWrapper.dataKeysExist()) {
+            return packedPages.withPackedIds(dataStorage.iterateEntries(), prepareDataEncryptionKey(), prepareDataSigningKey());
+        }
+        return dataStorage.iterateEntries();
+    }
+
+    // checked against the pages while unlocked. While locked the pages can't be read, so an id that isn't stored is
+    // assumed to be packed until the index has been read
+    private boolean isPacked(String id) throws GeneralSecurityException, IOException {
+        if (packedPages == null || !keyWrapper.dataKeysExist()) {
+            return false;
+        }
+        if (keyWrapper.getEditor().isUnlocked()) {
+            return packedPages.contains(id, prepareDataEncryptionKey(), prepareDataSigningKey());
+        }
+        return packedPages.isIndexed() ? packedPages.contains(id) : !dataStorage.exists(id);
+    }
+
+    private @Nullable byte[] loadPacked(String id) throws GeneralSecurityException, IOException {
+        if (packedPages == null || !keyWrapper.dataKeysExist()) {
+            return null;
+        }
+        return packedPages.get(id, prepareDataEncryptionKey(), prepareDataSigningKey());
+    }
+
+    private @Nullable IntegrityReport.Problem verifyRecord(RecordSet recordSet, String id) {
+        byte[] record;
+        try {
+            record = recordSet.load(id);
+        } catch (IOException e) {
+            return IntegrityReport.Problem.Unreadable;
+        }
+        try {
+            recordSet.verify(id, record);
+            return null;
+        } catch (ProtectionStrategy.TruncatedRecordException e) {
+            return IntegrityReport.Problem.Truncated;
+        } catch (ProtectionStrategy.IdMismatchException e) {
+            return IntegrityReport.Problem.IdMismatch;
+        } catch (GeneralSecurityException | IOException e) {
+            return IntegrityReport.Problem.Corrupt;
+        }
+    }
+
+    // the storages checked by verifyAll; the keys are null if no data keys exist
+    private List<RecordSet> getRecordSets(@Nullable final SecretKey decryptionKey, @Nullable final SecretKey verificationKey) {
+        List<RecordSet> recordSets = new ArrayList<>();
+        recordSets.add(new RecordSet("") {
+            @Override
+            Iterator<String> iterateIds() {
+                return dataStorage.iterateEntries();
+            }
+
+            @Override
+            byte[] load(String id) throws IOException {
+                return dataStorage.load(id);
+            }
+
+            @Override
+            void verify(String id, byte[] record) throws GeneralSecurityException, IOException {
+                dataProtectionStrategy.verify(id, verificationKey, dataProtectionSpec, record);
+            }
+
+            @Override
+            void delete(String id) throws IOException {
+                dataStorage.delete(id);
+            }
+        });
+        if (packedPages != null) {
+            recordSets.add(new RecordSet(PackedPages.PAGE_PREFIX) {
+                @Override
+                Iterator<String> iterateIds() {
+                    return packedPages.iteratePages();
+                }
+
+                @Override
+                byte[] load(String id) throws IOException {
+                    return packedPages.loadPage(id);
+                }
+
+                @Override
+                void verify(String id, byte[] record) throws GeneralSecurityException, IOException {
+                    packedPages.verifyPage(id, record, verificationKey);
+                }
+
+                @Override
+                void delete(String id) throws IOException {
+                    packedPages.deletePage(id);
+                }
+            });
+        }
+        if (fieldRecords != null) {
+            recordSets.add(new RecordSet(FieldRecords.RECORD_PREFIX) {
+                @Override
+                Iterator<String> iterateIds() {
+                    return fieldRecords.iterateRecords();
+                }
+
+                @Override
+                byte[] load(String id) throws IOException {
+                    return fieldRecords.loadEntry(id);
+                }
+
+                @Override
+                void verify(String id, byte[] record) throws GeneralSecurityException, IOException {
+                    fieldRecords.verify(id, record, decryptionKey, verificationKey);
+                }
+
+                @Override
+                void delete(String id) throws IOException {
+                    fieldRecords.delete(id);
+                }
+            });
+        }
+        return recordSets;
+    }
+
     private SecretKey prepareDataEncryptionKey() throws GeneralSecurityException, IOException {
-        @KeyPurpose.DataSecrecy SecretKey encryptionKey;
-        if (keyWrapper.dataKeysExist()) {
-            encryptionKey = keyWrapper.loadDataEncryptionKey(dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm());
-        } else {
-            encryptionKey = generateDataEncryptionKey();
-            keyWrapper.storeDataEncryptionKey(encryptionKey);
+        long start = Metrics.start();
+        Span span = Tracing.begin("secret_storage.prepare_encryption_key");
+        try {
+            @KeyPurpose.DataSecrecy SecretKey encryptionKey = getCachedKey(DataKeyCache.ENCRYPTION_KEY);
+            if (encryptionKey != null) {
+                Metrics.stop(Metrics.DATA_KEY_PREPARE, start);
+                return encryptionKey;
+            }
+            long stamp = dataKeyCache != null ? dataKeyCache.getStamp() : 0;
+            if (keyWrapper.dataKeysExist()) {
+                encryptionKey = keyWrapper.loadDataEncryptionKey(dataProtectionSpec.getCipherKeyGenSpec().getKeygenAlgorithm());
+            } else {
+                encryptionKey = generateDataEncryptionKey();
+                keyWrapper.storeDataEncryptionKey(encryptionKey);
+            }
+            cacheKey(DataKeyCache.ENCRYPTION_KEY, encryptionKey, stamp);
+            Metrics.stop(Metrics.DATA_KEY_PREPARE, start);
+            return encryptionKey;
+        } finally {
+            span.end();
         }
-        return encryptionKey;
     }
 
     private SecretKey prepareDataSigningKey() throws GeneralSecurityException, IOException {
-        @KeyPurpose.DataIntegrity SecretKey signingKey;
-        if (keyWrapper.dataKeysExist()) {
-            signingKey = keyWrapper.loadDataSigningKey(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm());
-        } else {
-            signingKey = generateDataSigningKey();
-            keyWrapper.storeDataSigningKey(signingKey);
+        long start = Metrics.start();
+        Span span = Tracing.begin("secret_storage.prepare_signing_key");
+        try {
+            @KeyPurpose.DataIntegrity SecretKey signingKey = getCachedKey(DataKeyCache.SIGNING_KEY);
+            if (signingKey != null) {
+                Metrics.stop(Metrics.DATA_KEY_PREPARE, start);
+                return signingKey;
+            }
+            long stamp = dataKeyCache != null ? dataKeyCache.getStamp() : 0;
+            if (keyWrapper.dataKeysExist()) {
+                signingKey = keyWrapper.loadDataSigningKey(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm());
+            } else {
+                signingKey = generateDataSigningKey();
+                keyWrapper.storeDataSigningKey(signingKey);
+            }
+            cacheKey(DataKeyCache.SIGNING_KEY, signingKey, stamp);
+            Metrics.stop(Metrics.DATA_KEY_PREPARE, start);
+            return signingKey;
+        } finally {
+            span.end();
+        }
+    }
+
+    private @Nullable SecretKey getCachedKey(int purpose) {
+        if (!canCacheKeys()) {
+            return null;
+        }
+        SecretKey key = dataKeyCache.get(tenant, purpose);
+        if (key != null) {
+            // the KeyWrapper isn't asked for the key, so mark it as used here
+            ((BaseKeyWrapper) keyWrapper).touch();
+        }
+        return key;
+    }
+
+    private void cacheKey(int purpose, SecretKey key, long stamp) {
+        if (canCacheKeys()) {
+            dataKeyCache.put(tenant, purpose, key, stamp);
+        }
+    }
+
+    // keys are only cached for KeyWrappers that report locking
+    private boolean canCacheKeys() {
+        return dataKeyCache != null && keyWrapper instanceof BaseKeyWrapper;
+    }
+
+    void invalidateCachedKeys() {
+        if (dataKeyCache != null) {
+            dataKeyCache.invalidate(tenant);
+        }
+        EntryKeyDeriver entryKeyDeriver = dataProtectionStrategy.getEntryKeyDeriver();
+        if (entryKeyDeriver != null) {
+            entryKeyDeriver.clear();
+        }
+    }
+
+    // cached data keys and entry keys are as sensitive as the wrapped data keys, so don't keep them once the
+    // KeyWrapper locks. Registered on every KeyWrapper this SecretStorage uses, including one swapped in by rewrap
+    private void clearKeysOnLock(KeyWrapper keyWrapper) {
+        if (keyWrapper instanceof BaseKeyWrapper) {
+            ((BaseKeyWrapper) keyWrapper).addLockListener(lockListener);
         }
-        return signingKey;
+    }
+
+    KeyWrapper getKeyWrapper() {
+        return keyWrapper;
     }
 
     private SecretKey generateDataEncryptionKey() throws GeneralSecurityException {
@@ -273,10 +967,44 @@ public class SecretStorage {
         return dataKeyGenerator.generateDataKey(dataProtectionSpec.getIntegrityKeyGenSpec().getKeygenAlgorithm(), dataProtectionSpec.getIntegrityKeyGenSpec().getKeySize());
     }
 
+    // records of one kind checked by verifyAll, whose problems are reported under prefix + id
+    private abstract static class RecordSet {
+        private final String prefix;
+
+        RecordSet(String prefix) {
+            this.prefix = prefix;
+        }
+
+        String getPrefix() {
+            return prefix;
+        }
+
+        abstract Iterator<String> iterateIds();
+
+        abstract byte[] load(String id) throws IOException;
+
+        // called concurrently from scan workers
+        abstract void verify(String id, byte[] record) throws GeneralSecurityException, IOException;
+
+        abstract void delete(String id) throws IOException;
+    }
+
+    // called concurrently from scan workers, so implementations must be thread safe
+    public interface EntryVisitor {
+        void visit(String id, byte[] plainText) throws IOException;
+    }
+
     public static class Builder {
         private DataStorage dataStorage;
         private DataProtectionSpec dataProtectionSpec;
         private KeyWrapper keyWrapper;
+        private @Nullable EntryKeyDeriver entryKeyDeriver;
+        private @Nullable DataStorage entryKeyStorage;
+        private int minShreddableSize;
+        private @Nullable DataStorage pageStorage;
+        private int maxPackedSize;
+        private int entriesPerPage;
+        private @Nullable DataStorage recordStorage;
 
         public Builder() {
         }
@@ -296,9 +1024,57 @@ public class SecretStorage {
             return this;
         }
 
+        // encrypt each record with a key derived from the data encryption key, the id and a random salt,
+        // keeping up to maxCachedEntryKeys derived keys for hot ids
+        public Builder deriveEntryKeys(int maxCachedEntryKeys) {
+            this.entryKeyDeriver = new EntryKeyDeriver(maxCachedEntryKeys);
+            return this;
+        }
+
+        // encrypt entries of at least minEntrySize bytes with a key of their own, wrapped and kept in entryKeyStorage,
+        // so deleting the entry only has to delete its key
+        public Builder shredLargeEntries(DataStorage entryKeyStorage, int minEntrySize) {
+            this.entryKeyStorage = entryKeyStorage;
+            this.minShreddableSize = minEntrySize;
+            return this;
+        }
+
+        // keep entries of at most maxEntrySize bytes in pages of entriesPerPage entries in pageStorage, each page
+        // encrypted and signed as one record
+        public Builder packSmallEntries(DataStorage pageStorage, int maxEntrySize, int entriesPerPage) {
+            this.pageStorage = pageStorage;
+            this.maxPackedSize = maxEntrySize;
+            this.entriesPerPage = entriesPerPage;
+            return this;
+        }
+
+        // keep records written by storeRecord in recordStorage, with each field encrypted and signed on its own
+        public Builder fieldRecords(DataStorage recordStorage) {
+            this.recordStorage = recordStorage;
+            return this;
+        }
+
         public SecretStorage build() {
             validateArguments();
-            return new SecretStorage(dataStorage, dataProtectionSpec, keyWrapper);
+            if (entryKeyDeriver == null && entryKeyStorage == null && pageStorage == null && recordStorage == null) {
+                return new SecretStorage(dataStorage, dataProtectionSpec, keyWrapper);
+            }
+            PRNGFixes.apply();
+            DataKeyGenerator dataKeyGenerator = new DataKeyGenerator();
+            ProtectionStrategy dataProtectionStrategy = new ProtectionStrategy(new SymmetricCipherStrategy(), new MacStrategy(), entryKeyDeriver);
+            EntryKeyTable entryKeyTable = null;
+            if (entryKeyStorage != null) {
+                entryKeyTable = new EntryKeyTable(entryKeyStorage, minShreddableSize, dataKeyGenerator, dataProtectionSpec, dataProtectionStrategy);
+            }
+            PackedPages packedPages = null;
+            if (pageStorage != null) {
+                packedPages = new PackedPages(pageStorage, maxPackedSize, entriesPerPage, dataProtectionSpec, dataProtectionStrategy);
+            }
+            FieldRecords fieldRecords = null;
+            if (recordStorage != null) {
+                fieldRecords = new FieldRecords(recordStorage, dataProtectionSpec, dataProtectionStrategy);
+            }
+            return new SecretStorage(dataStorage, dataProtectionSpec, keyWrapper, dataKeyGenerator, dataProtectionStrategy, null, null, entryKeyTable, packedPages, fieldRecords);
         }
 
         private void validateArguments() {
@@ -308,6 +1084,12 @@ public class SecretStorage {
             if (dataProtectionSpec == null) {
                 throw new IllegalArgumentException("DataProtectionSpec required");
             }
+            if (entryKeyStorage != null && (dataStorage == null || minShreddableSize < 0)) {
+                throw new IllegalArgumentException("Shredding requires data storage and a non-negative entry size");
+            }
+            if (pageStorage != null && (dataStorage == null || maxPackedSize < 0 || entriesPerPage <= 0)) {
+                throw new IllegalArgumentException("Packing requires data storage, a non-negative entry size and a positive page size");
+            }
         }
     }
 
@@ -315,11 +1097,13 @@ public class SecretStorage {
     @IntDef({
             Success,
             IoError,
-            SecurityError
+            SecurityError,
+            NotFound
     })
     public @interface Result {}
 
     public static final int Success = 0;
     public static final int IoError = 1;
     public static final int SecurityError = 2;
+    public static final int NotFound = 3;
 }
@@ -0,0 +1,199 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage;
+
+import android.support.annotation.NonNull;
+
+import com.github.cjnosal.secret_storage.keymanager.KeyWrapper;
+import com.github.cjnosal.secret_storage.keymanager.crypto.PRNGFixes;
+import com.github.cjnosal.secret_storage.keymanager.data.DataKeyGenerator;
+import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.ProtectionStrategy;
+import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.symmetric.SymmetricCipherStrategy;
+import com.github.cjnosal.secret_storage.keymanager.strategy.integrity.mac.MacStrategy;
+import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.ScopedDataStorage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scoped SecretStorages for many tenants, e.g. one per account, over one data storage.
+ *
+ * Tenants share the data key generator, protection strategy and a cache of unwrapped data keys bounded across all
+ * tenants. At most maxOpenTenants SecretStorages are kept; the least recently used is locked and dropped, and must be
+ * unlocked again when it is next requested.
+ */
+public class SecretStoragePool {
+
+    private static final int DEFAULT_MAX_OPEN_TENANTS = 32;
+    private static final int DEFAULT_MAX_CACHED_KEYS = 16;
+
+    private final DataStorage dataStorage;
+    private final DataProtectionSpec dataProtectionSpec;
+    private final KeyWrapperFactory keyWrapperFactory;
+    private final DataKeyGenerator dataKeyGenerator = new DataKeyGenerator();
+    private final ProtectionStrategy dataProtectionStrategy = new ProtectionStrategy(new SymmetricCipherStrategy(), new MacStrategy());
+    private final DataKeyCache dataKeyCache;
+    private final int maxOpenTenants;
+    private final LinkedHashMap<String, SecretStorage> tenants = new LinkedHashMap<>(16, 0.75f, true);
+
+    SecretStoragePool(DataStorage dataStorage, DataProtectionSpec dataProtectionSpec, KeyWrapperFactory keyWrapperFactory, int maxOpenTenants, int maxCachedKeys) {
+        this.dataStorage = dataStorage;
+        this.dataProtectionSpec = dataProtectionSpec;
+        this.keyWrapperFactory = keyWrapperFactory;
+        this.maxOpenTenants = maxOpenTenants;
+        this.dataKeyCache = new DataKeyCache(maxCachedKeys);
+        PRNGFixes.apply();
+    }
+
+    // the tenant's SecretStorage, created with a new KeyWrapper if it isn't open
+    public SecretStorage get(@NonNull String tenant) {
+        List<SecretStorage> evicted;
+        SecretStorage secretStorage;
+        synchronized (this) {
+            secretStorage = tenants.get(tenant);
+            if (secretStorage != null) {
+                return secretStorage;
+            }
+            secretStorage = open(tenant);
+            tenants.put(tenant, secretStorage);
+            evicted = new ArrayList<>();
+            while (tenants.size() > maxOpenTenants) {
+                Map.Entry<String, SecretStorage> eldest = tenants.entrySet().iterator().next();
+                tenants.remove(eldest.getKey());
+                evicted.add(eldest.getValue());
+            }
+        }
+        for (SecretStorage idle : evicted) {
+            close(idle);
+        }
+        return secretStorage;
+    }
+
+    // lock and drop the tenant's SecretStorage, leaving its stored data and configuration
+    public void release(@NonNull String tenant) {
+        SecretStorage secretStorage;
+        synchronized (this) {
+            secretStorage = tenants.remove(tenant);
+        }
+        if (secretStorage != null) {
+            close(secretStorage);
+        }
+    }
+
+    // lock and drop every open tenant
+    public void releaseAll() {
+        List<SecretStorage> open;
+        synchronized (this) {
+            open = new ArrayList<>(tenants.values());
+            tenants.clear();
+        }
+        for (SecretStorage secretStorage : open) {
+            close(secretStorage);
+        }
+        dataKeyCache.invalidateAll();
+    }
+
+    public synchronized int getOpenTenantCount() {
+        return tenants.size();
+    }
+
+    int getCachedKeyCount() {
+        return dataKeyCache.size();
+    }
+
+    private SecretStorage open(String tenant) {
+        String separator = dataStorage.getSeparator();
+        if (tenant.isEmpty() || tenant.contains(separator)) {
+            throw new IllegalArgumentException("Tenant must be non-empty and not contain '" + separator + "'");
+        }
+        KeyWrapper keyWrapper = keyWrapperFactory.createKeyWrapper(tenant);
+        keyWrapper.getEditor().setStorageScope(tenant + separator + "dek", tenant + separator + "kek");
+        // the SecretStorage drops the tenant's cached keys when its KeyWrapper locks
+        return new SecretStorage(new ScopedDataStorage(tenant, dataStorage), dataProtectionSpec, keyWrapper, dataKeyGenerator, dataProtectionStrategy, dataKeyCache, tenant, null, null, null);
+    }
+
+    private void close(SecretStorage secretStorage) {
+        secretStorage.getKeyWrapper().getEditor().lock();
+        secretStorage.invalidateCachedKeys();
+    }
+
+    // creates a tenant's KeyWrapper; the pool scopes its key and config storage to the tenant
+    public interface KeyWrapperFactory {
+        KeyWrapper createKeyWrapper(String tenant);
+    }
+
+    public static class Builder {
+        private DataStorage dataStorage;
+        private DataProtectionSpec dataProtectionSpec;
+        private KeyWrapperFactory keyWrapperFactory;
+        private int maxOpenTenants = DEFAULT_MAX_OPEN_TENANTS;
+        private int maxCachedKeys = DEFAULT_MAX_CACHED_KEYS;
+
+        public Builder() {
+        }
+
+        public Builder dataStorage(DataStorage dataStorage) {
+            this.dataStorage = dataStorage;
+            return this;
+        }
+
+        public Builder dataProtectionSpec(DataProtectionSpec dataProtectionSpec) {
+            this.dataProtectionSpec = dataProtectionSpec;
+            return this;
+        }
+
+        public Builder keyWrapperFactory(KeyWrapperFactory keyWrapperFactory) {
+            this.keyWrapperFactory = keyWrapperFactory;
+            return this;
+        }
+
+        public Builder maxOpenTenants(int maxOpenTenants) {
+            this.maxOpenTenants = maxOpenTenants;
+            return this;
+        }
+
+        // tenants whose unwrapped data keys are kept in memory
+        public Builder maxCachedKeys(int maxCachedKeys) {
+            this.maxCachedKeys = maxCachedKeys;
+            return this;
+        }
+
+        public SecretStoragePool build() {
+            validateArguments();
+            return new SecretStoragePool(dataStorage, dataProtectionSpec, keyWrapperFactory, maxOpenTenants, maxCachedKeys);
+        }
+
+        private void validateArguments() {
+            if (dataStorage == null) {
+                throw new IllegalArgumentException("DataStorage required");
+            }
+            if (keyWrapperFactory == null) {
+                throw new IllegalArgumentException("KeyWrapperFactory required");
+            }
+            if (dataProtectionSpec == null) {
+                throw new IllegalArgumentException("DataProtectionSpec required");
+            }
+            if (maxOpenTenants <= 0 || maxCachedKeys <= 0) {
+                throw new IllegalArgumentException("Pool bounds must be positive");
+            }
+        }
+    }
+}
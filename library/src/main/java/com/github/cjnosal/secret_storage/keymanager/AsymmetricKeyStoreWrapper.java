@@ -30,6 +30,9 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 
@@ -42,6 +45,7 @@ public class AsymmetricKeyStoreWrapper extends BaseKeyWrapper {
     private final CipherSpec rootKekProtectionSpec;
     private final Context context;
     private final KeyPairGenSpec rootKekSpec;
+    private final KeyPairPregenerator pregenerator;
 
     // TODO refactor to extend KeyStoreWrapper to override symmetric key generation?
 
@@ -55,26 +59,62 @@ public class AsymmetricKeyStoreWrapper extends BaseKeyWrapper {
         this.rootKekSpec = keyStoreKekSpec;
         this.androidCrypto = new AndroidCrypto();
         this.rootKekProtectionSpec = keyStoreKeyProtectionSpec;
+        this.pregenerator = new KeyPairPregenerator(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws Exception {
+                return intermediateKekExists() ? null : generateKeyPair();
+            }
+        });
+    }
+
+    // generate the root key pair before the first unlock, which claims it instead of generating one
+    public Future<?> pregenerateKeyPair(Executor executor) {
+        return pregenerator.start(executor);
+    }
+
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        super.warmUp();
+        Cipher.getInstance(rootKekProtectionSpec.getCipherTransformation());
+        // caches the entry in the KeyStoreSession
+        String storageField = configStorage.getScopedId(ROOT_ENCRYPTION_KEY);
+        if (androidCrypto.hasEntry(storageField)) {
+            androidCrypto.loadPrivateKey(storageField);
+        }
     }
 
     @Override
     protected void eraseConfig() throws GeneralSecurityException, IOException {
         super.eraseConfig();
         androidCrypto.deleteEntry(configStorage.getScopedId(ROOT_ENCRYPTION_KEY));
+        pregenerator.reset();
+    }
+
+    @Override
+    public void setStorageScope(String keyScope, String configScope) {
+        super.setStorageScope(keyScope, configScope);
+        pregenerator.reset();
     }
 
     @Override
     void unlock(UnlockParams params) throws IOException, GeneralSecurityException {
         String storageField = configStorage.getScopedId(ROOT_ENCRYPTION_KEY);
-        if (!intermediateKekExists()) {
-            KeyPair encryptionKey = generateKeyPair();
+        Future<KeyWrapperConfig> pendingConfig = prefetchConfig();
+        // unused if the config has no intermediate KEK yet
+        Key storedKek = androidCrypto.hasEntry(storageField) ? androidCrypto.loadPrivateKey(storageField) : null;
+        KeyWrapperConfig config = UnlockExecutor.await(pendingConfig);
+        if (!intermediateKekExists(config)) {
+            KeyPair encryptionKey = pregenerator.claim();
+            if (encryptionKey == null) {
+                encryptionKey = generateKeyPair();
+            }
             Key rootKek = encryptionKey.getPublic();
             Cipher kekCipher = keyWrap.initWrapCipher(rootKek, rootKekProtectionSpec);
-            finishUnlock(null, kekCipher);
+            finishUnlock(config, null, kekCipher);
         } else {
-            Key rootKek = androidCrypto.loadPrivateKey(storageField);
-            Cipher kekCipher = keyWrap.initUnwrapCipher(rootKek, rootKekProtectionSpec, getWrappedIntermediateKek());
-            finishUnlock(kekCipher, null);
+            Key rootKek = storedKek != null ? storedKek : androidCrypto.loadPrivateKey(storageField);
+            Cipher kekCipher = keyWrap.initUnwrapCipher(rootKek, rootKekProtectionSpec, getWrappedIntermediateKek(config));
+            finishUnlock(config, kekCipher, null);
         }
     }
 
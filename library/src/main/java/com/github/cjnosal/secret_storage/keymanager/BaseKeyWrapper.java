@@ -21,14 +21,24 @@ import com.github.cjnosal.secret_storage.keymanager.data.DataKeyGenerator;
 import com.github.cjnosal.secret_storage.keymanager.keywrap.KeyWrap;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
 import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyGenSpec;
+import com.github.cjnosal.secret_storage.metrics.Metrics;
 import com.github.cjnosal.secret_storage.storage.DataStorage;
 import com.github.cjnosal.secret_storage.storage.ScopedDataStorage;
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
 public abstract class BaseKeyWrapper implements KeyWrapper {
@@ -38,6 +48,9 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
     private static final String DATA_SIGNING_KEY = "DATA_SIGNING_KEY";
 
     // config storage
+    private static final String CONFIG = "CONFIG";
+
+    // config fields
     private static final String INTERMEDIATE_KEK = "INTERMEDIATE_KEK";
 
     protected final ScopedDataStorage configStorage;
@@ -47,8 +60,13 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
     private final KeyGenSpec intermediateKekGenSpec;
     private final ScopedDataStorage keyStorage;
 
+    private final List<LockListener> lockListeners = new CopyOnWriteArrayList<>();
+
     private IntermediateKekProvider intermediateKekProvider;
-    private SecretKey intermediateKek;
+    private volatile SecretKey intermediateKek;
+    private volatile long lastUsedNanos;
+    private long unlockedAtNanos;
+    private UnlockFlight unlockFlight;
 
     public BaseKeyWrapper(CipherSpec dataKeyProtectionSpec, KeyGenSpec intermediateKekGenSpec, DataStorage configStorage, DataStorage keyStorage) {
         this.dataKeyProtectionSpec = dataKeyProtectionSpec;
@@ -63,42 +81,128 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
     }
 
     void lock() {
-        intermediateKek = null;
+        SecretKey kek;
+        synchronized (this) {
+            kek = intermediateKek;
+            intermediateKek = null;
+        }
+        if (kek != null) {
+            notifyLocked();
+        }
     }
 
-    // must call finishUnlock(String, Cipher, Cipher)
+    // lock if the intermediate KEK has been unlocked for maxUnlockNanos (counted from no earlier than sinceNanos) or
+    // unused for idleTimeoutNanos. Checked under the monitor unlock sets the KEK in, so an unlock or use since the
+    // caller last looked isn't thrown away. Returns the nanos left before it expires, or 0 if it is locked
+    long lockIfExpired(long sinceNanos, long maxUnlockNanos, long idleTimeoutNanos) {
+        synchronized (this) {
+            if (intermediateKek == null) {
+                return 0;
+            }
+            long unlockedAt = unlockedAtNanos - sinceNanos > 0 ? unlockedAtNanos : sinceNanos;
+            long remaining = Math.min(unlockedAt + maxUnlockNanos, lastUsedNanos + idleTimeoutNanos) - System.nanoTime();
+            if (remaining > 0) {
+                return remaining;
+            }
+            intermediateKek = null;
+        }
+        notifyLocked();
+        return 0;
+    }
+
+    // count a use of a data key that was cached instead of unwrapped, so idle timeouts don't lock a KeyWrapper in use
+    public void touch() {
+        if (intermediateKek != null) {
+            lastUsedNanos = System.nanoTime();
+        }
+    }
+
+    private void notifyLocked() {
+        for (LockListener listener : lockListeners) {
+            listener.onLock(this);
+        }
+    }
+
+    public void addLockListener(LockListener listener) {
+        lockListeners.add(listener);
+    }
+
+    public void removeLockListener(LockListener listener) {
+        lockListeners.remove(listener);
+    }
+
+    // must call finishUnlock(KeyWrapperConfig, Cipher, Cipher)
     abstract void unlock(UnlockParams params) throws IOException, GeneralSecurityException;
 
-    public @KeyPurpose.DataSecrecy SecretKey loadDataEncryptionKey(String keyType) throws GeneralSecurityException, IOException {
-        if (!isUnlocked()) {
-            throw new IllegalStateException("KeyWrapper not unlocked");
+    // concurrent unlocks with matching params share the one in flight instead of deriving the root KEK again
+    void coalesceUnlock(final UnlockParams params) throws IOException, GeneralSecurityException {
+        UnlockFlight flight;
+        boolean leading = false;
+        synchronized (this) {
+            flight = unlockFlight;
+            if (flight == null) {
+                flight = new UnlockFlight(params.copy(), new FutureTask<>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        unlock(params);
+                        return null;
+                    }
+                }));
+                unlockFlight = flight;
+                leading = true;
+            } else if (!flight.params.matches(params)) {
+                flight = null;
+            }
+        }
+        if (flight == null) {
+            // a different unlock is in flight
+            unlock(params);
+        } else if (leading) {
+            try {
+                flight.task.run();
+            } finally {
+                synchronized (this) {
+                    unlockFlight = null;
+                    flight.params.clear();
+                }
+            }
+            UnlockExecutor.await(flight.task);
+        } else {
+            params.clear();
+            UnlockExecutor.await(flight.task);
         }
+    }
+
+    public @KeyPurpose.DataSecrecy SecretKey loadDataEncryptionKey(String keyType) throws GeneralSecurityException, IOException {
+        SecretKey kek = useIntermediateKek();
         byte[] wrappedKey = keyStorage.load(DATA_ENCRYPTION_KEY);
-        return unwrapDataKey(intermediateKek, wrappedKey, keyType);
+        return unwrapDataKey(kek, wrappedKey, keyType);
     }
 
     public @KeyPurpose.DataIntegrity SecretKey loadDataSigningKey(String keyType) throws GeneralSecurityException, IOException {
-        if (!isUnlocked()) {
-            throw new IllegalStateException("KeyWrapper not unlocked");
-        }
+        SecretKey kek = useIntermediateKek();
         byte[] wrappedKey = keyStorage.load(DATA_SIGNING_KEY);
-        return unwrapDataKey(intermediateKek, wrappedKey, keyType);
+        return unwrapDataKey(kek, wrappedKey, keyType);
     }
 
     public void storeDataEncryptionKey(@KeyPurpose.DataSecrecy SecretKey key) throws GeneralSecurityException, IOException {
-        if (!isUnlocked()) {
-            throw new IllegalStateException("KeyWrapper not unlocked");
-        }
-        byte[] wrappedKey = wrapDataKey(intermediateKek, key);
+        byte[] wrappedKey = wrapDataKey(useIntermediateKek(), key);
         keyStorage.store(DATA_ENCRYPTION_KEY, wrappedKey);
     }
 
     public void storeDataSigningKey(@KeyPurpose.DataIntegrity SecretKey key) throws GeneralSecurityException, IOException {
-        if (!isUnlocked()) {
+        byte[] wrappedKey = wrapDataKey(useIntermediateKek(), key);
+        keyStorage.store(DATA_SIGNING_KEY, wrappedKey);
+    }
+
+    // read once so a concurrent lock can't clear the key mid-operation
+    private SecretKey useIntermediateKek() {
+        SecretKey kek = intermediateKek;
+        if (kek == null) {
             throw new IllegalStateException("KeyWrapper not unlocked");
         }
-        byte[] wrappedKey = wrapDataKey(intermediateKek, key);
-        keyStorage.store(DATA_SIGNING_KEY, wrappedKey);
+        lastUsedNanos = System.nanoTime();
+        return kek;
     }
 
     public boolean dataKeysExist() {
@@ -110,15 +214,84 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
     }
 
     protected void eraseConfig() throws GeneralSecurityException, IOException {
-        configStorage.delete(INTERMEDIATE_KEK);
+        configStorage.delete(CONFIG);
+        for (String field : getConfigFields()) {
+            configStorage.delete(field);
+        }
         lock();
     }
 
+    // config fields, which were stored as separate entries before the single config record
+    List<String> getConfigFields() {
+        List<String> fields = new ArrayList<>();
+        fields.add(INTERMEDIATE_KEK);
+        return fields;
+    }
+
+    KeyWrapperConfig loadConfig() throws IOException {
+        byte[] encoded = configStorage.loadIfPresent(CONFIG);
+        if (encoded != null) {
+            return KeyWrapperConfig.decode(encoded);
+        }
+        return migrateConfig();
+    }
+
+    // reads the config on an unlock worker while the caller loads its root key
+    Future<KeyWrapperConfig> prefetchConfig() {
+        return UnlockExecutor.submit(new Callable<KeyWrapperConfig>() {
+            @Override
+            public KeyWrapperConfig call() throws IOException {
+                return loadConfig();
+            }
+        });
+    }
+
+    void storeConfig(KeyWrapperConfig config) throws IOException {
+        configStorage.store(CONFIG, config.encode());
+    }
+
+    // false if the config can't be read
+    boolean hasConfig(String field) {
+        try {
+            return loadConfig().contains(field);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // the record is stored before the separate entries are deleted, so an interrupted migration is never lost
+    private KeyWrapperConfig migrateConfig() throws IOException {
+        KeyWrapperConfig config = new KeyWrapperConfig();
+        List<String> fields = getConfigFields();
+        for (String field : fields) {
+            byte[] value = configStorage.loadIfPresent(field);
+            if (value != null) {
+                config.put(field, value);
+            }
+        }
+        if (!config.isEmpty()) {
+            storeConfig(config);
+            for (String field : fields) {
+                configStorage.delete(field);
+            }
+        }
+        return config;
+    }
+
     public void eraseDataKeys() throws GeneralSecurityException, IOException {
         keyStorage.delete(DATA_ENCRYPTION_KEY);
         keyStorage.delete(DATA_SIGNING_KEY);
     }
 
+    public void warmUp() throws GeneralSecurityException, IOException {
+        Cipher.getInstance(dataKeyProtectionSpec.getCipherTransformation());
+        KeyGenerator.getInstance(intermediateKekGenSpec.getKeygenAlgorithm());
+        // first reads are slow (e.g. SharedPreferences loads its whole file)
+        configStorage.loadIfPresent(CONFIG);
+        keyStorage.loadIfPresent(DATA_ENCRYPTION_KEY);
+        keyStorage.loadIfPresent(DATA_SIGNING_KEY);
+    }
+
     // TODO can this be done on initialization?
     public void setStorageScope(String keyScope, String configScope) {
         keyStorage.setScope(keyScope);
@@ -126,23 +299,57 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
     }
 
     protected boolean intermediateKekExists() {
-        return configStorage.exists(INTERMEDIATE_KEK);
+        return hasConfig(INTERMEDIATE_KEK);
     }
 
-    protected void finishUnlock(Cipher unwrapCipher, Cipher wrapCipher) throws GeneralSecurityException, IOException {
-        if (unwrapCipher != null) {
-            byte[] wrappedKey = configStorage.load(INTERMEDIATE_KEK);
-            intermediateKek = keyWrap.unwrap(unwrapCipher, wrappedKey, intermediateKekGenSpec.getKeygenAlgorithm());
-        } else {
-            intermediateKek = intermediateKekProvider.getIntermediateKek(intermediateKekGenSpec);
-        }
+    boolean intermediateKekExists(KeyWrapperConfig config) {
+        return config.contains(INTERMEDIATE_KEK);
+    }
+
+    // stores the config if a wrapCipher is given
+    void finishUnlock(KeyWrapperConfig config, Cipher unwrapCipher, Cipher wrapCipher) throws GeneralSecurityException, IOException {
+        long start = Metrics.start();
+        Span span = Tracing.begin("key_wrapper.finish_unlock");
+        SecretKey kek;
+        try {
+            if (unwrapCipher != null) {
+                byte[] wrappedKey = config.require(INTERMEDIATE_KEK);
+                kek = keyWrap.unwrap(unwrapCipher, wrappedKey, intermediateKekGenSpec.getKeygenAlgorithm());
+            } else {
+                kek = intermediateKekProvider.getIntermediateKek(intermediateKekGenSpec);
+            }
 
-        if (wrapCipher != null) {
-            byte[] wrappedKey = keyWrap.wrap(wrapCipher, intermediateKek);
-            configStorage.store(INTERMEDIATE_KEK, wrappedKey);
+            if (wrapCipher != null) {
+                byte[] wrappedKey = keyWrap.wrap(wrapCipher, kek);
+                config.put(INTERMEDIATE_KEK, wrappedKey);
+                storeConfig(config);
+            }
+            Metrics.stop(Metrics.UNLOCK_UNWRAP, start);
+        } finally {
+            span.end();
+        }
+        boolean wasUnlocked;
+        synchronized (this) {
+            wasUnlocked = intermediateKek != null;
+            intermediateKek = kek;
+            lastUsedNanos = System.nanoTime();
+            if (!wasUnlocked) {
+                unlockedAtNanos = lastUsedNanos;
+            }
+        }
+        if (!wasUnlocked) {
+            for (LockListener listener : lockListeners) {
+                listener.onUnlock(this);
+            }
         }
     }
 
+    // protect the unlocked intermediate KEK with a new root KEK. The caller stores the config
+    void rewrapIntermediateKek(KeyWrapperConfig config, Cipher wrapCipher) throws GeneralSecurityException, IOException {
+        byte[] wrappedKey = keyWrap.wrap(wrapCipher, useIntermediateKek());
+        config.put(INTERMEDIATE_KEK, wrappedKey);
+    }
+
     private byte[] wrapDataKey(Key kek, SecretKey key) throws GeneralSecurityException, IOException {
         return keyWrap.wrap(kek, key, dataKeyProtectionSpec);
     }
@@ -155,8 +362,8 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
         this.intermediateKekProvider = provider;
     }
 
-    protected byte[] getWrappedIntermediateKek() throws IOException {
-        return configStorage.load(INTERMEDIATE_KEK);
+    byte[] getWrappedIntermediateKek(KeyWrapperConfig config) throws IOException {
+        return config.require(INTERMEDIATE_KEK);
     }
 
     SecretKey getIntermediateKek() {
@@ -188,7 +395,7 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
         public NoParamsEditor() {}
 
         public void unlock() throws GeneralSecurityException, IOException {
-            BaseKeyWrapper.this.unlock(new UnlockParams());
+            coalesceUnlock(new UnlockParams());
         }
 
         public void unlock(Listener listener) {
@@ -202,5 +409,27 @@ public abstract class BaseKeyWrapper implements KeyWrapper {
     }
 
     class UnlockParams {
+
+        boolean matches(UnlockParams other) {
+            return getClass() == other.getClass();
+        }
+
+        // held by an in-flight unlock for matching, since the caller's params are cleared while unlocking
+        UnlockParams copy() {
+            return this;
+        }
+
+        void clear() {
+        }
+    }
+
+    private static class UnlockFlight {
+        final UnlockParams params;
+        final FutureTask<Void> task;
+
+        UnlockFlight(UnlockParams params, FutureTask<Void> task) {
+            this.params = params;
+            this.task = task;
+        }
     }
 }
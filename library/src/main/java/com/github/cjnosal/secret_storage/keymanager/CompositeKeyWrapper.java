@@ -29,24 +29,31 @@ import javax.crypto.SecretKey;
 public class CompositeKeyWrapper implements KeyWrapper {
 
     private final List<KeyWrapper> keyWrappers;
+    private final CompositeEditor editor = new CompositeEditor();
+
+    // an unlocked wrapper holding the shared intermediate KEK, kept current by lock events. Events are delivered
+    // outside the wrappers' locks, so it is checked again before use
+    private volatile BaseKeyWrapper unlockedWrapper;
+    // wrappers share the key storage scope, and the data keys stay until eraseDataKeys
+    private volatile boolean dataKeysExist;
 
     public CompositeKeyWrapper(List<KeyWrapper> keyWrappers) {
         this.keyWrappers = keyWrappers;
         IntermediateKekProvider intermediateKekProvider = new CompositeIntermediateKekProvider(new DataKeyGenerator());
+        LockListener unlockTracker = new UnlockTracker();
         for (KeyWrapper kw : keyWrappers) {
             ((BaseKeyWrapper) kw).setIntermediateKekProvider(intermediateKekProvider);
+            ((BaseKeyWrapper) kw).addLockListener(unlockTracker);
+        }
+        synchronized (this) {
+            unlockedWrapper = findUnlockedWrapper();
         }
-        getEditor().setStorageScope("shared", "kek");
+        editor.setStorageScope("shared", "kek");
         // TODO validate all keywrappers use same key storage, same key protection
     }
 
     private boolean isUnlocked() {
-        for (KeyWrapper kw : keyWrappers) {
-            if (kw.getEditor().isUnlocked()) {
-                return true;
-            }
-        }
-        return false;
+        return getTrackedWrapper() != null;
     }
 
     @Override
@@ -69,10 +76,15 @@ public class CompositeKeyWrapper implements KeyWrapper {
         getUnlockedWrapper().storeDataSigningKey(key);
     }
 
+    // only a positive result is cached, since the keys may be stored through another instance
     @Override
     public boolean dataKeysExist() {
+        if (dataKeysExist) {
+            return true;
+        }
         for (KeyWrapper kw : keyWrappers) {
             if (kw.dataKeysExist()) {
+                dataKeysExist = true;
                 return true;
             }
         }
@@ -81,17 +93,26 @@ public class CompositeKeyWrapper implements KeyWrapper {
 
     @Override
     public KeyWrapper.Editor getEditor() {
-        return new CompositeEditor();
+        return editor;
     }
 
     @Override
     public void eraseDataKeys() throws GeneralSecurityException, IOException {
+        dataKeysExist = false;
         for (KeyWrapper kw : keyWrappers) {
             kw.eraseDataKeys();
         }
     }
 
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        for (KeyWrapper kw : keyWrappers) {
+            kw.warmUp();
+        }
+    }
+
     private void setStorageScope(String keyScope, String configScope) {
+        dataKeysExist = false;
         int index = 0;
         for (KeyWrapper kw : keyWrappers) {
             kw.getEditor().setStorageScope(keyScope, configScope + index);
@@ -100,25 +121,34 @@ public class CompositeKeyWrapper implements KeyWrapper {
     }
 
     private KeyWrapper getUnlockedWrapper() throws GeneralSecurityException {
-        boolean kekExists = hasIntermediateKek();
-        for (KeyWrapper kw : keyWrappers) {
-            if (kw.getEditor().isUnlocked() && (!kekExists || ((BaseKeyWrapper)kw).getIntermediateKek() != null)) {
-                return kw;
-            }
+        KeyWrapper kw = getTrackedWrapper();
+        if (kw == null) {
+            throw new GeneralSecurityException("No key wrappers are unlocked");
         }
-        throw new GeneralSecurityException("No key wrappers are unlocked");
+        return kw;
     }
 
-    private boolean hasIntermediateKek() {
+    // the tracked wrapper, or another unlocked one if it was locked without a matching event, e.g. by a lock()
+    // landing between a wrapper's unlock and its onUnlock
+    private BaseKeyWrapper getTrackedWrapper() {
+        BaseKeyWrapper kw = unlockedWrapper;
+        if (kw != null && kw.getIntermediateKek() != null) {
+            return kw;
+        }
+        synchronized (this) {
+            unlockedWrapper = findUnlockedWrapper();
+            return unlockedWrapper;
+        }
+    }
+
+    // scans the wrappers' state; only needed when the tracked wrapper locks
+    private BaseKeyWrapper findUnlockedWrapper() {
         for (KeyWrapper kw : keyWrappers) {
-            if (kw.getEditor().isUnlocked()) {
-                SecretKey key = ((BaseKeyWrapper)kw).getIntermediateKek();
-                if (key != null) {
-                    return true;
-                }
+            if (((BaseKeyWrapper) kw).getIntermediateKek() != null) {
+                return (BaseKeyWrapper) kw;
             }
         }
-        return false;
+        return null;
     }
 
     public class CompositeEditor implements KeyWrapper.Editor {
@@ -166,13 +196,34 @@ public class CompositeKeyWrapper implements KeyWrapper {
 
         @Override
         public SecretKey getIntermediateKek(KeyGenSpec spec) throws GeneralSecurityException {
-            SecretKey intermediateKek;
-            if (hasIntermediateKek()) {
-                intermediateKek = ((BaseKeyWrapper) getUnlockedWrapper()).getIntermediateKek();
-            } else {
+            BaseKeyWrapper kw = getTrackedWrapper();
+            SecretKey intermediateKek = kw != null ? kw.getIntermediateKek() : null;
+            if (intermediateKek == null) {
                 intermediateKek = super.getIntermediateKek(spec);
             }
             return intermediateKek;
         }
     }
+
+    private class UnlockTracker implements LockListener {
+
+        @Override
+        public void onUnlock(KeyWrapper keyWrapper) {
+            synchronized (CompositeKeyWrapper.this) {
+                // the wrapper may have been locked again before this event arrived
+                if (unlockedWrapper == null && ((BaseKeyWrapper) keyWrapper).getIntermediateKek() != null) {
+                    unlockedWrapper = (BaseKeyWrapper) keyWrapper;
+                }
+            }
+        }
+
+        @Override
+        public void onLock(KeyWrapper keyWrapper) {
+            synchronized (CompositeKeyWrapper.this) {
+                if (unlockedWrapper == keyWrapper) {
+                    unlockedWrapper = findUnlockedWrapper();
+                }
+            }
+        }
+    }
 }
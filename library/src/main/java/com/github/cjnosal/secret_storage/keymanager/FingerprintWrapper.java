@@ -61,14 +61,15 @@ public class FingerprintWrapper extends KeyStoreWrapper {
         FingerprintCallback fingerprintCallback;
         Cipher kekCipher;
         String storageField = configStorage.getScopedId(ROOT_ENCRYPTION_KEY);
-        if (!intermediateKekExists()) {
+        KeyWrapperConfig config = loadConfig();
+        if (!intermediateKekExists(config)) {
             Key rootKek = androidCrypto.generateSecretKey(keyGenSpec.getKeygenAlgorithm(), getKeyGenParameterSpec(storageField));
             kekCipher = keyWrap.initWrapCipher(rootKek, intermediateKekProtectionSpec);
-            fingerprintCallback = new FingerprintCallback(fingerprintParams.getAuthenticationCallback(), fingerprintParams.getListener(), true);
+            fingerprintCallback = new FingerprintCallback(fingerprintParams.getAuthenticationCallback(), fingerprintParams.getListener(), config, true);
         } else {
             Key rootKek = androidCrypto.loadSecretKey(storageField);
-            kekCipher = keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek());
-            fingerprintCallback = new FingerprintCallback(fingerprintParams.getAuthenticationCallback(), fingerprintParams.getListener(), false);
+            kekCipher = keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek(config));
+            fingerprintCallback = new FingerprintCallback(fingerprintParams.getAuthenticationCallback(), fingerprintParams.getListener(), config, false);
         }
 
         fingerprintManagerCompat.authenticate(new FingerprintManagerCompat.CryptoObject(kekCipher), 0, fingerprintParams.getCancellationSignal(), fingerprintCallback, fingerprintParams.getHandler());
@@ -79,7 +80,7 @@ public class FingerprintWrapper extends KeyStoreWrapper {
         FingerprintManagerCompat fingerprintManagerCompat = FingerprintManagerCompat.from(fingerprintParams.getContext());
         checkFingerprintStatus(fingerprintParams, fingerprintManagerCompat);
 
-        FingerprintCallback fingerprintCallback = new FingerprintCallback(fingerprintParams.getAuthenticationCallback(), fingerprintParams.getListener(), false);
+        FingerprintCallback fingerprintCallback = new FingerprintCallback(fingerprintParams.getAuthenticationCallback(), fingerprintParams.getListener(), null, false);
 
         fingerprintManagerCompat.authenticate(null, 0, fingerprintParams.getCancellationSignal(), fingerprintCallback, fingerprintParams.getHandler());
     }
@@ -137,11 +138,14 @@ public class FingerprintWrapper extends KeyStoreWrapper {
 
         private final FingerprintManagerCompat.AuthenticationCallback wrappedCallback;
         private final Listener listener;
+        private final KeyWrapperConfig config;
         private final boolean firstUnlock;
 
-        public FingerprintCallback(@Nullable FingerprintManagerCompat.AuthenticationCallback wrappedCallback, @Nullable Listener listener, boolean firstUnlock) {
+        // config is only needed when authenticating with a CryptoObject
+        public FingerprintCallback(@Nullable FingerprintManagerCompat.AuthenticationCallback wrappedCallback, @Nullable Listener listener, @Nullable KeyWrapperConfig config, boolean firstUnlock) {
             this.wrappedCallback = wrappedCallback;
             this.listener = listener;
+            this.config = config;
             this.firstUnlock = firstUnlock;
         }
 
@@ -171,9 +175,9 @@ public class FingerprintWrapper extends KeyStoreWrapper {
                 FingerprintManagerCompat.CryptoObject cryptoObject = result.getCryptoObject();
                 if (cryptoObject != null) {
                     if (firstUnlock) {
-                        finishUnlock(null, cryptoObject.getCipher());
+                        finishUnlock(config, null, cryptoObject.getCipher());
                     } else {
-                        finishUnlock(cryptoObject.getCipher(), null);
+                        finishUnlock(config, cryptoObject.getCipher(), null);
                     }
                 }
                 if (wrappedCallback != null) {
@@ -0,0 +1,81 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Generates a KeyStore key pair ahead of the unlock that needs it. The unlock claims the pending generation
+ * instead of starting its own, so the alias is only generated once.
+ */
+class KeyPairPregenerator {
+
+    // returns null if the key pair is no longer needed
+    private final Callable<KeyPair> generator;
+
+    private FutureTask<KeyPair> pending;
+    private boolean claimed;
+
+    KeyPairPregenerator(Callable<KeyPair> generator) {
+        this.generator = generator;
+    }
+
+    // no-op once a key pair has been claimed
+    synchronized Future<?> start(Executor executor) {
+        if (claimed) {
+            FutureTask<Void> done = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            done.run();
+            return done;
+        }
+        if (pending == null) {
+            pending = new FutureTask<>(generator);
+            executor.execute(pending);
+        }
+        return pending;
+    }
+
+    // waits for a pregeneration in progress, or runs one that hasn't started yet on the calling thread
+    @Nullable
+    KeyPair claim() throws GeneralSecurityException, IOException {
+        FutureTask<KeyPair> task;
+        synchronized (this) {
+            claimed = true;
+            task = pending != null ? pending : new FutureTask<>(generator);
+            pending = null;
+        }
+        task.run();
+        return UnlockExecutor.await(task);
+    }
+
+    // the key pair was erased, so it can be pregenerated again
+    synchronized void reset() {
+        claimed = false;
+        pending = null;
+    }
+}
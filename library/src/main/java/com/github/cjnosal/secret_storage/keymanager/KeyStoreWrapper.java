@@ -30,6 +30,7 @@ import com.github.cjnosal.secret_storage.storage.DataStorage;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 
@@ -59,14 +60,29 @@ public class KeyStoreWrapper extends BaseKeyWrapper {
     @Override
     void unlock(UnlockParams params) throws IOException, GeneralSecurityException {
         String storageField = configStorage.getScopedId(ROOT_ENCRYPTION_KEY);
-        if (!intermediateKekExists()) {
+        Future<KeyWrapperConfig> pendingConfig = prefetchConfig();
+        // unused if the config has no intermediate KEK yet
+        Key storedKek = androidCrypto.hasEntry(storageField) ? androidCrypto.loadSecretKey(storageField) : null;
+        KeyWrapperConfig config = UnlockExecutor.await(pendingConfig);
+        if (!intermediateKekExists(config)) {
             Key rootKek = androidCrypto.generateSecretKey(keyGenSpec.getKeygenAlgorithm(), getKeyGenParameterSpec(storageField));
             Cipher kekCipher = keyWrap.initWrapCipher(rootKek, intermediateKekProtectionSpec);
-            finishUnlock(null, kekCipher);
+            finishUnlock(config, null, kekCipher);
         } else {
-            Key rootKek = androidCrypto.loadSecretKey(storageField);
-            Cipher kekCipher = keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek());
-            finishUnlock(kekCipher, null);
+            Key rootKek = storedKek != null ? storedKek : androidCrypto.loadSecretKey(storageField);
+            Cipher kekCipher = keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek(config));
+            finishUnlock(config, kekCipher, null);
+        }
+    }
+
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        super.warmUp();
+        Cipher.getInstance(intermediateKekProtectionSpec.getCipherTransformation());
+        // caches the entry in the KeyStoreSession
+        String storageField = configStorage.getScopedId(ROOT_ENCRYPTION_KEY);
+        if (androidCrypto.hasEntry(storageField)) {
+            androidCrypto.loadSecretKey(storageField);
         }
     }
 
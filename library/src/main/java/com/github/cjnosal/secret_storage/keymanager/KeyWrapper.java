@@ -37,6 +37,9 @@ public interface KeyWrapper {
 
     void eraseDataKeys() throws GeneralSecurityException, IOException;
 
+    // instantiate primitives and read configuration ahead of unlock; safe to call from a background thread
+    void warmUp() throws GeneralSecurityException, IOException;
+
     KeyWrapper.Editor getEditor();
 
     interface Editor {
@@ -50,4 +53,10 @@ public interface KeyWrapper {
         void onSuccess();
         void onError(Exception e);
     }
+
+    // called on the thread that unlocked or locked the KeyWrapper
+    interface LockListener {
+        void onUnlock(KeyWrapper keyWrapper);
+        void onLock(KeyWrapper keyWrapper);
+    }
 }
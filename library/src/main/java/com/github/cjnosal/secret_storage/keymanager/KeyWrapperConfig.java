@@ -0,0 +1,98 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.storage.util.DataStreamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A KeyWrapper's configuration fields, stored as one versioned record so unlock reads it once and updates replace it
+ * atomically. Changes are only persisted by BaseKeyWrapper.storeConfig.
+ */
+class KeyWrapperConfig {
+
+    private static final int VERSION = 1;
+
+    private final DataStreamUtil dataStreamUtil = new DataStreamUtil();
+    private final Map<String, byte[]> fields = new TreeMap<>();
+
+    @Nullable byte[] get(String name) {
+        return fields.get(name);
+    }
+
+    @NonNull byte[] require(String name) throws IOException {
+        byte[] value = fields.get(name);
+        if (value == null) {
+            throw new IOException("Config field " + name + " not present");
+        }
+        return value;
+    }
+
+    void put(String name, byte[] value) {
+        fields.put(name, value);
+    }
+
+    void remove(String name) {
+        fields.remove(name);
+    }
+
+    boolean contains(String name) {
+        return fields.containsKey(name);
+    }
+
+    boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeInt(fields.size());
+        for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+            out.writeUTF(field.getKey());
+            dataStreamUtil.writeByteArray(field.getValue(), out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static KeyWrapperConfig decode(byte[] encoded) throws IOException {
+        KeyWrapperConfig config = new KeyWrapperConfig();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported config version " + version);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String name = in.readUTF();
+            config.put(name, config.dataStreamUtil.readByteArray(in));
+        }
+        return config;
+    }
+}
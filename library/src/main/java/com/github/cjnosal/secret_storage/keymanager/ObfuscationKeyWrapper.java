@@ -16,27 +16,55 @@
 
 package com.github.cjnosal.secret_storage.keymanager;
 
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
+import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
 import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.KeyDerivationSpec;
 import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyGenSpec;
 import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * This KeyWrapper is NOT SECURE!
  * Should only be used when AndroidKeyStore is not available and a user password can not be requested.
+ *
+ * With fastUnlock the intermediate KEK is protected by a key hashed from a random per-install seed instead of
+ * running PBKDF2 over a constant password. Config written by the password mode is migrated on the first unlock.
+ * Migrated config is unlocked with the seed whether or not fastUnlock is set.
  */
 @Deprecated
 public class ObfuscationKeyWrapper extends PasswordKeyWrapper {
 
+    private static final String OBFUSCATION_SEED = "OBFUSCATION_SEED";
+    private static final String OBFUSCATION_CONTEXT = "SecretStorage obfuscation key";
+    private static final int SEED_SIZE = 32;
+
+    private final boolean fastUnlock;
+
     public ObfuscationKeyWrapper(PasswordKeyWrapper.CryptoConfig cryptoConfig, DataStorage configStorage, DataStorage keyStorage) {
-        this(cryptoConfig.getDerivationSpec(), cryptoConfig.getKeyGenSpec(), cryptoConfig.getKeyProtectionSpec(), configStorage, keyStorage);
+        this(cryptoConfig, configStorage, keyStorage, false);
+    }
+
+    public ObfuscationKeyWrapper(PasswordKeyWrapper.CryptoConfig cryptoConfig, DataStorage configStorage, DataStorage keyStorage, boolean fastUnlock) {
+        this(cryptoConfig.getDerivationSpec(), cryptoConfig.getKeyGenSpec(), cryptoConfig.getKeyProtectionSpec(), configStorage, keyStorage, fastUnlock);
     }
 
     public ObfuscationKeyWrapper(KeyDerivationSpec derivationSpec, KeyGenSpec keyGenSpec, CipherSpec keyProtectionSpec, DataStorage configStorage, DataStorage keyStorage) {
+        this(derivationSpec, keyGenSpec, keyProtectionSpec, configStorage, keyStorage, false);
+    }
+
+    public ObfuscationKeyWrapper(KeyDerivationSpec derivationSpec, KeyGenSpec keyGenSpec, CipherSpec keyProtectionSpec, DataStorage configStorage, DataStorage keyStorage, boolean fastUnlock) {
         super(derivationSpec, keyGenSpec, keyProtectionSpec, configStorage, keyStorage);
+        this.fastUnlock = fastUnlock;
     }
 
     @Override
@@ -44,8 +72,39 @@ public class ObfuscationKeyWrapper extends PasswordKeyWrapper {
         return new NoParamsEditor();
     }
 
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        super.warmUp();
+        MessageDigest.getInstance(SecurityAlgorithms.MessageDigest_SHA_256);
+    }
+
+    @Override
+    List<String> getConfigFields() {
+        List<String> fields = super.getConfigFields();
+        fields.add(OBFUSCATION_SEED);
+        return fields;
+    }
+
     void unlock(UnlockParams unlockParams) throws IOException, GeneralSecurityException {
-        char[] defaultPassword = new char[] {'d', 'e', 'f', 'a', 'u', 'l', 't', '_', 'o', 'b', 'f', 'u', 's', 'c', 'a', 't', 'i', 'o', 'n'};
+        KeyWrapperConfig config = loadConfig();
+        if (!isPasswordSet(config) && config.contains(OBFUSCATION_SEED)) {
+            // already migrated, e.g. by a newer version before a rollback. The password mode would find no password
+            // and replace the intermediate KEK, losing every data key, so unlock with the seed in either mode
+            Key rootKek = getObfuscationKey(config.require(OBFUSCATION_SEED));
+            finishUnlock(config, keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek(config)), null);
+        } else if (!fastUnlock) {
+            passwordUnlock();
+        } else if (isPasswordSet(config)) {
+            migrate(config);
+        } else {
+            byte[] seed = RandomSource.nextBytes(SEED_SIZE);
+            config.put(OBFUSCATION_SEED, seed);
+            finishUnlock(config, null, keyWrap.initWrapCipher(getObfuscationKey(seed), intermediateKekProtectionSpec));
+        }
+    }
+
+    private void passwordUnlock() throws IOException, GeneralSecurityException {
+        char[] defaultPassword = getDefaultPassword();
         try {
             if (isPasswordSet()) {
                 super.unlock(new PasswordParams(defaultPassword));
@@ -53,10 +112,54 @@ public class ObfuscationKeyWrapper extends PasswordKeyWrapper {
                 setPassword(defaultPassword);
             }
         } finally {
-            for (int i = 0; i < defaultPassword.length; ++i) {
-                defaultPassword[i] = ' ';
+            Arrays.fill(defaultPassword, ' ');
+        }
+    }
+
+    // unlock with the password config one last time and rewrap the intermediate KEK with the obfuscation key.
+    // The seed, rewrapped key and removal of the password config are stored in one write.
+    private void migrate(KeyWrapperConfig config) throws IOException, GeneralSecurityException {
+        if (config.contains(OBFUSCATION_SEED)) {
+            // an interrupted migration from the separate config entries may have rewrapped the key already
+            Key rootKek = getObfuscationKey(config.require(OBFUSCATION_SEED));
+            try {
+                finishUnlock(config, keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek(config)), null);
+                deletePasswordConfig(config);
+                storeConfig(config);
+                return;
+            } catch (GeneralSecurityException e) {
+                // still wrapped by the password key
             }
         }
+        char[] defaultPassword = getDefaultPassword();
+        Key passwordKek;
+        try {
+            passwordKek = deriveRootKek(config, defaultPassword);
+        } finally {
+            Arrays.fill(defaultPassword, ' ');
+        }
+        finishUnlock(config, keyWrap.initUnwrapCipher(passwordKek, intermediateKekProtectionSpec, getWrappedIntermediateKek(config)), null);
+
+        byte[] seed = RandomSource.nextBytes(SEED_SIZE);
+        config.put(OBFUSCATION_SEED, seed);
+        rewrapIntermediateKek(config, keyWrap.initWrapCipher(getObfuscationKey(seed), intermediateKekProtectionSpec));
+        deletePasswordConfig(config);
+        storeConfig(config);
+    }
+
+    private char[] getDefaultPassword() {
+        return new char[] {'d', 'e', 'f', 'a', 'u', 'l', 't', '_', 'o', 'b', 'f', 'u', 's', 'c', 'a', 't', 'i', 'o', 'n'};
     }
 
+    // a single hash: the seed is stored next to the wrapped key, so iterating adds no protection
+    private Key getObfuscationKey(byte[] seed) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance(SecurityAlgorithms.MessageDigest_SHA_256);
+        digest.update(Encoding.utf8Decode(OBFUSCATION_CONTEXT));
+        byte[] hash = digest.digest(seed);
+        try {
+            return new SecretKeySpec(hash, 0, keyGenSpec.getKeySize() / 8, keyGenSpec.getKeygenAlgorithm());
+        } finally {
+            Arrays.fill(hash, (byte) 0);
+        }
+    }
 }
@@ -17,34 +17,41 @@
 package com.github.cjnosal.secret_storage.keymanager;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.KeyDerivationCalibrator;
 import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.KeyDerivationSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.KeyDerivationStrategy;
 import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyGenSpec;
+import com.github.cjnosal.secret_storage.metrics.Metrics;
 import com.github.cjnosal.secret_storage.storage.DataStorage;
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
-import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class PasswordKeyWrapper extends BaseKeyWrapper {
 
     private static final String ENC_SALT = "ENC_SALT";
     private static final String VERIFICATION = "VERIFICATION";
-
-    final SecureRandom secureRandom;
+    private static final String ROUNDS = "ROUNDS";
 
     final KeyDerivationSpec derivationSpec;
     final KeyGenSpec keyGenSpec;
     final CipherSpec intermediateKekProtectionSpec;
+    final KeyDerivationStrategy derivationStrategy = new KeyDerivationStrategy();
 
     public PasswordKeyWrapper(CryptoConfig config, DataStorage configStorage, DataStorage keyStorage) {
         this(config.getDerivationSpec(), config.getKeyGenSpec(), config.getKeyProtectionSpec(), configStorage, keyStorage);
@@ -55,14 +62,21 @@ public class PasswordKeyWrapper extends BaseKeyWrapper {
         this.intermediateKekProtectionSpec = keyProtectionSpec;
         this.derivationSpec = derivationSpec;
         this.keyGenSpec = keyGenSpec;
-        this.secureRandom = new SecureRandom();
     }
 
     @Override
-    protected void eraseConfig() throws GeneralSecurityException, IOException {
-        super.eraseConfig();
-        configStorage.delete(VERIFICATION);
-        configStorage.delete(ENC_SALT);
+    List<String> getConfigFields() {
+        List<String> fields = super.getConfigFields();
+        fields.add(ENC_SALT);
+        fields.add(VERIFICATION);
+        fields.add(ROUNDS);
+        return fields;
+    }
+
+    void deletePasswordConfig(KeyWrapperConfig config) {
+        config.remove(VERIFICATION);
+        config.remove(ENC_SALT);
+        config.remove(ROUNDS);
     }
 
     @Override
@@ -70,81 +84,144 @@ public class PasswordKeyWrapper extends BaseKeyWrapper {
         return new PasswordEditor();
     }
 
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        super.warmUp();
+        derivationStrategy.warmUp(derivationSpec);
+        Cipher.getInstance(intermediateKekProtectionSpec.getCipherTransformation());
+    }
+
     void setPassword(@NonNull char[] password) throws IOException, GeneralSecurityException {
-        if (!isPasswordSet()) {
-            Key rootKek = deriveNewRootKek(password);
+        Future<?> prefetched = prefetchDerivationInputs();
+        KeyWrapperConfig config = loadConfig();
+        if (!isPasswordSet(config)) {
+            Key rootKek = deriveNewRootKek(config, password, prefetched);
             Cipher kekCipher = keyWrap.initWrapCipher(rootKek, intermediateKekProtectionSpec);
-            finishUnlock(null, kekCipher);
+            finishUnlock(config, null, kekCipher);
         } else {
             throw new PasswordAlreadySetException("Password already set. Use unlock.");
         }
     }
 
     @NonNull
-    private Key deriveNewRootKek(@NonNull char[] password) throws GeneralSecurityException, IOException {
+    private Key deriveNewRootKek(KeyWrapperConfig config, @NonNull char[] password, @Nullable Future<?> prefetched) throws GeneralSecurityException, IOException {
         byte[] salt = generateSalt();
-        byte[] generated = derive(password, salt);
+        int rounds;
+        if (derivationSpec.isCalibrated()) {
+            rounds = new KeyDerivationCalibrator().calibrate(derivationSpec, keyGenSpec.getKeySize() * 2);
+            config.put(ROUNDS, ByteBuffer.allocate(4).putInt(rounds).array());
+        } else {
+            rounds = derivationSpec.getRounds();
+            config.remove(ROUNDS);
+        }
+        byte[] generated = timedDerive(password, salt, rounds, prefetched);
         byte[] verification = getVerification(generated);
-        configStorage.store(ENC_SALT, salt);
-        configStorage.store(VERIFICATION, verification);
+        config.put(ENC_SALT, salt);
+        config.put(VERIFICATION, verification);
 
         return getRootKek(generated);
     }
 
     @Override
     void unlock(UnlockParams params) throws IOException, GeneralSecurityException {
-        Key rootKek = deriveRootKek(((PasswordParams) params).getPassword());
-        Cipher kekCipher = keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek());
-        finishUnlock(kekCipher, null);
+        Future<?> prefetched = prefetchDerivationInputs();
+        KeyWrapperConfig config = loadConfig();
+        Key rootKek = deriveRootKek(config, ((PasswordParams) params).getPassword(), prefetched);
+        Cipher kekCipher = keyWrap.initUnwrapCipher(rootKek, intermediateKekProtectionSpec, getWrappedIntermediateKek(config));
+        finishUnlock(config, kekCipher, null);
     }
 
     @NonNull
-    private Key deriveRootKek(char[] password) throws IOException, GeneralSecurityException {
-        if (!isPasswordSet()) {
+    Key deriveRootKek(KeyWrapperConfig config, char[] password) throws IOException, GeneralSecurityException {
+        return deriveRootKek(config, password, null);
+    }
+
+    @NonNull
+    private Key deriveRootKek(KeyWrapperConfig config, char[] password, @Nullable Future<?> prefetched) throws IOException, GeneralSecurityException {
+        if (!isPasswordSet(config)) {
             throw new PasswordNotSetException("No password set. Use setPassword.");
         }
-        byte[] encSalt = configStorage.load(ENC_SALT);
-        byte[] verification = configStorage.load(VERIFICATION);
+        byte[] encSalt = config.require(ENC_SALT);
+        byte[] verification = config.require(VERIFICATION);
 
-        byte[] generated = derive(password, encSalt);
+        byte[] generated = timedDerive(password, encSalt, getRounds(config), prefetched);
         if (!MessageDigest.isEqual(verification, getVerification(generated))) {
             throw new WrongPasswordException("Wrong password");
         }
         return getRootKek(generated);
     }
 
+    // false if the config can't be read
     boolean isPasswordSet() {
-        return configStorage.exists(ENC_SALT) && configStorage.exists(VERIFICATION);
+        try {
+            return isPasswordSet(loadConfig());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean isPasswordSet(KeyWrapperConfig config) {
+        return config.contains(ENC_SALT) && config.contains(VERIFICATION);
     }
 
-    byte[] derive(char[] password, byte[] salt) throws GeneralSecurityException, IOException {
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(derivationSpec.getKeygenAlgorithm());
-        PBEKeySpec spec = new PBEKeySpec(password, salt, derivationSpec.getRounds(), keyGenSpec.getKeySize() * 2);
+    int getRounds() throws IOException {
+        return getRounds(loadConfig());
+    }
+
+    // rounds calibrated when the password was set, or the spec's fixed rounds
+    int getRounds(KeyWrapperConfig config) {
+        byte[] rounds = config.get(ROUNDS);
+        if (rounds == null) {
+            return derivationSpec.getRounds();
+        }
+        return ByteBuffer.wrap(rounds).getInt();
+    }
+
+    // started before the config is read, so that slow inputs of derive can load while it is read and used
+    @Nullable
+    Future<?> prefetchDerivationInputs() {
+        return null;
+    }
+
+    byte[] derive(char[] password, byte[] salt, int rounds, @Nullable Future<?> prefetched) throws GeneralSecurityException, IOException {
         try {
-            return factory.generateSecret(spec).getEncoded();
+            return derivationStrategy.derive(derivationSpec, password, salt, rounds, keyGenSpec.getKeySize() * 2);
         } finally {
-            spec.clearPassword();
             for (int i = 0; i < password.length; i++) {
                 password[i] = ' ';
             }
         }
     }
 
+    private byte[] timedDerive(char[] password, byte[] salt, int rounds, @Nullable Future<?> prefetched) throws GeneralSecurityException, IOException {
+        long start = Metrics.start();
+        Span span = Tracing.begin("key_wrapper.derive")
+                .setAttribute(Tracing.ATTRIBUTE_SPEC, derivationSpec.getKeygenAlgorithm())
+                .setAttribute("rounds", rounds);
+        try {
+            byte[] generated = derive(password, salt, rounds, prefetched);
+            Metrics.stop(Metrics.UNLOCK_KDF, start);
+            return generated;
+        } finally {
+            span.end();
+        }
+    }
+
     private boolean verifyPassword(char[] password) throws IOException, GeneralSecurityException {
-        if (!isPasswordSet()) {
+        Future<?> prefetched = prefetchDerivationInputs();
+        KeyWrapperConfig config = loadConfig();
+        if (!isPasswordSet(config)) {
             throw new PasswordNotSetException("No password set. Use setPassword.");
         }
-        byte[] encSalt = configStorage.load(ENC_SALT);
-        byte[] verification = configStorage.load(VERIFICATION);
+        byte[] encSalt = config.require(ENC_SALT);
+        byte[] verification = config.require(VERIFICATION);
 
-        byte[] generated = derive(password, encSalt);
+        byte[] generated = timedDerive(password, encSalt, getRounds(config), prefetched);
         return MessageDigest.isEqual(getVerification(generated), verification);
     }
 
     private byte[] generateSalt() {
-        byte[] random = new byte[keyGenSpec.getKeySize() / 8];
-        secureRandom.nextBytes(random);
-        return random;
+        return RandomSource.nextBytes(keyGenSpec.getKeySize() / 8);
     }
 
     private Key getRootKek(byte[] generated) {
@@ -175,7 +252,7 @@ public class PasswordKeyWrapper extends BaseKeyWrapper {
         }
 
         public void unlock(char[] password) throws GeneralSecurityException, IOException {
-            PasswordKeyWrapper.this.unlock(new PasswordParams(password));
+            coalesceUnlock(new PasswordParams(password));
         }
 
         public void unlock(char[] password, Listener listener) {
@@ -188,18 +265,20 @@ public class PasswordKeyWrapper extends BaseKeyWrapper {
         }
 
         public void changePassword(final @NonNull char[] oldPassword, final @NonNull char[] newPassword) throws GeneralSecurityException, IOException {
-            if (!isPasswordSet()) {
+            // the new password config and intermediate KEK are stored in one write
+            Future<?> prefetched = prefetchDerivationInputs();
+            KeyWrapperConfig config = loadConfig();
+            if (!PasswordKeyWrapper.this.isPasswordSet(config)) {
                 throw new PasswordNotSetException("No password set. Use setPassword.");
             }
-            Key oldKey = PasswordKeyWrapper.this.deriveRootKek(oldPassword);
+            Key oldKey = PasswordKeyWrapper.this.deriveRootKek(config, oldPassword, prefetched);
+            Cipher unwrapCipher = keyWrap.initUnwrapCipher(oldKey, intermediateKekProtectionSpec, getWrappedIntermediateKek(config));
 
-            configStorage.delete(VERIFICATION);
-            configStorage.delete(ENC_SALT);
+            deletePasswordConfig(config);
 
-            Key newKey = PasswordKeyWrapper.this.deriveNewRootKek(newPassword);
+            Key newKey = PasswordKeyWrapper.this.deriveNewRootKek(config, newPassword, prefetched);
             Cipher wrapCipher = keyWrap.initWrapCipher(newKey, intermediateKekProtectionSpec);
-            Cipher unwrapCipher = keyWrap.initUnwrapCipher(oldKey, intermediateKekProtectionSpec, getWrappedIntermediateKek());
-            finishUnlock(unwrapCipher, wrapCipher);
+            finishUnlock(config, unwrapCipher, wrapCipher);
         }
 
         public void changePassword(final @NonNull char[] oldPassword, final @NonNull char[] newPassword, Listener listener) {
@@ -242,6 +321,32 @@ public class PasswordKeyWrapper extends BaseKeyWrapper {
         public char[] getPassword() {
             return password;
         }
+
+        @Override
+        boolean matches(UnlockParams other) {
+            if (!(other instanceof PasswordParams)) {
+                return false;
+            }
+            char[] otherPassword = ((PasswordParams) other).password;
+            if (otherPassword.length != password.length) {
+                return false;
+            }
+            int diff = 0;
+            for (int i = 0; i < password.length; i++) {
+                diff |= password[i] ^ otherPassword[i];
+            }
+            return diff == 0;
+        }
+
+        @Override
+        UnlockParams copy() {
+            return new PasswordParams(password.clone());
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(password, ' ');
+        }
     }
 
     public class WrongPasswordException extends GeneralSecurityException {
@@ -19,6 +19,7 @@ package com.github.cjnosal.secret_storage.keymanager;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
+import android.support.annotation.Nullable;
 
 import com.github.cjnosal.secret_storage.keymanager.crypto.AndroidCrypto;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
@@ -33,10 +34,12 @@ import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.PrivateKey;
-
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import java.security.Signature;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class SignedPasswordKeyWrapper extends PasswordKeyWrapper {
@@ -48,6 +51,7 @@ public class SignedPasswordKeyWrapper extends PasswordKeyWrapper {
     private final AndroidCrypto androidCrypto;
     private final IntegritySpec derivationIntegritySpec;
     private final IntegrityStrategy derivationIntegrityStrategy;
+    private final KeyPairPregenerator pregenerator;
 
     public SignedPasswordKeyWrapper(Context context, CryptoConfig cryptoConfig, DataStorage configStorage, DataStorage keyStorage) {
         this(context, cryptoConfig.getDerivationSpec(), cryptoConfig.getKeyGenSpec(), cryptoConfig.getDerivationIntegritySpec(), cryptoConfig.getKeyProtectionSpec(), cryptoConfig.getIntegrityKeyGenSpec(), configStorage, keyStorage);
@@ -60,47 +64,77 @@ public class SignedPasswordKeyWrapper extends PasswordKeyWrapper {
         this.androidCrypto = new AndroidCrypto();
         this.derivationIntegritySpec = derivationIntegritySpec;
         this.derivationIntegrityStrategy = new SignatureStrategy();
+        this.pregenerator = new KeyPairPregenerator(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws Exception {
+                String storageField = SignedPasswordKeyWrapper.this.configStorage.getScopedId(DEVICE_BINDING);
+                return androidCrypto.hasEntry(storageField) ? null : generateKeyPair(storageField);
+            }
+        });
+    }
+
+    // generate the device binding key pair before the password is set, which claims it instead of generating one
+    public Future<?> pregenerateKeyPair(Executor executor) {
+        return pregenerator.start(executor);
+    }
+
+    @Override
+    public void warmUp() throws GeneralSecurityException, IOException {
+        super.warmUp();
+        Signature.getInstance(derivationIntegritySpec.getIntegrityTransformation());
+        // caches the entry in the KeyStoreSession
+        String storageField = configStorage.getScopedId(DEVICE_BINDING);
+        if (androidCrypto.hasEntry(storageField)) {
+            androidCrypto.loadPrivateKey(storageField);
+        }
     }
 
     @Override
     protected void eraseConfig() throws GeneralSecurityException, IOException {
         super.eraseConfig();
         androidCrypto.deleteEntry(configStorage.getScopedId(DEVICE_BINDING));
+        pregenerator.reset();
     }
 
     @Override
-    protected byte[] derive(char[] password, byte[] salt) throws GeneralSecurityException, IOException {
+    public void setStorageScope(String keyScope, String configScope) {
+        super.setStorageScope(keyScope, configScope);
+        pregenerator.reset();
+    }
 
-        PrivateKey signingKey;
-        if (!isPasswordSet()) {
-            signingKey = androidCrypto.generateKeyPair(
-                    context,
-                    configStorage.getScopedId(DEVICE_BINDING),
-                    integrityKeyGenSpec.getKeygenAlgorithm())
-                    .getPrivate();
-        } else {
-            signingKey = androidCrypto.loadPrivateKey(configStorage.getScopedId(DEVICE_BINDING));
-        }
+    // loads an existing device binding key while the config is read and the first half is derived
+    @Override
+    Future<?> prefetchDerivationInputs() {
+        final String storageField = configStorage.getScopedId(DEVICE_BINDING);
+        return UnlockExecutor.submit(new Callable<PrivateKey>() {
+            @Override
+            public PrivateKey call() throws Exception {
+                return androidCrypto.hasEntry(storageField) ? androidCrypto.loadPrivateKey(storageField) : null;
+            }
+        });
+    }
 
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(derivationSpec.getKeygenAlgorithm());
+    @Override
+    protected byte[] derive(char[] password, byte[] salt, int rounds, @Nullable Future<?> prefetched) throws GeneralSecurityException, IOException {
+        if (prefetched == null) {
+            prefetched = prefetchDerivationInputs();
+        }
 
-        PBEKeySpec firstSpec = new PBEKeySpec(password, salt, derivationSpec.getRounds() / 2, keyGenSpec.getKeySize() * 2);
+        // each derivation gets half the rounds, but memory-hard specs may only have one
+        int halfRounds = Math.max(1, rounds / 2);
         byte[] firstHash;
         try {
-            firstHash = factory.generateSecret(firstSpec).getEncoded();
+            firstHash = derivationStrategy.derive(derivationSpec, password, salt, halfRounds, keyGenSpec.getKeySize() * 2);
         } finally {
-            firstSpec.clearPassword();
             for (int i = 0; i < password.length; i++) {
                 password[i] = ' ';
             }
         }
-        byte[] signature = derivationIntegrityStrategy.sign(signingKey, derivationIntegritySpec, firstHash);
+        byte[] signature = derivationIntegrityStrategy.sign(getSigningKey(prefetched), derivationIntegritySpec, firstHash);
         char[] signatureString = Encoding.hexEncodeChars(signature);
-        PBEKeySpec secondSpec = new PBEKeySpec(signatureString, salt, derivationSpec.getRounds() / 2, keyGenSpec.getKeySize() * 2);
         try {
-            return factory.generateSecret(secondSpec).getEncoded();
+            return derivationStrategy.derive(derivationSpec, signatureString, salt, halfRounds, keyGenSpec.getKeySize() * 2);
         } finally {
-            secondSpec.clearPassword();
             for (int i = 0; i < signatureString.length; i++) {
                 signatureString[i] = ' ';
             }
@@ -110,6 +144,35 @@ public class SignedPasswordKeyWrapper extends PasswordKeyWrapper {
         }
     }
 
+    private PrivateKey getSigningKey(Future<?> prefetched) throws GeneralSecurityException, IOException {
+        // changePassword keeps the device binding key, so the old config stays usable until the new one is stored
+        PrivateKey signingKey = (PrivateKey) UnlockExecutor.await(prefetched);
+        if (signingKey == null) {
+            KeyPair keyPair = pregenerator.claim();
+            if (keyPair == null) {
+                // generated since the prefetch looked for it
+                return androidCrypto.loadPrivateKey(configStorage.getScopedId(DEVICE_BINDING));
+            }
+            signingKey = keyPair.getPrivate();
+        }
+        return signingKey;
+    }
+
+    private KeyPair generateKeyPair(String storageField) throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // EC keys need the key type and size
+            return androidCrypto.generateKeyPair(
+                    context,
+                    storageField,
+                    integrityKeyGenSpec.getKeygenAlgorithm(),
+                    integrityKeyGenSpec.getKeySize());
+        }
+        return androidCrypto.generateKeyPair(
+                context,
+                storageField,
+                integrityKeyGenSpec.getKeygenAlgorithm());
+    }
+
     public static class CryptoConfig extends PasswordKeyWrapper.CryptoConfig {
         private final IntegritySpec derivationIntegritySpec;
         private final KeyPairGenSpec integrityKeyGenSpec;
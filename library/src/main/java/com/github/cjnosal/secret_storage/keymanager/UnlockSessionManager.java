@@ -0,0 +1,151 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locks managed KeyWrappers once they have gone unused for the idle timeout, or have been unlocked for the
+ * maximum duration, whichever comes first. Unlocking and using data keys within the window needs no further
+ * password derivation or KeyStore access.
+ *
+ * Locking drops the intermediate KEK and notifies the KeyWrapper's {@link KeyWrapper.LockListener}s.
+ * All managers share one daemon scheduler thread.
+ */
+public class UnlockSessionManager {
+
+    private static ScheduledExecutorService scheduler;
+
+    private final long idleTimeoutNanos;
+    private final long maxUnlockNanos;
+    private final ConcurrentMap<BaseKeyWrapper, Session> sessions = new ConcurrentHashMap<>();
+
+    public UnlockSessionManager(long idleTimeout, long maxUnlockDuration, TimeUnit unit) {
+        if (idleTimeout <= 0 || maxUnlockDuration <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive");
+        }
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.maxUnlockNanos = unit.toNanos(maxUnlockDuration);
+    }
+
+    // start timing the KeyWrapper's unlocks; a KeyWrapper that is already unlocked starts its window now
+    public void manage(BaseKeyWrapper keyWrapper) {
+        Session session = new Session(keyWrapper);
+        if (sessions.putIfAbsent(keyWrapper, session) != null) {
+            throw new IllegalStateException("KeyWrapper is already managed");
+        }
+        keyWrapper.addLockListener(session);
+        if (keyWrapper.getEditor().isUnlocked()) {
+            session.onUnlock(keyWrapper);
+        }
+    }
+
+    // stop timing the KeyWrapper without locking it
+    public void release(BaseKeyWrapper keyWrapper) {
+        Session session = sessions.remove(keyWrapper);
+        if (session != null) {
+            keyWrapper.removeLockListener(session);
+            session.release();
+        }
+    }
+
+    // lock every managed KeyWrapper now
+    public void lockAll() {
+        for (BaseKeyWrapper keyWrapper : sessions.keySet()) {
+            keyWrapper.lock();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UnlockSessionManager");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    // checks deadlines instead of rescheduling on every data key operation
+    private class Session implements KeyWrapper.LockListener, Runnable {
+        private final BaseKeyWrapper keyWrapper;
+        private final long managedAtNanos = System.nanoTime();
+        private ScheduledFuture<?> check;
+        private boolean released;
+
+        Session(BaseKeyWrapper keyWrapper) {
+            this.keyWrapper = keyWrapper;
+        }
+
+        @Override
+        public synchronized void onUnlock(KeyWrapper keyWrapper) {
+            schedule(Math.min(idleTimeoutNanos, maxUnlockNanos));
+        }
+
+        @Override
+        public synchronized void onLock(KeyWrapper keyWrapper) {
+            cancel();
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+            }
+            // the KeyWrapper checks the deadline and locks atomically, so a concurrent unlock or use is kept
+            long remaining = keyWrapper.lockIfExpired(managedAtNanos, maxUnlockNanos, idleTimeoutNanos);
+            if (remaining > 0) {
+                synchronized (this) {
+                    schedule(remaining);
+                }
+            }
+        }
+
+        // no further checks are scheduled, including by one that is running now
+        synchronized void release() {
+            released = true;
+            cancel();
+        }
+
+        synchronized void cancel() {
+            if (check != null) {
+                check.cancel(false);
+                check = null;
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            cancel();
+            if (released) {
+                return;
+            }
+            check = getScheduler().schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -20,6 +20,8 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
 import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyGenParameterSpec;
+import android.support.annotation.Nullable;
 
 import java.io.IOException;
 import java.math.BigInteger;
@@ -30,10 +32,11 @@ import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.UnrecoverableEntryException;
 import java.security.cert.Certificate;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.Calendar;
-import java.util.Enumeration;
+import java.util.Collection;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -44,6 +47,32 @@ import javax.security.auth.x500.X500Principal;
  */
 public class AndroidCrypto {
 
+    // shared so every AndroidCrypto sees the same cached entries
+    private static @Nullable KeyStoreSession androidKeyStoreSession;
+
+    private final KeyStoreSession session;
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public AndroidCrypto() {
+        this(getAndroidKeyStoreSession());
+    }
+
+    public AndroidCrypto(KeyStoreSession session) {
+        this.session = session;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static synchronized KeyStoreSession getAndroidKeyStoreSession() {
+        if (androidKeyStoreSession == null) {
+            androidKeyStoreSession = new KeyStoreSession(new AndroidKeyStoreBackend());
+        }
+        return androidKeyStoreSession;
+    }
+
+    public KeyStoreSession getSession() {
+        return session;
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public KeyPair generateKeyPair(Context context, String id, @SecurityAlgorithms.KeyPairGenerator String algorithm) throws GeneralSecurityException {
         Calendar start = Calendar.getInstance();
@@ -58,7 +87,12 @@ public class AndroidCrypto {
                         .setStartDate(start.getTime())
                         .setEndDate(end.getTime())
                         .build());
-        return g.generateKeyPair();
+        try {
+            return g.generateKeyPair();
+        } finally {
+            // after generating, so an entry read meanwhile isn't left cached in place of the new one
+            session.invalidate(id);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -77,28 +111,42 @@ public class AndroidCrypto {
                         .setStartDate(start.getTime())
                         .setEndDate(end.getTime())
                         .build());
-        return g.generateKeyPair();
+        try {
+            return g.generateKeyPair();
+        } finally {
+            session.invalidate(id);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public KeyPair generateKeyPair(@SecurityAlgorithms.KeyPairGenerator String algorithm, AlgorithmParameterSpec spec) throws GeneralSecurityException {
         KeyPairGenerator g = KeyPairGenerator.getInstance(algorithm, SecurityAlgorithms.SecurityProvider_AndroidKeyStore);
         g.initialize(spec);
-        return g.generateKeyPair();
+        try {
+            return g.generateKeyPair();
+        } finally {
+            invalidate(spec);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.M)
     public SecretKey generateSecretKey(@SecurityAlgorithms.KeyGenerator String algorithm, AlgorithmParameterSpec spec) throws GeneralSecurityException {
         KeyGenerator g = KeyGenerator.getInstance(algorithm, SecurityAlgorithms.SecurityProvider_AndroidKeyStore);
         g.init(spec);
-        return g.generateKey();
+        try {
+            return g.generateKey();
+        } finally {
+            invalidate(spec);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     private KeyStore.Entry loadKeyStoreEntry(String id) throws GeneralSecurityException, IOException {
-        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
-        store.load(null);
-        return store.getEntry(id, null);
+        KeyStore.Entry entry = session.getEntry(id);
+        if (entry == null) {
+            throw new UnrecoverableEntryException("No KeyStore entry for " + id);
+        }
+        return entry;
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -115,7 +163,8 @@ public class AndroidCrypto {
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public KeyPair loadKeyPair(String id) throws GeneralSecurityException, IOException {
-        return new KeyPair(loadPublicKey(id), loadPrivateKey(id));
+        KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) loadKeyStoreEntry(id);
+        return new KeyPair(entry.getCertificate().getPublicKey(), entry.getPrivateKey());
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -145,9 +194,7 @@ public class AndroidCrypto {
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     private void storeKeyStoreEntry(String id, KeyStore.Entry entry, KeyStore.ProtectionParameter param) throws GeneralSecurityException, IOException {
-        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
-        store.load(null);
-        store.setEntry(id, entry, param);
+        session.setEntry(id, entry, param);
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -158,9 +205,7 @@ public class AndroidCrypto {
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void storeTrustedCertificate(String id, Certificate cert) throws GeneralSecurityException, IOException {
-        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
-        store.load(null);
-        store.setCertificateEntry(id, cert);
+        session.setCertificateEntry(id, cert);
     }
 
     @TargetApi(Build.VERSION_CODES.M)
@@ -171,25 +216,32 @@ public class AndroidCrypto {
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void deleteEntry(String id) throws GeneralSecurityException, IOException {
-        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
-        store.load(null);
-        store.deleteEntry(id);
+        session.deleteEntry(id);
+    }
+
+    // deletes all of the entries with a single save
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void deleteEntries(Collection<String> ids) throws GeneralSecurityException, IOException {
+        session.deleteEntries(ids);
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public boolean hasEntry(String id) throws GeneralSecurityException, IOException {
-        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
-        store.load(null);
-        return store.containsAlias(id);
+        return session.containsAlias(id);
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
     public void clear() throws GeneralSecurityException, IOException {
-        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
-        store.load(null);
-        Enumeration<String> aliases = store.aliases();
-        while(aliases.hasMoreElements()) {
-            deleteEntry(aliases.nextElement());
+        session.clear();
+    }
+
+    private void invalidate(AlgorithmParameterSpec spec) {
+        if (spec instanceof KeyPairGeneratorSpec) {
+            session.invalidate(((KeyPairGeneratorSpec) spec).getKeystoreAlias());
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && spec instanceof KeyGenParameterSpec) {
+            session.invalidate(((KeyGenParameterSpec) spec).getKeystoreAlias());
+        } else {
+            session.invalidateAll();
         }
     }
 }
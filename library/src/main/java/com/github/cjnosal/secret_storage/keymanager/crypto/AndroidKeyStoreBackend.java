@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * The platform AndroidKeyStore, which persists every operation itself
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AndroidKeyStoreBackend implements KeyStoreBackend {
+
+    @Override
+    public KeyStore load() throws GeneralSecurityException, IOException {
+        KeyStore store = KeyStore.getInstance(SecurityAlgorithms.KeyStore_AndroidKeyStore);
+        store.load(null);
+        return store;
+    }
+
+    @Override
+    public void save(KeyStore keyStore) {
+        // AndroidKeyStore persists every operation
+    }
+
+    @Nullable
+    @Override
+    public KeyStore.ProtectionParameter getProtection() {
+        return null;
+    }
+}
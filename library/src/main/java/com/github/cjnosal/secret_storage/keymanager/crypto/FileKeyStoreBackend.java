@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * File-based KeyStore (e.g. PKCS12 or JCEKS) standing in for AndroidKeyStore on a JVM
+ */
+public class FileKeyStoreBackend implements KeyStoreBackend {
+
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    private final File file;
+    private final String type;
+    private final char[] password;
+
+    public FileKeyStoreBackend(@NonNull File file, @NonNull String type, @NonNull char[] password) {
+        this.file = file;
+        this.type = type;
+        this.password = password.clone();
+    }
+
+    @Override
+    public KeyStore load() throws GeneralSecurityException, IOException {
+        KeyStore store = KeyStore.getInstance(type);
+        if (!file.exists()) {
+            store.load(null, password);
+            return store;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            store.load(in, password);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    @Override
+    public void save(KeyStore keyStore) throws GeneralSecurityException, IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent.getPath());
+        }
+        // replace the file whole, so a crash mid-save can't leave a truncated keystore behind
+        File temp = File.createTempFile(TEMP_PREFIX, null, parent);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                keyStore.store(out, password);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace file " + file.getPath());
+            }
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public KeyStore.ProtectionParameter getProtection() {
+        return new KeyStore.PasswordProtection(password);
+    }
+}
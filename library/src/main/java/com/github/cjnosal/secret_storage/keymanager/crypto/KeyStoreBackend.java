@@ -0,0 +1,36 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Source of the KeyStore used by a {@link KeyStoreSession}
+ */
+public interface KeyStoreBackend {
+    KeyStore load() throws GeneralSecurityException, IOException;
+
+    // persist changes made to the loaded KeyStore
+    void save(KeyStore keyStore) throws GeneralSecurityException, IOException;
+
+    // protection for key entries, or null if the KeyStore doesn't use one
+    @Nullable KeyStore.ProtectionParameter getProtection();
+}
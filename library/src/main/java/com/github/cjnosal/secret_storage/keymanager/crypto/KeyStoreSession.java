@@ -0,0 +1,161 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.metrics.Metrics;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one loaded KeyStore from a {@link KeyStoreBackend} and caches the entries read from it.
+ *
+ * The store is loaded on first use. Deleting several aliases or clearing the store is a single save.
+ * Entries created outside the session (e.g. by a KeyPairGenerator) must be {@link #invalidate(String) invalidated}.
+ */
+public class KeyStoreSession {
+
+    private static final String CACHE_NAME = "keystore";
+
+    private final KeyStoreBackend backend;
+    private final Map<String, KeyStore.Entry> entries = new HashMap<>();
+    private @Nullable KeyStore keyStore;
+
+    public KeyStoreSession(KeyStoreBackend backend) {
+        this.backend = backend;
+    }
+
+    // null if the alias doesn't exist
+    public synchronized @Nullable KeyStore.Entry getEntry(String alias) throws GeneralSecurityException, IOException {
+        KeyStore.Entry entry = entries.get(alias);
+        if (entry != null) {
+            Metrics.cacheHit(CACHE_NAME);
+            return entry;
+        }
+        Metrics.cacheMiss(CACHE_NAME);
+        long start = Metrics.start();
+        KeyStore store = open();
+        // certificate entries don't accept a protection parameter
+        entry = store.getEntry(alias, store.isCertificateEntry(alias) ? null : backend.getProtection());
+        Metrics.stop(Metrics.KEYSTORE_LOAD, start);
+        if (entry != null) {
+            entries.put(alias, entry);
+        }
+        return entry;
+    }
+
+    // a null param uses the backend's protection
+    public synchronized void setEntry(String alias, KeyStore.Entry entry, @Nullable KeyStore.ProtectionParameter param) throws GeneralSecurityException, IOException {
+        long start = Metrics.start();
+        KeyStore store = open();
+        entries.remove(alias);
+        try {
+            store.setEntry(alias, entry, param != null ? param : backend.getProtection());
+            backend.save(store);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            invalidateAll();
+            throw e;
+        }
+        Metrics.stop(Metrics.KEYSTORE_STORE, start);
+    }
+
+    public synchronized void setCertificateEntry(String alias, Certificate certificate) throws GeneralSecurityException, IOException {
+        long start = Metrics.start();
+        KeyStore store = open();
+        entries.remove(alias);
+        try {
+            store.setCertificateEntry(alias, certificate);
+            backend.save(store);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            invalidateAll();
+            throw e;
+        }
+        Metrics.stop(Metrics.KEYSTORE_STORE, start);
+    }
+
+    public synchronized boolean containsAlias(String alias) throws GeneralSecurityException, IOException {
+        if (entries.containsKey(alias)) {
+            Metrics.cacheHit(CACHE_NAME);
+            return true;
+        }
+        // misses aren't cached since keys can be generated outside the session
+        long start = Metrics.start();
+        boolean exists = open().containsAlias(alias);
+        Metrics.stop(Metrics.KEYSTORE_CONTAINS, start);
+        return exists;
+    }
+
+    public synchronized void deleteEntry(String alias) throws GeneralSecurityException, IOException {
+        deleteEntries(Collections.singleton(alias));
+    }
+
+    public synchronized void deleteEntries(Collection<String> aliases) throws GeneralSecurityException, IOException {
+        if (aliases.isEmpty()) {
+            return;
+        }
+        long start = Metrics.start();
+        KeyStore store = open();
+        try {
+            for (String alias : aliases) {
+                entries.remove(alias);
+                store.deleteEntry(alias);
+            }
+            backend.save(store);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            invalidateAll();
+            throw e;
+        }
+        Metrics.stop(Metrics.KEYSTORE_DELETE, start);
+    }
+
+    public synchronized void clear() throws GeneralSecurityException, IOException {
+        deleteEntries(Collections.list(open().aliases()));
+    }
+
+    public synchronized List<String> aliases() throws GeneralSecurityException, IOException {
+        return Collections.list(open().aliases());
+    }
+
+    // drop a cached entry that was changed outside the session
+    public synchronized void invalidate(String alias) {
+        entries.remove(alias);
+    }
+
+    // drop all cached entries and reload the store on next use
+    public synchronized void invalidateAll() {
+        entries.clear();
+        keyStore = null;
+    }
+
+    private KeyStore open() throws GeneralSecurityException, IOException {
+        if (keyStore == null) {
+            long start = Metrics.start();
+            keyStore = backend.load();
+            Metrics.stop(Metrics.KEYSTORE_OPEN, start);
+        }
+        return keyStore;
+    }
+}
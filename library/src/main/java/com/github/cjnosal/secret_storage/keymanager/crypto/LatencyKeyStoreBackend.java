@@ -0,0 +1,249 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Date;
+import java.util.Enumeration;
+
+/**
+ * Adds a fixed delay to every operation on another backend's KeyStore, to mimic the round trip to a
+ * hardware-backed keystore when benchmarking off-device
+ */
+public class LatencyKeyStoreBackend implements KeyStoreBackend {
+
+    private final KeyStoreBackend backend;
+    private final long latencyMillis;
+
+    public LatencyKeyStoreBackend(KeyStoreBackend backend, long latencyMillis) {
+        this.backend = backend;
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public KeyStore load() throws GeneralSecurityException, IOException {
+        delay();
+        KeyStore delegate = backend.load();
+        KeyStore store = new LatencyKeyStore(new LatencyKeyStoreSpi(delegate, latencyMillis), delegate);
+        store.load(null);
+        return store;
+    }
+
+    @Override
+    public void save(KeyStore keyStore) throws GeneralSecurityException, IOException {
+        delay();
+        backend.save(keyStore instanceof LatencyKeyStore ? ((LatencyKeyStore) keyStore).delegate : keyStore);
+    }
+
+    @Nullable
+    @Override
+    public KeyStore.ProtectionParameter getProtection() {
+        return backend.getProtection();
+    }
+
+    private void delay() {
+        sleep(latencyMillis);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class LatencyKeyStore extends KeyStore {
+        private final KeyStore delegate;
+
+        LatencyKeyStore(KeyStoreSpi spi, KeyStore delegate) {
+            super(spi, delegate.getProvider(), delegate.getType());
+            this.delegate = delegate;
+        }
+    }
+
+    private static class LatencyKeyStoreSpi extends KeyStoreSpi {
+        private final KeyStore delegate;
+        private final long latencyMillis;
+
+        LatencyKeyStoreSpi(KeyStore delegate, long latencyMillis) {
+            this.delegate = delegate;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public Key engineGetKey(String alias, char[] password) throws NoSuchAlgorithmException, UnrecoverableKeyException {
+            sleep(latencyMillis);
+            try {
+                return delegate.getKey(alias, password);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public KeyStore.Entry engineGetEntry(String alias, KeyStore.ProtectionParameter protParam) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableEntryException {
+            sleep(latencyMillis);
+            return delegate.getEntry(alias, protParam);
+        }
+
+        @Override
+        public void engineSetEntry(String alias, KeyStore.Entry entry, KeyStore.ProtectionParameter protParam) throws KeyStoreException {
+            sleep(latencyMillis);
+            delegate.setEntry(alias, entry, protParam);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            sleep(latencyMillis);
+            try {
+                return delegate.getCertificateChain(alias);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            sleep(latencyMillis);
+            try {
+                return delegate.getCertificate(alias);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            sleep(latencyMillis);
+            try {
+                return delegate.getCreationDate(alias);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) throws KeyStoreException {
+            sleep(latencyMillis);
+            delegate.setKeyEntry(alias, key, password, chain);
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+            sleep(latencyMillis);
+            delegate.setKeyEntry(alias, key, chain);
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) throws KeyStoreException {
+            sleep(latencyMillis);
+            delegate.setCertificateEntry(alias, cert);
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) throws KeyStoreException {
+            sleep(latencyMillis);
+            delegate.deleteEntry(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            sleep(latencyMillis);
+            try {
+                return delegate.aliases();
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            sleep(latencyMillis);
+            try {
+                return delegate.containsAlias(alias);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int engineSize() {
+            try {
+                return delegate.size();
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            try {
+                return delegate.isKeyEntry(alias);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            try {
+                return delegate.isCertificateEntry(alias);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            try {
+                return delegate.getCertificateAlias(cert);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) throws IOException, NoSuchAlgorithmException, CertificateException {
+            sleep(latencyMillis);
+            try {
+                delegate.store(stream, password);
+            } catch (KeyStoreException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+            // the delegate is already loaded
+        }
+    }
+}
@@ -44,17 +44,23 @@ public final class PRNGFixes {
     private static final byte[] BUILD_FINGERPRINT_AND_DEVICE_SERIAL =
             getBuildFingerprintAndDeviceSerial();
 
+    private static boolean sApplied;
+
     /** Hidden constructor to prevent instantiation. */
     private PRNGFixes() {}
 
     /**
-     * Applies all fixes.
+     * Applies all fixes. Only the first call in a process does any work.
      *
      * @throws SecurityException if a fix is needed but could not be applied.
      */
-    public static void apply() {
+    public static synchronized void apply() {
+        if (sApplied) {
+            return;
+        }
         applyOpenSSLFix();
         installLinuxPRNGSecureRandom();
+        sApplied = true;
     }
 
     /**
@@ -174,9 +180,10 @@ public final class PRNGFixes {
          * build fingerprint, and hardware serial number (where available) into
          * Linux PRNG.
          *
-         * Concurrency: Read requests to the underlying Linux PRNG are
-         * serialized (on sLock) to ensure that multiple threads do not get
-         * duplicated PRNG output.
+         * Concurrency: Each thread reads the Linux PRNG through its own file
+         * descriptor. The kernel serializes reads of /dev/urandom, so threads
+         * never get duplicated PRNG output, and engineNextBytes doesn't
+         * contend on a process-wide lock.
          */
 
         private static final File URANDOM_FILE = new File("/dev/urandom");
@@ -184,12 +191,26 @@ public final class PRNGFixes {
         private static final Object sLock = new Object();
 
         /**
-         * Input stream for reading from Linux PRNG or {@code null} if not yet
-         * opened.
-         *
-         * @GuardedBy("sLock")
+         * Per-thread input streams for reading from Linux PRNG, opened on
+         * first use.
          */
-        private static DataInputStream sUrandomIn;
+        private static final ThreadLocal<DataInputStream> sUrandomIn =
+                new ThreadLocal<DataInputStream>() {
+                    @Override
+                    protected DataInputStream initialValue() {
+                        // NOTE: Consider inserting a BufferedInputStream between
+                        // DataInputStream and FileInputStream if you need higher
+                        // PRNG output performance and can live with future PRNG
+                        // output being pulled into this process prematurely.
+                        try {
+                            return new DataInputStream(
+                                    new FileInputStream(URANDOM_FILE));
+                        } catch (IOException e) {
+                            throw new SecurityException("Failed to open "
+                                    + URANDOM_FILE + " for reading", e);
+                        }
+                    }
+                };
 
         /**
          * Output stream for writing to Linux PRNG or {@code null} if not yet
@@ -233,13 +254,7 @@ public final class PRNGFixes {
             }
 
             try {
-                DataInputStream in;
-                synchronized (sLock) {
-                    in = getUrandomInputStream();
-                }
-                synchronized (in) {
-                    in.readFully(bytes);
-                }
+                sUrandomIn.get().readFully(bytes);
             } catch (IOException e) {
                 throw new SecurityException(
                         "Failed to read from " + URANDOM_FILE, e);
@@ -253,25 +268,6 @@ public final class PRNGFixes {
             return seed;
         }
 
-        private DataInputStream getUrandomInputStream() {
-            synchronized (sLock) {
-                if (sUrandomIn == null) {
-                    // NOTE: Consider inserting a BufferedInputStream between
-                    // DataInputStream and FileInputStream if you need higher
-                    // PRNG output performance and can live with future PRNG
-                    // output being pulled into this process prematurely.
-                    try {
-                        sUrandomIn = new DataInputStream(
-                                new FileInputStream(URANDOM_FILE));
-                    } catch (IOException e) {
-                        throw new SecurityException("Failed to open "
-                                + URANDOM_FILE + " for reading", e);
-                    }
-                }
-                return sUrandomIn;
-            }
-        }
-
         private OutputStream getUrandomOutputStream() throws IOException {
             synchronized (sLock) {
                 if (sUrandomOut == null) {
@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Per-thread SecureRandom instances for IVs, salts and keys.
+ *
+ * A shared SecureRandom serializes callers on its own lock, and the platform default used by Cipher.init and
+ * KeyGenerator.init is shared process-wide. Each thread gets its own instance here: a DRBG seeded from the system
+ * entropy source where available (Java 9+), otherwise the platform default, which {@link PRNGFixes} backs with
+ * /dev/urandom on affected Android versions.
+ */
+public final class RandomSource {
+
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                return SecureRandom.getInstance(SecurityAlgorithms.SecureRandom_DRBG);
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
+
+    private RandomSource() {}
+
+    // must not be shared with other threads
+    public static SecureRandom get() {
+        return RANDOM.get();
+    }
+
+    public static byte[] nextBytes(int size) {
+        byte[] bytes = new byte[size];
+        RANDOM.get().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -634,12 +634,14 @@ public class SecurityAlgorithms {
 
     @Retention(RetentionPolicy.SOURCE)
     @StringDef({
-            SecureRandom_SHA1PRNG    // GmsCore_OpenSSL, AndroidOpenSSL
+            SecureRandom_SHA1PRNG,    // GmsCore_OpenSSL, AndroidOpenSSL
+            SecureRandom_DRBG    // SUN (Java 9+)
     })
     public @interface SecureRandom {
     }
 
     public static final String SecureRandom_SHA1PRNG = "SHA1PRNG";
+    public static final String SecureRandom_DRBG = "DRBG";
 
     @Retention(RetentionPolicy.SOURCE)
     @StringDef({
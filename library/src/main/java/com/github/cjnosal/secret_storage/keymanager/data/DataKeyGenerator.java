@@ -17,6 +17,7 @@
 package com.github.cjnosal.secret_storage.keymanager.data;
 
 import com.github.cjnosal.secret_storage.annotations.KeyPurpose;
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
 import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
 
 import java.security.NoSuchAlgorithmException;
@@ -28,7 +29,7 @@ public class DataKeyGenerator {
     public @KeyPurpose.DataSecrecy
     SecretKey generateDataKey(@SecurityAlgorithms.KeyGenerator String algorithm, int keySize) throws NoSuchAlgorithmException {
         KeyGenerator g = KeyGenerator.getInstance(algorithm);
-        g.init(keySize);
+        g.init(keySize, RandomSource.get());
         return g.generateKey();
     }
 }
@@ -28,7 +28,9 @@ import com.github.cjnosal.secret_storage.keymanager.SignedPasswordKeyWrapper;
 import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
 import com.github.cjnosal.secret_storage.keymanager.strategy.DataProtectionSpec;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.Argon2;
 import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.KeyDerivationSpec;
+import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.Pbkdf2;
 import com.github.cjnosal.secret_storage.keymanager.strategy.integrity.IntegritySpec;
 import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyGenSpec;
 import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyPairGenSpec;
@@ -106,6 +108,29 @@ public class DefaultSpecs {
         );
     }
 
+    // EC device binding keys generate and sign much faster than RSA 2048
+    @TargetApi(Build.VERSION_CODES.M)
+    public static SignedPasswordKeyWrapper.CryptoConfig getEcP256SignedPasswordCryptoConfig() {
+        return new SignedPasswordKeyWrapper.CryptoConfig(
+                DefaultSpecs.get8192RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes256KeyGenSpec(),
+                DefaultSpecs.getSha256WithEcdsaSpec(),
+                DefaultSpecs.getAesGcmCipherSpec(),
+                DefaultSpecs.getEc256KeyGenSpec()
+        );
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    public static SignedPasswordKeyWrapper.CryptoConfig getEcP384SignedPasswordCryptoConfig() {
+        return new SignedPasswordKeyWrapper.CryptoConfig(
+                DefaultSpecs.get8192RoundPBKDF2WithHmacSHA1(),
+                DefaultSpecs.getAes256KeyGenSpec(),
+                DefaultSpecs.getSha384WithEcdsaSpec(),
+                DefaultSpecs.getAesGcmCipherSpec(),
+                DefaultSpecs.getEc384KeyGenSpec()
+        );
+    }
+
     public static DataProtectionSpec getDefaultDataProtectionSpec() {
         CipherSpec cipher = getAesGcmCipherSpec();
         IntegritySpec integrity = getHmacSha384IntegritySpec();
@@ -133,6 +158,10 @@ public class DefaultSpecs {
         return new KeyPairGenSpec(SecurityAlgorithms.KEY_SIZE_RSA_2048, SecurityAlgorithms.KeyPairGenerator_RSA);
     }
 
+    public static KeyPairGenSpec getEc256KeyGenSpec() {
+        return new KeyPairGenSpec(SecurityAlgorithms.KEY_SIZE_EC_256, SecurityAlgorithms.KeyPairGenerator_EC);
+    }
+
     public static KeyPairGenSpec getEc384KeyGenSpec() {
         return new KeyPairGenSpec(SecurityAlgorithms.KEY_SIZE_EC_384, SecurityAlgorithms.KeyPairGenerator_EC);
     }
@@ -207,6 +236,10 @@ public class DefaultSpecs {
         return new IntegritySpec(SecurityAlgorithms.Signature_SHA256withRSA);
     }
 
+    public static IntegritySpec getSha256WithEcdsaSpec() {
+        return new IntegritySpec(SecurityAlgorithms.Signature_SHA256withECDSA);
+    }
+
     public static IntegritySpec getSha384WithEcdsaSpec() {
         return new IntegritySpec(SecurityAlgorithms.Signature_SHA384withECDSA);
     }
@@ -225,4 +258,64 @@ public class DefaultSpecs {
         );
     }
 
+    // rounds chosen on the device so derivation takes about targetMillis
+    public static KeyDerivationSpec getCalibratedPBKDF2WithHmacSHA1(long targetMillis) {
+        return new KeyDerivationSpec(
+                1000,
+                SecurityAlgorithms.SecretKeyFactory_PBKDF2WithHmacSHA1,
+                targetMillis
+        );
+    }
+
+    // built in PBKDF2 engines, see Pbkdf2
+    @SuppressWarnings("WrongConstant")
+    public static KeyDerivationSpec get65536RoundPBKDF2WithHmacSHA256() {
+        return new KeyDerivationSpec(
+                65536,
+                Pbkdf2.HMAC_SHA256
+        );
+    }
+
+    @SuppressWarnings("WrongConstant")
+    public static KeyDerivationSpec getCalibratedPBKDF2WithHmacSHA256(long targetMillis) {
+        return new KeyDerivationSpec(
+                10000,
+                Pbkdf2.HMAC_SHA256,
+                targetMillis
+        );
+    }
+
+    @SuppressWarnings("WrongConstant")
+    public static KeyDerivationSpec getCalibratedPBKDF2WithHmacSHA512(long targetMillis) {
+        return new KeyDerivationSpec(
+                5000,
+                Pbkdf2.HMAC_SHA512,
+                targetMillis
+        );
+    }
+
+    // parallelism is part of the derivation, so it has to stay the same on every device
+    @SuppressWarnings("WrongConstant")
+    public static KeyDerivationSpec get3PassArgon2id(int memoryKiB, int parallelism) {
+        return new KeyDerivationSpec(
+                3,
+                Argon2.ARGON2ID,
+                0,
+                memoryKiB,
+                parallelism
+        );
+    }
+
+    // passes chosen on the device so derivation takes about targetMillis
+    @SuppressWarnings("WrongConstant")
+    public static KeyDerivationSpec getCalibratedArgon2id(int memoryKiB, int parallelism, long targetMillis) {
+        return new KeyDerivationSpec(
+                1,
+                Argon2.ARGON2ID,
+                targetMillis,
+                memoryKiB,
+                parallelism
+        );
+    }
+
 }
@@ -16,9 +16,12 @@
 
 package com.github.cjnosal.secret_storage.keymanager.keywrap;
 
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
 import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherSpec;
 import com.github.cjnosal.secret_storage.storage.util.ByteArrayUtil;
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.IOException;
 import java.security.AlgorithmParameters;
@@ -43,19 +46,24 @@ public class KeyWrap {
             algorithmParameterSpec = Cipher.getMaxAllowedParameterSpec(cipherSpec.getCipherTransformation());
         }
         Cipher cipher = Cipher.getInstance(cipherSpec.getCipherTransformation());
-        cipher.init(Cipher.WRAP_MODE, kek, algorithmParameterSpec);
+        cipher.init(Cipher.WRAP_MODE, kek, algorithmParameterSpec, RandomSource.get());
         return cipher;
     }
 
     public byte[] wrap(Cipher cipher, SecretKey secret) throws InvalidKeyException, IllegalBlockSizeException, IOException {
-        byte[] wrappedKey = cipher.wrap(secret);
-        byte[] paramBytes;
-        if (cipher.getParameters() != null) {
-            paramBytes = cipher.getParameters().getEncoded();
-        } else {
-            paramBytes = new byte[0];
+        Span span = Tracing.begin("key_wrap.wrap").setAttribute(Tracing.ATTRIBUTE_SPEC, cipher.getAlgorithm());
+        try {
+            byte[] wrappedKey = cipher.wrap(secret);
+            byte[] paramBytes;
+            if (cipher.getParameters() != null) {
+                paramBytes = cipher.getParameters().getEncoded();
+            } else {
+                paramBytes = new byte[0];
+            }
+            return ByteArrayUtil.join(paramBytes, wrappedKey);
+        } finally {
+            span.end();
         }
-        return ByteArrayUtil.join(paramBytes, wrappedKey);
     }
 
     public byte[] wrap(Key kek, SecretKey secret, CipherSpec cipherSpec) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, IOException {
@@ -76,8 +84,13 @@ public class KeyWrap {
     }
 
     public SecretKey unwrap(Cipher cipher, byte[] cipherText, @SecurityAlgorithms.KeyGenerator String keyAlgorithm) throws NoSuchAlgorithmException, InvalidKeyException {
-        byte[][] splitBytes = ByteArrayUtil.split(cipherText);
-        return (SecretKey) cipher.unwrap(splitBytes[1], keyAlgorithm, Cipher.SECRET_KEY);
+        Span span = Tracing.begin("key_wrap.unwrap").setAttribute(Tracing.ATTRIBUTE_SPEC, cipher.getAlgorithm());
+        try {
+            byte[][] splitBytes = ByteArrayUtil.split(cipherText);
+            return (SecretKey) cipher.unwrap(splitBytes[1], keyAlgorithm, Cipher.SECRET_KEY);
+        } finally {
+            span.end();
+        }
     }
 
     public SecretKey unwrap(Key kek, byte[] cipherText, CipherSpec cipherSpec, @SecurityAlgorithms.KeyGenerator String keyAlgorithm) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IOException {
@@ -0,0 +1,165 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
+import com.github.cjnosal.secret_storage.keymanager.strategy.derivation.Hkdf;
+import com.github.cjnosal.secret_storage.keymanager.strategy.keygen.KeyGenSpec;
+import com.github.cjnosal.secret_storage.metrics.Metrics;
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives a key for each record from the data encryption key with HKDF over the record's id and a random salt, so the
+ * number of records encrypted under one key isn't bounded by random IV collisions. Recently used entry keys are kept
+ * in an LRU cache so reading a hot id doesn't repeat the derivation.
+ */
+public class EntryKeyDeriver {
+
+    public static final int SALT_LENGTH = 16;
+
+    private static final String CACHE_NAME = "entry_key";
+
+    private final Map<CacheKey, CachedKey> cache;
+    private final int maxCachedKeys;
+
+    public EntryKeyDeriver(final int maxCachedKeys) {
+        if (maxCachedKeys < 0) {
+            throw new IllegalArgumentException("maxCachedKeys must not be negative");
+        }
+        this.maxCachedKeys = maxCachedKeys;
+        this.cache = new LinkedHashMap<CacheKey, CachedKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedKey> eldest) {
+                return size() > maxCachedKeys;
+            }
+        };
+    }
+
+    public byte[] generateSalt() {
+        return RandomSource.nextBytes(SALT_LENGTH);
+    }
+
+    public SecretKey deriveKey(String id, byte[] salt, Key dataKey, KeyGenSpec keyGenSpec) throws GeneralSecurityException {
+        CacheKey cacheKey = new CacheKey(id, salt);
+        if (maxCachedKeys > 0) {
+            CachedKey cached;
+            synchronized (this) {
+                cached = cache.get(cacheKey);
+            }
+            if (cached != null && cached.matches(dataKey, keyGenSpec)) {
+                Metrics.cacheHit(CACHE_NAME);
+                return cached.entryKey;
+            }
+            Metrics.cacheMiss(CACHE_NAME);
+        }
+
+        long start = Metrics.start();
+        byte[] dataKeyBytes = dataKey.getEncoded();
+        if (dataKeyBytes == null) {
+            throw new InvalidKeyException("Entry keys can't be derived from a non-extractable key");
+        }
+        byte[] entryKeyBytes = Hkdf.deriveSha256(dataKeyBytes, salt, Encoding.utf8Decode(id), keyGenSpec.getKeySize() / 8);
+        SecretKey entryKey = new SecretKeySpec(entryKeyBytes, keyGenSpec.getKeygenAlgorithm());
+        Arrays.fill(dataKeyBytes, (byte) 0);
+        Arrays.fill(entryKeyBytes, (byte) 0);
+        Metrics.stop(Metrics.ENTRY_KEY_DERIVE, start);
+
+        if (maxCachedKeys > 0) {
+            synchronized (this) {
+                cache.put(cacheKey, new CachedKey(dataKey, keyGenSpec, entryKey));
+            }
+        }
+        return entryKey;
+    }
+
+    // drop all cached entry keys, e.g. when the data key is no longer available
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    public synchronized int getCachedKeyCount() {
+        return cache.size();
+    }
+
+    private static class CacheKey {
+        private final String id;
+        private final byte[] salt;
+        private final int hash;
+
+        CacheKey(String id, byte[] salt) {
+            this.id = id;
+            this.salt = salt;
+            this.hash = 31 * id.hashCode() + Arrays.hashCode(salt);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey that = (CacheKey) o;
+            return id.equals(that.id) && Arrays.equals(salt, that.salt);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class CachedKey {
+        private final Key dataKey;
+        private final KeyGenSpec keyGenSpec;
+        private final SecretKey entryKey;
+
+        CachedKey(Key dataKey, KeyGenSpec keyGenSpec, SecretKey entryKey) {
+            this.dataKey = dataKey;
+            this.keyGenSpec = keyGenSpec;
+            this.entryKey = entryKey;
+        }
+
+        // only reuse an entry key derived from the same data key
+        boolean matches(Key otherDataKey, KeyGenSpec otherKeyGenSpec) {
+            if (!keyGenSpec.equals(otherKeyGenSpec)) {
+                return false;
+            }
+            if (dataKey == otherDataKey) {
+                return true;
+            }
+            byte[] encoded = dataKey.getEncoded();
+            byte[] otherEncoded = otherDataKey.getEncoded();
+            boolean equal = encoded != null && otherEncoded != null && MessageDigest.isEqual(encoded, otherEncoded);
+            if (encoded != null) {
+                Arrays.fill(encoded, (byte) 0);
+            }
+            if (otherEncoded != null) {
+                Arrays.fill(otherEncoded, (byte) 0);
+            }
+            return equal;
+        }
+    }
+}
@@ -16,24 +16,63 @@
 
 package com.github.cjnosal.secret_storage.keymanager.strategy;
 
+import android.support.annotation.Nullable;
+
 import com.github.cjnosal.secret_storage.keymanager.strategy.cipher.CipherStrategy;
 import com.github.cjnosal.secret_storage.keymanager.strategy.integrity.IntegrityStrategy;
+import com.github.cjnosal.secret_storage.metrics.Metrics;
 import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
 import com.github.cjnosal.secret_storage.storage.util.ByteArrayUtil;
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.SignatureException;
+import java.util.Arrays;
 
 public class ProtectionStrategy {
 
+    public static final int KEY_REFERENCE_LENGTH = 16;
+    // entry key salt or key reference
+    private static final int TAG_LENGTH = 16;
+
+    // lead the metadata of records encrypted with a derived or wrapped entry key; never the first byte of a UTF-8 encoded id
+    private static final byte ENTRY_KEY_MARKER = (byte) 0xFF;
+    private static final byte WRAPPED_KEY_MARKER = (byte) 0xFE;
+    // leads the ids of records SecretStorage keeps for itself, e.g. packed pages. UTF-8 never contains it, so those
+    // records can't pass as entries whatever the entry ids
+    private static final byte INTERNAL_ID_MARKER = (byte) 0xFD;
+    // reads records written with entry keys when this strategy doesn't write them
+    private static final EntryKeyDeriver UNCACHED_DERIVER = new EntryKeyDeriver(0);
+
     protected final CipherStrategy cipherStrategy;
     protected final IntegrityStrategy integrityStrategy;
+    protected final @Nullable EntryKeyDeriver entryKeyDeriver;
+    private final boolean internalIds;
 
     public ProtectionStrategy(CipherStrategy cipherStrategy, IntegrityStrategy integrityStrategy) {
+        this(cipherStrategy, integrityStrategy, null);
+    }
+
+    // records are encrypted with keys derived per entry if entryKeyDeriver is set
+    public ProtectionStrategy(CipherStrategy cipherStrategy, IntegrityStrategy integrityStrategy, @Nullable EntryKeyDeriver entryKeyDeriver) {
+        this(cipherStrategy, integrityStrategy, entryKeyDeriver, false);
+    }
+
+    private ProtectionStrategy(CipherStrategy cipherStrategy, IntegrityStrategy integrityStrategy, @Nullable EntryKeyDeriver entryKeyDeriver, boolean internalIds) {
         this.cipherStrategy = cipherStrategy;
         this.integrityStrategy = integrityStrategy;
+        this.entryKeyDeriver = entryKeyDeriver;
+        this.internalIds = internalIds;
+    }
+
+    // the same protection for records SecretStorage keeps for itself, with ids that can't match any entry id
+    public ProtectionStrategy forInternalRecords() {
+        return new ProtectionStrategy(cipherStrategy, integrityStrategy, entryKeyDeriver, true);
     }
 
     public CipherStrategy getCipherStrategy() {
@@ -44,28 +83,203 @@ public class ProtectionStrategy {
         return integrityStrategy;
     }
 
+    public @Nullable EntryKeyDeriver getEntryKeyDeriver() {
+        return entryKeyDeriver;
+    }
+
     public byte[] encryptAndSign(String id, Key encryptionKey, Key signingKey, DataProtectionSpec dataProtectionSpec, byte[] plainText) throws GeneralSecurityException, IOException {
+        Span span = beginSpan("protection.encrypt_and_sign", id, dataProtectionSpec, plainText.length);
+        try {
+            byte[] meta = encodeId(id);
+            if (entryKeyDeriver != null) {
+                byte[] salt = entryKeyDeriver.generateSalt();
+                encryptionKey = entryKeyDeriver.deriveKey(id, salt, encryptionKey, dataProtectionSpec.getCipherKeyGenSpec());
+                meta = taggedMetadata(ENTRY_KEY_MARKER, salt, meta);
+            }
+            return seal(encryptionKey, signingKey, dataProtectionSpec, meta, plainText);
+        } finally {
+            span.end();
+        }
+    }
+
+    // encrypt with a key of the record's own, which verifyAndDecrypt gets back from an EntryKeyResolver by keyReference
+    public byte[] encryptAndSignWithEntryKey(String id, Key entryKey, byte[] keyReference, Key signingKey, DataProtectionSpec dataProtectionSpec, byte[] plainText) throws GeneralSecurityException, IOException {
+        if (keyReference.length != KEY_REFERENCE_LENGTH) {
+            throw new IllegalArgumentException("Key reference must be " + KEY_REFERENCE_LENGTH + " bytes");
+        }
+        Span span = beginSpan("protection.encrypt_and_sign", id, dataProtectionSpec, plainText.length);
+        try {
+            byte[] meta = taggedMetadata(WRAPPED_KEY_MARKER, keyReference, encodeId(id));
+            return seal(entryKey, signingKey, dataProtectionSpec, meta, plainText);
+        } finally {
+            span.end();
+        }
+    }
+
+    private byte[] seal(Key encryptionKey, Key signingKey, DataProtectionSpec dataProtectionSpec, byte[] meta, byte[] plainText) throws GeneralSecurityException, IOException {
+        long start = Metrics.start();
         byte[] cipherText = cipherStrategy.encrypt(encryptionKey, dataProtectionSpec.getCipherSpec(), plainText);
-        byte[] meta = Encoding.utf8Decode(id);
+        Metrics.stop(Metrics.CIPHER_ENCRYPT, start);
+        Metrics.count(Metrics.BYTES_ENCRYPTED, plainText.length);
+
+        start = Metrics.start();
         byte[] cipherTextWithMetadata = ByteArrayUtil.join(meta, cipherText);
+        Metrics.stop(Metrics.ENVELOPE_FRAME, start);
+
+        start = Metrics.start();
         byte[] signature = integrityStrategy.sign(signingKey, dataProtectionSpec.getIntegritySpec(), cipherTextWithMetadata);
+        Metrics.stop(Metrics.MAC_SIGN, start);
 
-        return ByteArrayUtil.join(cipherTextWithMetadata, signature);
+        start = Metrics.start();
+        byte[] record = ByteArrayUtil.join(cipherTextWithMetadata, signature);
+        Metrics.stop(Metrics.ENVELOPE_FRAME, start);
+        return record;
     }
 
     public byte[] verifyAndDecrypt(String id, Key decryptionKey, Key verificationKey, DataProtectionSpec dataProtectionSpec, byte[] cipherText) throws GeneralSecurityException, IOException {
+        return verifyAndDecrypt(id, decryptionKey, verificationKey, dataProtectionSpec, cipherText, null);
+    }
+
+    // entryKeyResolver is required for records written by encryptAndSignWithEntryKey
+    public byte[] verifyAndDecrypt(String id, Key decryptionKey, Key verificationKey, DataProtectionSpec dataProtectionSpec, byte[] cipherText, @Nullable EntryKeyResolver entryKeyResolver) throws GeneralSecurityException, IOException {
+        Span span = beginSpan("protection.verify_and_decrypt", id, dataProtectionSpec, cipherText.length);
+        try {
+            byte[][] metadataAndCipherText = verifyRecord(id, verificationKey, dataProtectionSpec, cipherText);
+            byte[] meta = metadataAndCipherText[0];
+            if (isTagged(meta, ENTRY_KEY_MARKER)) {
+                EntryKeyDeriver deriver = entryKeyDeriver != null ? entryKeyDeriver : UNCACHED_DERIVER;
+                decryptionKey = deriver.deriveKey(id, getTag(meta), decryptionKey, dataProtectionSpec.getCipherKeyGenSpec());
+            } else if (isTagged(meta, WRAPPED_KEY_MARKER)) {
+                if (entryKeyResolver == null) {
+                    throw new InvalidKeyException("Record " + id + " is encrypted with a wrapped entry key");
+                }
+                decryptionKey = entryKeyResolver.resolveEntryKey(id, getTag(meta));
+            }
+            long start = Metrics.start();
+            byte[] plainText = cipherStrategy.decrypt(decryptionKey, dataProtectionSpec.getCipherSpec(), metadataAndCipherText[1]);
+            Metrics.stop(Metrics.CIPHER_DECRYPT, start);
+            Metrics.count(Metrics.BYTES_DECRYPTED, plainText.length);
+            return plainText;
+        } finally {
+            span.end();
+        }
+    }
+
+    // check the signature and id of a record without decrypting it, returning the encrypted payload
+    public byte[] verify(String id, Key verificationKey, DataProtectionSpec dataProtectionSpec, byte[] cipherText) throws GeneralSecurityException, IOException {
+        return verifyRecord(id, verificationKey, dataProtectionSpec, cipherText)[1];
+    }
+
+    private byte[][] verifyRecord(String id, Key verificationKey, DataProtectionSpec dataProtectionSpec, byte[] cipherText) throws GeneralSecurityException, IOException {
+        Span span = beginSpan("protection.verify", id, dataProtectionSpec, cipherText.length);
+        try {
+
+            long start = Metrics.start();
+            byte[][] signedDataAndSignature = split(cipherText);
+            Metrics.stop(Metrics.ENVELOPE_PARSE, start);
+
+            start = Metrics.start();
+            boolean verified = integrityStrategy.verify(verificationKey, dataProtectionSpec.getIntegritySpec(), signedDataAndSignature[0], signedDataAndSignature[1]);
+            Metrics.stop(Metrics.MAC_VERIFY, start);
+            if (!verified) {
+                throw new SignatureException("Signature check failed");
+            }
 
-        byte[][] signedDataAndSignature = ByteArrayUtil.split(cipherText);
+            start = Metrics.start();
+            byte[][] metadataAndCipherText = split(signedDataAndSignature[0]);
+            Metrics.stop(Metrics.ENVELOPE_PARSE, start);
+            if (!matchesId(metadataAndCipherText[0], encodeId(id))) {
+                throw new IdMismatchException("Metadata (id=" + metadataAndCipherText[0] + ") doesn't match requested id (" + id + ")");
+            }
 
-        if (!integrityStrategy.verify(verificationKey, dataProtectionSpec.getIntegritySpec(), signedDataAndSignature[0], signedDataAndSignature[1])) {
-            throw new SignatureException("Signature check failed");
+            return metadataAndCipherText;
+        } finally {
+            span.end();
         }
+    }
+
+    // whether a record was written by encryptAndSignWithEntryKey, without verifying it
+    public static boolean hasWrappedEntryKey(byte[] record) {
+        try {
+            byte[] signedData = ByteArrayUtil.split(record)[0];
+            return isTagged(ByteArrayUtil.split(signedData)[0], WRAPPED_KEY_MARKER);
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    private byte[] encodeId(String id) {
+        byte[] encoded = Encoding.utf8Decode(id);
+        if (!internalIds) {
+            return encoded;
+        }
+        byte[] marked = new byte[1 + encoded.length];
+        marked[0] = INTERNAL_ID_MARKER;
+        System.arraycopy(encoded, 0, marked, 1, encoded.length);
+        return marked;
+    }
+
+    // marker, salt or key reference, id
+    private static byte[] taggedMetadata(byte marker, byte[] tag, byte[] id) {
+        byte[] meta = new byte[1 + tag.length + id.length];
+        meta[0] = marker;
+        System.arraycopy(tag, 0, meta, 1, tag.length);
+        System.arraycopy(id, 0, meta, 1 + tag.length, id.length);
+        return meta;
+    }
+
+    private static boolean isTagged(byte[] meta, byte marker) {
+        return meta.length > 0 && meta[0] == marker;
+    }
+
+    private static boolean matchesId(byte[] meta, byte[] id) {
+        if (isTagged(meta, ENTRY_KEY_MARKER) || isTagged(meta, WRAPPED_KEY_MARKER)) {
+            int idOffset = 1 + TAG_LENGTH;
+            return meta.length == idOffset + id.length && Arrays.equals(Arrays.copyOfRange(meta, idOffset, meta.length), id);
+        }
+        return Arrays.equals(meta, id);
+    }
 
-        byte[][] metadataAndCipherText = ByteArrayUtil.split(signedDataAndSignature[0]);
-        if (!id.equals(new String(metadataAndCipherText[0]))) {
-            throw new IOException("Metadata (id=" + metadataAndCipherText[0] + ") doesn't match requested id (" + id + ")");
+    private static byte[] getTag(byte[] meta) {
+        return Arrays.copyOfRange(meta, 1, 1 + TAG_LENGTH);
+    }
+
+    private Span beginSpan(String name, String id, DataProtectionSpec dataProtectionSpec, int size) {
+        return Tracing.begin(name, id)
+                .setAttribute(Tracing.ATTRIBUTE_SPEC, dataProtectionSpec.getCipherSpec().getCipherTransformation())
+                .setAttribute("integrity", dataProtectionSpec.getIntegritySpec().getIntegrityTransformation())
+                .setAttribute(Tracing.ATTRIBUTE_SIZE, size);
+    }
+
+    private byte[][] split(byte[] joined) throws TruncatedRecordException {
+        try {
+            return ByteArrayUtil.split(joined);
+        } catch (BufferUnderflowException e) {
+            throw new TruncatedRecordException("Record is truncated or has invalid length prefixes");
+        }
+    }
+
+    // supplies the keys of records written by encryptAndSignWithEntryKey
+    public interface EntryKeyResolver {
+        Key resolveEntryKey(String id, byte[] keyReference) throws GeneralSecurityException, IOException;
+    }
+
+    public static class IdMismatchException extends IOException {
+        public IdMismatchException(String message) {
+            super(message);
         }
+    }
 
-        return cipherStrategy.decrypt(decryptionKey, dataProtectionSpec.getCipherSpec(), metadataAndCipherText[1]);
+    public static class TruncatedRecordException extends IOException {
+        public TruncatedRecordException(String message) {
+            super(message);
+        }
+    }
+
+    // the record's entry key was deleted or replaced, so it can no longer be decrypted
+    public static class ShreddedEntryException extends IOException {
+        public ShreddedEntryException(String message) {
+            super(message);
+        }
     }
 }
@@ -16,6 +16,7 @@
 
 package com.github.cjnosal.secret_storage.keymanager.strategy.cipher;
 
+import com.github.cjnosal.secret_storage.keymanager.crypto.RandomSource;
 import com.github.cjnosal.secret_storage.storage.util.ByteArrayUtil;
 
 import java.io.IOException;
@@ -39,7 +40,7 @@ public abstract class CipherStrategy {
         } else if (cipherSpec.getParamsAlgorithm() != null) {
             algorithmParameterSpec = Cipher.getMaxAllowedParameterSpec(cipherSpec.getCipherTransformation());
         }
-        cipher.init(Cipher.ENCRYPT_MODE, key, algorithmParameterSpec);
+        cipher.init(Cipher.ENCRYPT_MODE, key, algorithmParameterSpec, RandomSource.get());
         byte[] encryptedBytes = cipher.doFinal(plainBytes);
         byte[] paramBytes;
         if (cipher.getParameters() != null) {
@@ -0,0 +1,396 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import android.support.annotation.Nullable;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Argon2id (RFC 9106) with a UTF-8 encoded password.
+ *
+ * Lanes are filled in parallel on up to one thread per core, synchronizing after each of the four slices of a pass.
+ * Memory is allocated per derivation and wiped afterwards.
+ */
+public class Argon2 {
+
+    public static final String ARGON2ID = "Builtin-Argon2id";
+
+    private static final int VERSION = 0x13;
+    private static final int TYPE_ID = 2;
+    private static final int SYNC_POINTS = 4;
+    private static final int BLOCK_WORDS = 128;
+    private static final int BLOCK_BYTES = 1024;
+    private static final int MAX_MEMORY_KIB = Integer.MAX_VALUE / BLOCK_WORDS;
+
+    // word indices of the rows and columns of a block viewed as an 8x8 matrix of 16 byte registers
+    private static final int[][] ROWS = new int[8][16];
+    private static final int[][] COLUMNS = new int[8][16];
+
+    static {
+        for (int i = 0; i < 8; ++i) {
+            for (int j = 0; j < 16; ++j) {
+                ROWS[i][j] = 16 * i + j;
+                COLUMNS[i][j] = 2 * i + 16 * (j / 2) + (j % 2);
+            }
+        }
+    }
+
+    public byte[] derive(char[] password, byte[] salt, int passes, int memoryKiB, int lanes, int keyBits) throws GeneralSecurityException {
+        if (keyBits % 8 != 0) {
+            throw new InvalidKeySpecException("Invalid key size " + keyBits);
+        }
+        byte[] encoded = Pbkdf2.encode(password);
+        try {
+            return derive(encoded, salt, null, null, passes, memoryKiB, lanes, keyBits / 8);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    public byte[] derive(byte[] password, byte[] salt, @Nullable byte[] secret, @Nullable byte[] associatedData, int passes, int memoryKiB, int lanes, int tagLength) throws GeneralSecurityException {
+        if (passes < 1 || lanes < 1 || lanes > 0xffffff || memoryKiB < 8 * lanes || memoryKiB > MAX_MEMORY_KIB || tagLength < 4 || salt.length < 8) {
+            throw new InvalidKeySpecException("Invalid Argon2 parameters: passes=" + passes + " memoryKiB=" + memoryKiB + " lanes=" + lanes + " tagLength=" + tagLength + " salt=" + salt.length);
+        }
+        byte[] h0 = new byte[Blake2b.MAX_DIGEST_LENGTH];
+        Blake2b blake2b = new Blake2b(Blake2b.MAX_DIGEST_LENGTH);
+        blake2b.updateInt(lanes);
+        blake2b.updateInt(tagLength);
+        blake2b.updateInt(memoryKiB);
+        blake2b.updateInt(passes);
+        blake2b.updateInt(VERSION);
+        blake2b.updateInt(TYPE_ID);
+        updateWithLength(blake2b, password);
+        updateWithLength(blake2b, salt);
+        updateWithLength(blake2b, secret);
+        updateWithLength(blake2b, associatedData);
+        blake2b.digest(h0, 0);
+
+        Instance instance = new Instance(passes, memoryKiB, lanes);
+        byte[] block = new byte[BLOCK_BYTES];
+        try {
+            for (int lane = 0; lane < lanes; ++lane) {
+                for (int index = 0; index < 2; ++index) {
+                    hashLong(block, BLOCK_BYTES, h0, littleEndian(index), littleEndian(lane));
+                    instance.load(block, lane * instance.laneLength + index);
+                }
+            }
+            instance.fill();
+            instance.finish(block);
+            byte[] tag = new byte[tagLength];
+            hashLong(tag, tagLength, block);
+            return tag;
+        } finally {
+            Arrays.fill(h0, (byte) 0);
+            Arrays.fill(block, (byte) 0);
+            instance.clear();
+        }
+    }
+
+    private static void updateWithLength(Blake2b blake2b, @Nullable byte[] input) {
+        if (input == null) {
+            blake2b.updateInt(0);
+        } else {
+            blake2b.updateInt(input.length);
+            blake2b.update(input);
+        }
+    }
+
+    private static byte[] littleEndian(int value) {
+        return new byte[] {(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    // H' from RFC 9106 section 3.3
+    private static void hashLong(byte[] output, int outputLength, byte[]... inputs) {
+        Blake2b blake2b = new Blake2b(Math.min(outputLength, Blake2b.MAX_DIGEST_LENGTH));
+        blake2b.updateInt(outputLength);
+        for (byte[] input : inputs) {
+            blake2b.update(input);
+        }
+        if (outputLength <= Blake2b.MAX_DIGEST_LENGTH) {
+            blake2b.digest(output, 0);
+            return;
+        }
+        byte[] v = new byte[Blake2b.MAX_DIGEST_LENGTH];
+        blake2b.digest(v, 0);
+        System.arraycopy(v, 0, output, 0, 32);
+        int offset = 32;
+        while (outputLength - offset > Blake2b.MAX_DIGEST_LENGTH) {
+            blake2b.reset(Blake2b.MAX_DIGEST_LENGTH);
+            blake2b.update(v);
+            blake2b.digest(v, 0);
+            System.arraycopy(v, 0, output, offset, 32);
+            offset += 32;
+        }
+        blake2b.reset(outputLength - offset);
+        blake2b.update(v);
+        blake2b.digest(output, offset);
+        Arrays.fill(v, (byte) 0);
+    }
+
+    private static class Instance {
+        private final int passes;
+        private final int lanes;
+        private final int segmentLength;
+        private final int laneLength;
+        private final int blockCount;
+        private final long[] memory;
+
+        Instance(int passes, int memoryKiB, int lanes) {
+            this.passes = passes;
+            this.lanes = lanes;
+            this.segmentLength = memoryKiB / (SYNC_POINTS * lanes);
+            this.laneLength = segmentLength * SYNC_POINTS;
+            this.blockCount = laneLength * lanes;
+            this.memory = new long[blockCount * BLOCK_WORDS];
+        }
+
+        void load(byte[] block, int index) {
+            for (int i = 0; i < BLOCK_WORDS; ++i) {
+                long word = 0;
+                for (int j = 7; j >= 0; --j) {
+                    word = (word << 8) | (block[i * 8 + j] & 0xff);
+                }
+                memory[index * BLOCK_WORDS + i] = word;
+            }
+        }
+
+        // xor of the last block of each lane
+        void finish(byte[] block) {
+            long[] last = new long[BLOCK_WORDS];
+            for (int lane = 0; lane < lanes; ++lane) {
+                int offset = (lane * laneLength + laneLength - 1) * BLOCK_WORDS;
+                for (int i = 0; i < BLOCK_WORDS; ++i) {
+                    last[i] ^= memory[offset + i];
+                }
+            }
+            for (int i = 0; i < BLOCK_WORDS; ++i) {
+                for (int j = 0; j < 8; ++j) {
+                    block[i * 8 + j] = (byte) (last[i] >>> (8 * j));
+                }
+            }
+            Arrays.fill(last, 0);
+        }
+
+        void clear() {
+            Arrays.fill(memory, 0);
+        }
+
+        void fill() throws GeneralSecurityException {
+            int threads = Math.min(lanes, Runtime.getRuntime().availableProcessors()) - 1;
+            ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+            List<Future<?>> pending = new ArrayList<>(lanes);
+            try {
+                for (int pass = 0; pass < passes; ++pass) {
+                    for (int slice = 0; slice < SYNC_POINTS; ++slice) {
+                        // lanes only reference finished slices of other lanes, so a slice can be filled in parallel
+                        for (int lane = 1; lane < lanes; ++lane) {
+                            if (executor != null) {
+                                pending.add(executor.submit(new Segment(pass, lane, slice)));
+                            } else {
+                                fillSegment(pass, lane, slice);
+                            }
+                        }
+                        fillSegment(pass, 0, slice);
+                        for (Future<?> future : pending) {
+                            await(future);
+                        }
+                        pending.clear();
+                    }
+                }
+            } finally {
+                for (Future<?> future : pending) {
+                    future.cancel(true);
+                }
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+        }
+
+        private void await(Future<?> future) throws GeneralSecurityException {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeneralSecurityException("Interrupted while deriving key");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        private void fillSegment(int pass, int lane, int slice) {
+            long[] r = new long[BLOCK_WORDS];
+            long[] tmp = new long[BLOCK_WORDS];
+            long[] zero = null;
+            long[] input = null;
+            long[] address = null;
+
+            boolean dataIndependent = pass == 0 && slice < SYNC_POINTS / 2;
+            if (dataIndependent) {
+                zero = new long[BLOCK_WORDS];
+                input = new long[BLOCK_WORDS];
+                address = new long[BLOCK_WORDS];
+                input[0] = pass;
+                input[1] = lane;
+                input[2] = slice;
+                input[3] = blockCount;
+                input[4] = passes;
+                input[5] = TYPE_ID;
+            }
+
+            int start = 0;
+            if (pass == 0 && slice == 0) {
+                // the first two blocks of each lane come from H0
+                start = 2;
+                if (dataIndependent) {
+                    nextAddresses(zero, input, address, r, tmp);
+                }
+            }
+
+            int current = lane * laneLength + slice * segmentLength + start;
+            int previous = current % laneLength == 0 ? current + laneLength - 1 : current - 1;
+            for (int index = start; index < segmentLength; ++index, ++current, ++previous) {
+                if (current % laneLength == 1) {
+                    previous = current - 1;
+                }
+                long pseudoRandom;
+                if (dataIndependent) {
+                    if (index % BLOCK_WORDS == 0) {
+                        nextAddresses(zero, input, address, r, tmp);
+                    }
+                    pseudoRandom = address[index % BLOCK_WORDS];
+                } else {
+                    pseudoRandom = memory[previous * BLOCK_WORDS];
+                }
+                int refLane = pass == 0 && slice == 0 ? lane : (int) ((pseudoRandom >>> 32) % lanes);
+                int refIndex = referenceIndex(pass, slice, index, pseudoRandom & 0xffffffffL, refLane == lane);
+                int reference = refLane * laneLength + refIndex;
+                fillBlock(memory, previous * BLOCK_WORDS, memory, reference * BLOCK_WORDS, memory, current * BLOCK_WORDS, pass > 0, r, tmp);
+            }
+            Arrays.fill(r, 0);
+            Arrays.fill(tmp, 0);
+            if (address != null) {
+                Arrays.fill(address, 0);
+            }
+        }
+
+        private int referenceIndex(int pass, int slice, int index, long j1, boolean sameLane) {
+            long areaSize;
+            if (pass == 0) {
+                if (slice == 0) {
+                    areaSize = index - 1;
+                } else if (sameLane) {
+                    areaSize = slice * segmentLength + index - 1;
+                } else {
+                    areaSize = slice * segmentLength + (index == 0 ? -1 : 0);
+                }
+            } else {
+                if (sameLane) {
+                    areaSize = laneLength - segmentLength + index - 1;
+                } else {
+                    areaSize = laneLength - segmentLength + (index == 0 ? -1 : 0);
+                }
+            }
+            long relative = (j1 * j1) >>> 32;
+            relative = areaSize - 1 - ((areaSize * relative) >>> 32);
+            long startPosition = pass == 0 || slice == SYNC_POINTS - 1 ? 0 : (slice + 1) * segmentLength;
+            return (int) ((startPosition + relative) % laneLength);
+        }
+
+        private class Segment implements Runnable {
+            private final int pass;
+            private final int lane;
+            private final int slice;
+
+            Segment(int pass, int lane, int slice) {
+                this.pass = pass;
+                this.lane = lane;
+                this.slice = slice;
+            }
+
+            @Override
+            public void run() {
+                fillSegment(pass, lane, slice);
+            }
+        }
+    }
+
+    private static void nextAddresses(long[] zero, long[] input, long[] address, long[] r, long[] tmp) {
+        input[6]++;
+        fillBlock(zero, 0, input, 0, address, 0, false, r, tmp);
+        fillBlock(zero, 0, address, 0, address, 0, false, r, tmp);
+    }
+
+    // out = G(x, y), or out ^= G(x, y) when xor is set
+    private static void fillBlock(long[] x, int xOffset, long[] y, int yOffset, long[] out, int outOffset, boolean xor, long[] r, long[] tmp) {
+        for (int i = 0; i < BLOCK_WORDS; ++i) {
+            r[i] = x[xOffset + i] ^ y[yOffset + i];
+            tmp[i] = xor ? r[i] ^ out[outOffset + i] : r[i];
+        }
+        for (int i = 0; i < 8; ++i) {
+            round(r, ROWS[i]);
+        }
+        for (int i = 0; i < 8; ++i) {
+            round(r, COLUMNS[i]);
+        }
+        for (int i = 0; i < BLOCK_WORDS; ++i) {
+            out[outOffset + i] = tmp[i] ^ r[i];
+        }
+    }
+
+    private static void round(long[] v, int[] p) {
+        mix(v, p[0], p[4], p[8], p[12]);
+        mix(v, p[1], p[5], p[9], p[13]);
+        mix(v, p[2], p[6], p[10], p[14]);
+        mix(v, p[3], p[7], p[11], p[15]);
+        mix(v, p[0], p[5], p[10], p[15]);
+        mix(v, p[1], p[6], p[11], p[12]);
+        mix(v, p[2], p[7], p[8], p[13]);
+        mix(v, p[3], p[4], p[9], p[14]);
+    }
+
+    private static void mix(long[] v, int a, int b, int c, int d) {
+        v[a] = multiplyAdd(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = multiplyAdd(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = multiplyAdd(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = multiplyAdd(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    // BlaMka: x + y + 2 * lo(x) * lo(y)
+    private static long multiplyAdd(long x, long y) {
+        return x + y + 2 * (x & 0xffffffffL) * (y & 0xffffffffL);
+    }
+}
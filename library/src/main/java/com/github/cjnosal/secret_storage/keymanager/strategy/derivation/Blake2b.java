@@ -0,0 +1,156 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import java.util.Arrays;
+
+/**
+ * Unkeyed BLAKE2b (RFC 7693) with a variable digest length, as needed by {@link Argon2}
+ */
+class Blake2b {
+
+    static final int MAX_DIGEST_LENGTH = 64;
+    private static final int BLOCK_LENGTH = 128;
+
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+
+    private static final byte[][] SIGMA = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+            {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3},
+            {11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4},
+            {7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8},
+            {9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13},
+            {2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9},
+            {12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11},
+            {13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10},
+            {6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5},
+            {10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0},
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+            {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3}
+    };
+
+    private final long[] h = new long[8];
+    private final long[] v = new long[16];
+    private final long[] m = new long[16];
+    private final byte[] buffer = new byte[BLOCK_LENGTH];
+    private int bufferLength;
+    private long counter;
+    private int digestLength;
+
+    Blake2b(int digestLength) {
+        reset(digestLength);
+    }
+
+    void reset(int digestLength) {
+        if (digestLength < 1 || digestLength > MAX_DIGEST_LENGTH) {
+            throw new IllegalArgumentException("Invalid digest length " + digestLength);
+        }
+        this.digestLength = digestLength;
+        System.arraycopy(IV, 0, h, 0, 8);
+        h[0] ^= 0x01010000L ^ digestLength;
+        Arrays.fill(buffer, (byte) 0);
+        bufferLength = 0;
+        counter = 0;
+    }
+
+    void update(byte[] input) {
+        update(input, 0, input.length);
+    }
+
+    void update(byte[] input, int offset, int length) {
+        while (length > 0) {
+            // the last block is only compressed in digest, with the final flag set
+            if (bufferLength == BLOCK_LENGTH) {
+                counter += BLOCK_LENGTH;
+                compress(false);
+                bufferLength = 0;
+            }
+            int copied = Math.min(BLOCK_LENGTH - bufferLength, length);
+            System.arraycopy(input, offset, buffer, bufferLength, copied);
+            bufferLength += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    // little endian
+    void updateInt(int value) {
+        update(new byte[] {(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)});
+    }
+
+    void digest(byte[] output, int offset) {
+        counter += bufferLength;
+        Arrays.fill(buffer, bufferLength, BLOCK_LENGTH, (byte) 0);
+        compress(true);
+        for (int i = 0; i < digestLength; ++i) {
+            output[offset + i] = (byte) (h[i >>> 3] >>> (8 * (i & 7)));
+        }
+        clear();
+    }
+
+    void clear() {
+        Arrays.fill(h, 0);
+        Arrays.fill(v, 0);
+        Arrays.fill(m, 0);
+        Arrays.fill(buffer, (byte) 0);
+        bufferLength = 0;
+    }
+
+    private void compress(boolean last) {
+        for (int i = 0; i < 16; ++i) {
+            long word = 0;
+            for (int j = 7; j >= 0; --j) {
+                word = (word << 8) | (buffer[i * 8 + j] & 0xff);
+            }
+            m[i] = word;
+        }
+        System.arraycopy(h, 0, v, 0, 8);
+        System.arraycopy(IV, 0, v, 8, 8);
+        v[12] ^= counter;
+        if (last) {
+            v[14] = ~v[14];
+        }
+        for (int r = 0; r < 12; ++r) {
+            byte[] s = SIGMA[r];
+            mix(0, 4, 8, 12, m[s[0]], m[s[1]]);
+            mix(1, 5, 9, 13, m[s[2]], m[s[3]]);
+            mix(2, 6, 10, 14, m[s[4]], m[s[5]]);
+            mix(3, 7, 11, 15, m[s[6]], m[s[7]]);
+            mix(0, 5, 10, 15, m[s[8]], m[s[9]]);
+            mix(1, 6, 11, 12, m[s[10]], m[s[11]]);
+            mix(2, 7, 8, 13, m[s[12]], m[s[13]]);
+            mix(3, 4, 9, 14, m[s[14]], m[s[15]]);
+        }
+        for (int i = 0; i < 8; ++i) {
+            h[i] ^= v[i] ^ v[i + 8];
+        }
+    }
+
+    private void mix(int a, int b, int c, int d, long x, long y) {
+        v[a] += v[b] + x;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] += v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] += v[b] + y;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] += v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+}
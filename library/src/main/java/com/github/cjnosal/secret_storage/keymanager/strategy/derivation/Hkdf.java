@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF (RFC 5869) with HMAC-SHA256, for deriving keys from keys rather than passwords.
+ */
+public final class Hkdf {
+
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {}
+
+    public static byte[] deriveSha256(byte[] inputKey, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        if (length <= 0 || length > 255 * HASH_LENGTH) {
+            throw new InvalidKeyException("Invalid output length " + length);
+        }
+        Mac mac = Mac.getInstance(SecurityAlgorithms.Mac_HmacSHA256);
+
+        // extract
+        mac.init(new SecretKeySpec(salt.length > 0 ? salt : new byte[HASH_LENGTH], SecurityAlgorithms.Mac_HmacSHA256));
+        byte[] prk = mac.doFinal(inputKey);
+
+        // expand
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        try {
+            mac.init(new SecretKeySpec(prk, SecurityAlgorithms.Mac_HmacSHA256));
+            for (int offset = 0, counter = 1; offset < length; offset += HASH_LENGTH, counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                Arrays.fill(block, (byte) 0);
+                block = mac.doFinal();
+                System.arraycopy(block, 0, output, offset, Math.min(HASH_LENGTH, length - offset));
+            }
+        } finally {
+            Arrays.fill(prk, (byte) 0);
+            Arrays.fill(block, (byte) 0);
+        }
+        return output;
+    }
+}
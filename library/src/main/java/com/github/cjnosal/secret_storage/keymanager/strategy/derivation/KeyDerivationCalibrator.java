@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Times the derivation on this device to choose the rounds for a {@link KeyDerivationSpec#getTargetMillis() target latency}
+ *
+ * Calibrating takes up to about twice the target latency, on top of the derivation itself.
+ */
+public class KeyDerivationCalibrator {
+
+    private static final int PROBE_ROUNDS = 256;
+    private static final long MIN_PROBE_NANOS = 20000000L;
+    private static final int MAX_PROBES = 16;
+    private static final int MAX_REPEATS = 4;
+    private static final double SETTLED = 1.1;
+    private static final int MAX_ROUNDS = 10000000;
+
+    public int calibrate(KeyDerivationSpec spec, int keyBits) throws GeneralSecurityException {
+        KeyDerivationStrategy strategy = new KeyDerivationStrategy();
+        char[] password = new char[] {'c', 'a', 'l', 'i', 'b', 'r', 'a', 't', 'e'};
+        byte[] salt = new byte[keyBits / 16];
+
+        // the first probe only loads classes. Then double the probe until it takes a quarter of the target
+        // memory-hard specs have few, expensive rounds so start from their minimum
+        int rounds = Math.max(1, Math.min(PROBE_ROUNDS, spec.getRounds()));
+        long spent = time(strategy, spec, password, salt, rounds, keyBits);
+        long minProbeNanos = Math.max(MIN_PROBE_NANOS, spec.getTargetMillis() * 1000000L / 4);
+        long elapsed = time(strategy, spec, password, salt, rounds, keyBits);
+        spent += elapsed;
+        for (int i = 1; i < MAX_PROBES && elapsed < minProbeNanos; ++i) {
+            rounds *= 2;
+            elapsed = time(strategy, spec, password, salt, rounds, keyBits);
+            spent += elapsed;
+        }
+
+        // a JIT may still be speeding the derivation up, so repeat until the rate settles or the probes have taken
+        // twice the target (more for targets too short to time)
+        long budgetNanos = minProbeNanos * 8;
+        double roundsPerNano = rate(rounds, elapsed);
+        for (int i = 0; i < MAX_REPEATS && spent + elapsed <= budgetNanos; ++i) {
+            elapsed = time(strategy, spec, password, salt, rounds, keyBits);
+            spent += elapsed;
+            double repeated = rate(rounds, elapsed);
+            if (repeated < roundsPerNano * SETTLED) {
+                roundsPerNano = Math.max(roundsPerNano, repeated);
+                break;
+            }
+            roundsPerNano = repeated;
+        }
+
+        long calibrated = (long) (roundsPerNano * spec.getTargetMillis() * 1000000L);
+        return (int) Math.max(spec.getRounds(), Math.min(calibrated, MAX_ROUNDS));
+    }
+
+    private double rate(int rounds, long elapsedNanos) {
+        return rounds / (double) Math.max(elapsedNanos, 1);
+    }
+
+    private long time(KeyDerivationStrategy strategy, KeyDerivationSpec spec, char[] password, byte[] salt, int rounds, int keyBits) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        byte[] derived = strategy.derive(spec, password, salt, rounds, keyBits);
+        long elapsed = System.nanoTime() - start;
+        Arrays.fill(derived, (byte) 0);
+        return elapsed;
+    }
+}
@@ -21,16 +21,49 @@ import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
 public class KeyDerivationSpec {
     private final int rounds;
     private final @SecurityAlgorithms.SecretKeyFactory String keygenAlgorithm;
+    private final long targetMillis;
+    private final int memoryKiB;
+    private final int parallelism;
 
     public KeyDerivationSpec(int rounds, @SecurityAlgorithms.SecretKeyFactory String keygenAlgorithm) {
-        this.rounds = rounds;
+        this(rounds, keygenAlgorithm, 0);
+    }
+
+    // if targetMillis > 0 rounds are calibrated on the device when a password is set, never going below minRounds
+    public KeyDerivationSpec(int minRounds, @SecurityAlgorithms.SecretKeyFactory String keygenAlgorithm, long targetMillis) {
+        this(minRounds, keygenAlgorithm, targetMillis, 0, 1);
+    }
+
+    // for memory-hard algorithms rounds are passes over memoryKiB, split into parallelism lanes
+    public KeyDerivationSpec(int minRounds, @SecurityAlgorithms.SecretKeyFactory String keygenAlgorithm, long targetMillis, int memoryKiB, int parallelism) {
+        this.rounds = minRounds;
         this.keygenAlgorithm = keygenAlgorithm;
+        this.targetMillis = targetMillis;
+        this.memoryKiB = memoryKiB;
+        this.parallelism = parallelism;
     }
 
+    // fixed rounds, or the minimum rounds if calibrated
     public int getRounds() {
         return rounds;
     }
 
+    public long getTargetMillis() {
+        return targetMillis;
+    }
+
+    public int getMemoryKiB() {
+        return memoryKiB;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isCalibrated() {
+        return targetMillis > 0;
+    }
+
     public @SecurityAlgorithms.SecretKeyFactory String getKeygenAlgorithm() {
         return keygenAlgorithm;
     }
@@ -43,6 +76,9 @@ public class KeyDerivationSpec {
         KeyDerivationSpec that = (KeyDerivationSpec) o;
 
         if (rounds != that.rounds) return false;
+        if (targetMillis != that.targetMillis) return false;
+        if (memoryKiB != that.memoryKiB) return false;
+        if (parallelism != that.parallelism) return false;
         return keygenAlgorithm != null ? keygenAlgorithm.equals(that.keygenAlgorithm) : that.keygenAlgorithm == null;
 
     }
@@ -51,6 +87,9 @@ public class KeyDerivationSpec {
     public int hashCode() {
         int result = rounds;
         result = 31 * result + (keygenAlgorithm != null ? keygenAlgorithm.hashCode() : 0);
+        result = 31 * result + (int) (targetMillis ^ (targetMillis >>> 32));
+        result = 31 * result + memoryKiB;
+        result = 31 * result + parallelism;
         return result;
     }
 
@@ -59,6 +98,9 @@ public class KeyDerivationSpec {
         return "KeyDerivationSpec{" +
                 "rounds=" + rounds +
                 ", keygenAlgorithm='" + keygenAlgorithm + '\'' +
+                ", targetMillis=" + targetMillis +
+                ", memoryKiB=" + memoryKiB +
+                ", parallelism=" + parallelism +
                 '}';
     }
 }
@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Derives key material with a built in {@link Pbkdf2} or {@link Argon2} engine, or a SecretKeyFactory for other algorithms
+ */
+public class KeyDerivationStrategy {
+
+    public byte[] derive(KeyDerivationSpec spec, char[] password, byte[] salt, int rounds, int keyBits) throws GeneralSecurityException {
+        if (Argon2.ARGON2ID.equals(spec.getKeygenAlgorithm())) {
+            return new Argon2().derive(password, salt, rounds, spec.getMemoryKiB(), spec.getParallelism(), keyBits);
+        }
+        Pbkdf2 pbkdf2 = Pbkdf2.getInstance(spec.getKeygenAlgorithm());
+        if (pbkdf2 != null) {
+            return pbkdf2.derive(password, salt, rounds, keyBits);
+        }
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(spec.getKeygenAlgorithm());
+        PBEKeySpec keySpec = new PBEKeySpec(password, salt, rounds, keyBits);
+        try {
+            return factory.generateSecret(keySpec).getEncoded();
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    public void warmUp(KeyDerivationSpec spec) throws GeneralSecurityException {
+        if (!isBuiltIn(spec)) {
+            SecretKeyFactory.getInstance(spec.getKeygenAlgorithm());
+        }
+    }
+
+    private boolean isBuiltIn(KeyDerivationSpec spec) {
+        return Argon2.ARGON2ID.equals(spec.getKeygenAlgorithm()) || Pbkdf2.getInstance(spec.getKeygenAlgorithm()) != null;
+    }
+}
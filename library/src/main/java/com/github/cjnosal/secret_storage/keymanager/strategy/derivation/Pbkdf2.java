@@ -0,0 +1,396 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.cjnosal.secret_storage.keymanager.strategy.derivation;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.keymanager.crypto.SecurityAlgorithms;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+/**
+ * PBKDF2 (RFC 8018) with HMAC-SHA256 or HMAC-SHA512 and a UTF-8 encoded password.
+ *
+ * The HMAC key is absorbed into the inner and outer pad states once per derivation. Each iteration then
+ * compresses exactly two blocks with fixed padding into preallocated arrays, with no re-keying or allocation.
+ * Instances are not thread safe.
+ */
+public abstract class Pbkdf2 {
+
+    public static final String HMAC_SHA256 = "Builtin-PBKDF2WithHmacSHA256";
+    public static final String HMAC_SHA512 = "Builtin-PBKDF2WithHmacSHA512";
+
+    private final String digestAlgorithm;
+    private final int blockSize;
+    private final int digestSize;
+
+    Pbkdf2(String digestAlgorithm, int blockSize, int digestSize) {
+        this.digestAlgorithm = digestAlgorithm;
+        this.blockSize = blockSize;
+        this.digestSize = digestSize;
+    }
+
+    // null if the algorithm isn't built in
+    public static @Nullable Pbkdf2 getInstance(String algorithm) {
+        if (HMAC_SHA256.equals(algorithm)) {
+            return new Sha256();
+        } else if (HMAC_SHA512.equals(algorithm)) {
+            return new Sha512();
+        }
+        return null;
+    }
+
+    public byte[] derive(char[] password, byte[] salt, int rounds, int keyBits) throws GeneralSecurityException {
+        if (rounds < 1 || keyBits <= 0 || keyBits % 8 != 0) {
+            throw new InvalidKeySpecException("Invalid rounds " + rounds + " or key size " + keyBits);
+        }
+        MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+        byte[] key = encode(password);
+        byte[] ipad = new byte[blockSize];
+        byte[] opad = new byte[blockSize];
+        byte[] inner = null;
+        byte[] block = new byte[digestSize];
+        byte[] derived = new byte[keyBits / 8];
+        try {
+            if (key.length > blockSize) {
+                byte[] hashed = digest.digest(key);
+                Arrays.fill(key, (byte) 0);
+                key = hashed;
+            }
+            for (int i = 0; i < blockSize; ++i) {
+                byte k = i < key.length ? key[i] : 0;
+                ipad[i] = (byte) (k ^ 0x36);
+                opad[i] = (byte) (k ^ 0x5c);
+            }
+            init(ipad, opad);
+
+            for (int index = 1, offset = 0; offset < derived.length; ++index, offset += digestSize) {
+                // U1 = HMAC(password, salt || INT(index))
+                digest.update(ipad);
+                digest.update(salt);
+                digest.update(new byte[] {(byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index});
+                inner = digest.digest();
+                digest.update(opad);
+                digest.update(inner);
+                digest.digest(block, 0, digestSize);
+
+                iterate(block, rounds);
+                System.arraycopy(block, 0, derived, offset, Math.min(digestSize, derived.length - offset));
+            }
+            return derived;
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(ipad, (byte) 0);
+            Arrays.fill(opad, (byte) 0);
+            Arrays.fill(block, (byte) 0);
+            if (inner != null) {
+                Arrays.fill(inner, (byte) 0);
+            }
+            clear();
+        }
+    }
+
+    // precompute the inner and outer states after one block of the padded key
+    abstract void init(byte[] ipad, byte[] opad);
+
+    // block holds U1 on entry and U1 ^ U2 ^ ... ^ Urounds on return
+    abstract void iterate(byte[] block, int rounds);
+
+    abstract void clear();
+
+    static byte[] encode(char[] password) {
+        ByteBuffer encoded = Charset.forName("UTF-8").encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        if (encoded.hasArray()) {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+        return bytes;
+    }
+
+    private static class Sha256 extends Pbkdf2 {
+        private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+        private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+        };
+        // bit length of a pad block followed by a digest
+        private static final int MESSAGE_BITS = (64 + 32) * 8;
+
+        private final int[] inner = new int[8];
+        private final int[] outer = new int[8];
+        private final int[] state = new int[8];
+        private final int[] u = new int[8];
+        private final int[] t = new int[8];
+        private final int[] w = new int[64];
+
+        Sha256() {
+            super(SecurityAlgorithms.MessageDigest_SHA_256, 64, 32);
+        }
+
+        @Override
+        void init(byte[] ipad, byte[] opad) {
+            absorb(inner, ipad);
+            absorb(outer, opad);
+        }
+
+        @Override
+        void iterate(byte[] block, int rounds) {
+            for (int i = 0; i < 8; ++i) {
+                u[i] = readInt(block, i * 4);
+                t[i] = u[i];
+            }
+            for (int r = 1; r < rounds; ++r) {
+                digestBlock(inner, u);
+                digestBlock(outer, state);
+                for (int i = 0; i < 8; ++i) {
+                    u[i] = state[i];
+                    t[i] ^= state[i];
+                }
+            }
+            for (int i = 0; i < 8; ++i) {
+                writeInt(t[i], block, i * 4);
+            }
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(inner, 0);
+            Arrays.fill(outer, 0);
+            Arrays.fill(state, 0);
+            Arrays.fill(u, 0);
+            Arrays.fill(t, 0);
+            Arrays.fill(w, 0);
+        }
+
+        private void absorb(int[] padState, byte[] pad) {
+            System.arraycopy(IV, 0, padState, 0, 8);
+            for (int i = 0; i < 16; ++i) {
+                w[i] = readInt(pad, i * 4);
+            }
+            compress(padState);
+        }
+
+        // state = hash(pad || message) where message is a single digest
+        private void digestBlock(int[] padState, int[] message) {
+            System.arraycopy(message, 0, w, 0, 8);
+            w[8] = 0x80000000;
+            for (int i = 9; i < 15; ++i) {
+                w[i] = 0;
+            }
+            w[15] = MESSAGE_BITS;
+            System.arraycopy(padState, 0, state, 0, 8);
+            compress(state);
+        }
+
+        private void compress(int[] s) {
+            for (int i = 16; i < 64; ++i) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            int a = s[0], b = s[1], c = s[2], d = s[3], e = s[4], f = s[5], g = s[6], h = s[7];
+            for (int i = 0; i < 64; ++i) {
+                int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + K[i] + w[i];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            s[0] += a;
+            s[1] += b;
+            s[2] += c;
+            s[3] += d;
+            s[4] += e;
+            s[5] += f;
+            s[6] += g;
+            s[7] += h;
+        }
+
+        private static int readInt(byte[] bytes, int offset) {
+            return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+        }
+
+        private static void writeInt(int value, byte[] bytes, int offset) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+    }
+
+    private static class Sha512 extends Pbkdf2 {
+        private static final long[] K = {
+        0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+        0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+        0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+        0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+        0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+        0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+        0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+        0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+        0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+        0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+        0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+        0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+        0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+        0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+        0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+        0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+        0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+        0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+        0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+        0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+        };
+        private static final long[] IV = {
+        0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+        0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+        };
+        // bit length of a pad block followed by a digest
+        private static final long MESSAGE_BITS = (128 + 64) * 8;
+
+        private final long[] inner = new long[8];
+        private final long[] outer = new long[8];
+        private final long[] state = new long[8];
+        private final long[] u = new long[8];
+        private final long[] t = new long[8];
+        private final long[] w = new long[80];
+
+        Sha512() {
+            super(SecurityAlgorithms.MessageDigest_SHA_512, 128, 64);
+        }
+
+        @Override
+        void init(byte[] ipad, byte[] opad) {
+            absorb(inner, ipad);
+            absorb(outer, opad);
+        }
+
+        @Override
+        void iterate(byte[] block, int rounds) {
+            for (int i = 0; i < 8; ++i) {
+                u[i] = readLong(block, i * 8);
+                t[i] = u[i];
+            }
+            for (int r = 1; r < rounds; ++r) {
+                digestBlock(inner, u);
+                digestBlock(outer, state);
+                for (int i = 0; i < 8; ++i) {
+                    u[i] = state[i];
+                    t[i] ^= state[i];
+                }
+            }
+            for (int i = 0; i < 8; ++i) {
+                writeLong(t[i], block, i * 8);
+            }
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(inner, 0);
+            Arrays.fill(outer, 0);
+            Arrays.fill(state, 0);
+            Arrays.fill(u, 0);
+            Arrays.fill(t, 0);
+            Arrays.fill(w, 0);
+        }
+
+        private void absorb(long[] padState, byte[] pad) {
+            System.arraycopy(IV, 0, padState, 0, 8);
+            for (int i = 0; i < 16; ++i) {
+                w[i] = readLong(pad, i * 8);
+            }
+            compress(padState);
+        }
+
+        // state = hash(pad || message) where message is a single digest
+        private void digestBlock(long[] padState, long[] message) {
+            System.arraycopy(message, 0, w, 0, 8);
+            w[8] = 0x8000000000000000L;
+            for (int i = 9; i < 15; ++i) {
+                w[i] = 0;
+            }
+            w[15] = MESSAGE_BITS;
+            System.arraycopy(padState, 0, state, 0, 8);
+            compress(state);
+        }
+
+        private void compress(long[] s) {
+            for (int i = 16; i < 80; ++i) {
+                long s0 = Long.rotateRight(w[i - 15], 1) ^ Long.rotateRight(w[i - 15], 8) ^ (w[i - 15] >>> 7);
+                long s1 = Long.rotateRight(w[i - 2], 19) ^ Long.rotateRight(w[i - 2], 61) ^ (w[i - 2] >>> 6);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            long a = s[0], b = s[1], c = s[2], d = s[3], e = s[4], f = s[5], g = s[6], h = s[7];
+            for (int i = 0; i < 80; ++i) {
+                long t1 = h + (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41)) + ((e & f) ^ (~e & g)) + K[i] + w[i];
+                long t2 = (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39)) + ((a & b) ^ (a & c) ^ (b & c));
+                h = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            s[0] += a;
+            s[1] += b;
+            s[2] += c;
+            s[3] += d;
+            s[4] += e;
+            s[5] += f;
+            s[6] += g;
+            s[7] += h;
+        }
+
+        private static long readLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; ++i) {
+                value = (value << 8) | (bytes[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        private static void writeLong(long value, byte[] bytes, int offset) {
+            for (int i = 7; i >= 0; --i) {
+                bytes[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+}
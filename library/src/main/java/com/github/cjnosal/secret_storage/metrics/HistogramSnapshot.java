@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.metrics;
+
+/**
+ * Point in time copy of a latency histogram. Percentiles are reported as the upper bound of the power of two
+ * bucket they fall in, so they are accurate to within a factor of two.
+ */
+public class HistogramSnapshot {
+
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] buckets;
+
+    HistogramSnapshot(long count, long totalNanos, long maxNanos, long[] buckets) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.buckets = buckets;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    // percentile in [0, 100]
+    public long getPercentileNanos(double percentile) {
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(maxNanos, i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return maxNanos;
+    }
+
+    public long[] getBuckets() {
+        return buckets.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot{" +
+                "count=" + count +
+                ", meanNanos=" + getMeanNanos() +
+                ", p50Nanos=" + getPercentileNanos(50) +
+                ", p99Nanos=" + getPercentileNanos(99) +
+                ", maxNanos=" + maxNanos +
+                '}';
+    }
+}
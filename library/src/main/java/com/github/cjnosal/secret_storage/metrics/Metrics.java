@@ -0,0 +1,115 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.metrics;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Global hook for stage level metrics. Nothing is recorded until a MetricsRecorder is installed,
+ * and while none is installed the timing helpers don't read the clock.
+ *
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * Metrics.stop(Metrics.CIPHER_ENCRYPT, start);
+ * </pre>
+ */
+public final class Metrics {
+
+    // latencies
+    public static final String UNLOCK_KDF = "unlock.kdf";
+    public static final String UNLOCK_UNWRAP = "unlock.unwrap";
+    public static final String KEYSTORE_OPEN = "keystore.open";
+    public static final String KEYSTORE_LOAD = "keystore.load";
+    public static final String KEYSTORE_STORE = "keystore.store";
+    public static final String KEYSTORE_CONTAINS = "keystore.contains";
+    public static final String KEYSTORE_DELETE = "keystore.delete";
+    public static final String DATA_KEY_PREPARE = "data_key.prepare";
+    public static final String CIPHER_ENCRYPT = "cipher.encrypt";
+    public static final String CIPHER_DECRYPT = "cipher.decrypt";
+    public static final String MAC_SIGN = "mac.sign";
+    public static final String MAC_VERIFY = "mac.verify";
+    public static final String ENVELOPE_FRAME = "envelope.frame";
+    public static final String ENVELOPE_PARSE = "envelope.parse";
+    public static final String ENTRY_KEY_DERIVE = "entry_key.derive";
+
+    // counters
+    public static final String BYTES_ENCRYPTED = "bytes.encrypted";
+    public static final String BYTES_DECRYPTED = "bytes.decrypted";
+
+    // cache counters are named cache.<name>.hit and cache.<name>.miss
+    private static final String CACHE_PREFIX = "cache.";
+    private static final String HIT_SUFFIX = ".hit";
+    private static final String MISS_SUFFIX = ".miss";
+
+    private static volatile @Nullable MetricsRecorder recorder;
+
+    private Metrics() {}
+
+    public static void setRecorder(@Nullable MetricsRecorder metricsRecorder) {
+        recorder = metricsRecorder;
+    }
+
+    public static @Nullable MetricsRecorder getRecorder() {
+        return recorder;
+    }
+
+    public static boolean isEnabled() {
+        return recorder != null;
+    }
+
+    // returns 0 when disabled so that stop() can skip the second clock read
+    public static long start() {
+        return recorder != null ? System.nanoTime() : 0;
+    }
+
+    public static void stop(String name, long start) {
+        MetricsRecorder current = recorder;
+        if (current != null && start != 0) {
+            current.recordNanos(name, System.nanoTime() - start);
+        }
+    }
+
+    public static void count(String name, long delta) {
+        MetricsRecorder current = recorder;
+        if (current != null) {
+            current.count(name, delta);
+        }
+    }
+
+    public static void cacheHit(String cache) {
+        MetricsRecorder current = recorder;
+        if (current != null) {
+            current.count(hitCounter(cache), 1);
+        }
+    }
+
+    public static void cacheMiss(String cache) {
+        MetricsRecorder current = recorder;
+        if (current != null) {
+            current.count(missCounter(cache), 1);
+        }
+    }
+
+    static String hitCounter(String cache) {
+        return CACHE_PREFIX + cache + HIT_SUFFIX;
+    }
+
+    static String missCounter(String cache) {
+        return CACHE_PREFIX + cache + MISS_SUFFIX;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory MetricsRecorder keeping counters and latency histograms by name
+ *
+ * <pre>
+ * MetricsRegistry registry = new MetricsRegistry();
+ * Metrics.setRecorder(registry);
+ * ...
+ * MetricsSnapshot snapshot = registry.snapshot();
+ * </pre>
+ */
+public class MetricsRegistry implements MetricsRecorder {
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void count(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    @Override
+    public void recordNanos(String name, long nanos) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counterValues = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            counterValues.put(counter.getKey(), counter.getValue().get());
+        }
+        Map<String, HistogramSnapshot> histogramValues = new HashMap<>();
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            histogramValues.put(histogram.getKey(), histogram.getValue().snapshot());
+        }
+        return new MetricsSnapshot(counterValues, histogramValues);
+    }
+
+    public void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+}
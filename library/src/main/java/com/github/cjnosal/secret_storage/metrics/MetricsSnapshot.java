@@ -0,0 +1,68 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.metrics;
+
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Point in time copy of a MetricsRegistry
+ */
+public class MetricsSnapshot {
+
+    private final Map<String, Long> counters;
+    private final Map<String, HistogramSnapshot> histograms;
+
+    MetricsSnapshot(Map<String, Long> counters, Map<String, HistogramSnapshot> histograms) {
+        this.counters = Collections.unmodifiableMap(counters);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, HistogramSnapshot> getHistograms() {
+        return histograms;
+    }
+
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    public @Nullable HistogramSnapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    // fraction of lookups reported through Metrics.cacheHit/cacheMiss that hit, or 0 if there were none
+    public double getHitRate(String cache) {
+        long hits = getCounter(Metrics.hitCounter(cache));
+        long lookups = hits + getCounter(Metrics.missCounter(cache));
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{" +
+                "counters=" + counters +
+                ", histograms=" + histograms +
+                '}';
+    }
+}
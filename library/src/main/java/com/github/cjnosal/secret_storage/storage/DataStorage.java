@@ -17,16 +17,21 @@
 package com.github.cjnosal.secret_storage.storage;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.Set;
 
 public interface DataStorage {
     void store(@NonNull String id, @NonNull byte[] bytes) throws IOException;
     @NonNull byte[] load(@NonNull String id) throws IOException;
 
+    // null if the id is not stored, without building an exception for the miss
+    @Nullable byte[] loadIfPresent(@NonNull String id) throws IOException;
+
     @NonNull OutputStream write(@NonNull String id) throws IOException;
     @NonNull InputStream read(@NonNull String id) throws IOException;
 
@@ -35,5 +40,8 @@ public interface DataStorage {
     void clear() throws IOException;
     Set<String> entries();
 
+    // walk entry ids without collecting them first
+    Iterator<String> iterateEntries();
+
     String getSeparator();
 }
@@ -17,52 +17,103 @@
 package com.github.cjnosal.secret_storage.storage;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 public class FileStorage implements DataStorage {
 
+    private static final String TEMP_PREFIX = ".tmp-";
+
     final File directory;
 
     public FileStorage(@NonNull String directoryPath) {
         this.directory = new File(directoryPath);
     }
 
+    // written to a temporary file of its own, synced and renamed over the entry, so a crash never leaves a partially
+    // written entry and concurrent stores of one id don't share a file
     @Override
     public void store(@NonNull String id, @NonNull byte[] bytes) throws IOException {
-        OutputStream fos = null;
+        Span span = Tracing.begin("file_storage.store", id);
         try {
-            fos = write(id);
-            fos.write(bytes);
-        } finally {
-            if (fos != null) {
+            File file = getEntryFile(id);
+            File parentFile = file.getParentFile();
+            if (!parentFile.exists() && !parentFile.mkdirs()) {
+                throw new IOException("Unable to create directory " + directory.getPath());
+            }
+            File temp = File.createTempFile(TEMP_PREFIX, null, parentFile);
+            try {
+                FileOutputStream fos = new FileOutputStream(temp);
                 try {
+                    fos.write(bytes);
                     fos.flush();
+                    fos.getFD().sync();
                 } finally {
                     fos.close();
                 }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to replace file " + file.getPath());
+                }
+            } finally {
+                if (temp.exists()) {
+                    temp.delete();
+                }
             }
+        } finally {
+            span.end();
         }
     }
 
     @Override
     public @NonNull byte[] load(@NonNull String id) throws IOException {
-        InputStream fis = null;
+        Span span = Tracing.begin("file_storage.load", id);
         try {
-            fis = read(id);
-            return readAll(fis);
+            InputStream fis = null;
+            try {
+                fis = read(id);
+                return readAll(fis);
+            } finally {
+                if (fis != null) {
+                    fis.close();
+                }
+            }
         } finally {
-            if (fis != null) {
-                fis.close();
+            span.end();
+        }
+    }
+
+    @Override
+    public @Nullable byte[] loadIfPresent(@NonNull String id) throws IOException {
+        Span span = Tracing.begin("file_storage.load_if_present", id);
+        try {
+            if (!new File(directory, id).isFile()) {
+                return null;
+            }
+            try {
+                return load(id);
+            } catch (FileNotFoundException e) {
+                // deleted since the check
+                return null;
             }
+        } finally {
+            span.end();
         }
     }
 
@@ -82,39 +133,64 @@ public class FileStorage implements DataStorage {
     @NonNull
     @Override
     public OutputStream write(@NonNull String id) throws IOException {
-        File file = new File(directory, id);
-        File parentFile = file.getParentFile();
-        if (!parentFile.exists() && !parentFile.mkdirs()) {
-            throw new IOException("Unable to create directory " + directory.getPath());
-        }
-        if (!file.exists() && !file.createNewFile()) {
-            throw new IOException("Unable to create file " + file.getPath());
+        Span span = Tracing.begin("file_storage.write", id);
+        try {
+            File file = getEntryFile(id);
+            File parentFile = file.getParentFile();
+            if (!parentFile.exists() && !parentFile.mkdirs()) {
+                throw new IOException("Unable to create directory " + directory.getPath());
+            }
+            if (!file.exists() && !file.createNewFile()) {
+                throw new IOException("Unable to create file " + file.getPath());
+            }
+            return new FileOutputStream(file);
+        } finally {
+            span.end();
         }
-        return new FileOutputStream(file);
     }
 
     @NonNull
     @Override
     public InputStream read(@NonNull String id) throws IOException {
-        File file = new File(directory, id);
-        return new FileInputStream(file);
+        Span span = Tracing.begin("file_storage.read", id);
+        try {
+            File file = new File(directory, id);
+            return new FileInputStream(file);
+        } finally {
+            span.end();
+        }
     }
 
     @Override
     public boolean exists(@NonNull String id) {
-        File f = new File(directory, id);
-        return f.exists();
+        Span span = Tracing.begin("file_storage.exists", id);
+        try {
+            File f = new File(directory, id);
+            return f.exists();
+        } finally {
+            span.end();
+        }
     }
 
     @Override
     public void delete(@NonNull String id) throws IOException {
-        File f = new File(directory, id);
-        clear(f);
+        Span span = Tracing.begin("file_storage.delete", id);
+        try {
+            File f = new File(directory, id);
+            clear(f);
+        } finally {
+            span.end();
+        }
     }
 
     @Override
     public void clear() throws IOException {
-        clear(directory);
+        Span span = Tracing.begin("file_storage.clear");
+        try {
+            clear(directory);
+        } finally {
+            span.end();
+        }
     }
 
     private void clear(File file) throws IOException {
@@ -133,29 +209,86 @@ public class FileStorage implements DataStorage {
         }
     }
 
+    // names starting with TEMP_PREFIX are reserved for files being stored, which iteration skips
+    private File getEntryFile(String id) {
+        File file = new File(directory, id);
+        if (file.getName().startsWith(TEMP_PREFIX)) {
+            throw new IllegalArgumentException("Ids may not start with " + TEMP_PREFIX + ": " + id);
+        }
+        return file;
+    }
+
     @Override
     public Set<String> entries() {
         HashSet<String> files = new HashSet<>();
-        if (directory.exists()) {
-            entries(files, directory);
+        Iterator<String> iterator = iterateEntries();
+        while (iterator.hasNext()) {
+            files.add(iterator.next());
         }
         return files;
     }
 
-    private void entries(Set<String> entries, File dir) {
-        File[] files = dir.listFiles();
-        for (File f : files) {
-            if (f.isDirectory()) {
-                entries(entries, f);
-            } else {
-                String relative = directory.toURI().relativize(f.toURI()).getPath();
-                entries.add(relative);
-            }
-        }
+    @Override
+    public Iterator<String> iterateEntries() {
+        return new EntryIterator(directory);
     }
 
     @Override
     public String getSeparator() {
         return File.separator;
     }
+
+    // depth-first walk that lists one directory at a time
+    private static class EntryIterator implements Iterator<String> {
+        private final File root;
+        private final Deque<String> pendingDirectories = new ArrayDeque<>();
+        private String currentDirectory;
+        private String[] names;
+        private int index;
+        private String next;
+
+        EntryIterator(File root) {
+            this.root = root;
+            if (root.isDirectory()) {
+                pendingDirectories.push("");
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (names != null && index < names.length) {
+                    String name = names[index++];
+                    String relative = currentDirectory + name;
+                    if (new File(root, relative).isDirectory()) {
+                        pendingDirectories.push(relative + File.separator);
+                    } else if (!name.startsWith(TEMP_PREFIX)) {
+                        next = relative;
+                    }
+                } else if (pendingDirectories.isEmpty()) {
+                    return false;
+                } else {
+                    currentDirectory = pendingDirectories.pop();
+                    names = new File(root, currentDirectory).list();
+                    index = 0;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Records latency and byte counts of another DataStorage under storage.<name>.* metrics.
+ * Streams opened by read and write are timed until they are returned, not until they are closed.
+ */
+public class InstrumentedDataStorage implements DataStorage {
+
+    private final DataStorage storage;
+
+    private final String storeMetric;
+    private final String loadMetric;
+    private final String existsMetric;
+    private final String deleteMetric;
+    private final String clearMetric;
+    private final String entriesMetric;
+    private final String openMetric;
+    private final String bytesWrittenMetric;
+    private final String bytesReadMetric;
+
+    public InstrumentedDataStorage(String name, DataStorage storage) {
+        this.storage = storage;
+        String prefix = "storage." + name + ".";
+        storeMetric = prefix + "store";
+        loadMetric = prefix + "load";
+        existsMetric = prefix + "exists";
+        deleteMetric = prefix + "delete";
+        clearMetric = prefix + "clear";
+        entriesMetric = prefix + "entries";
+        openMetric = prefix + "open";
+        bytesWrittenMetric = prefix + "bytes_written";
+        bytesReadMetric = prefix + "bytes_read";
+    }
+
+    @Override
+    public void store(@NonNull String id, @NonNull byte[] bytes) throws IOException {
+        long start = Metrics.start();
+        storage.store(id, bytes);
+        Metrics.stop(storeMetric, start);
+        Metrics.count(bytesWrittenMetric, bytes.length);
+    }
+
+    @NonNull
+    @Override
+    public byte[] load(@NonNull String id) throws IOException {
+        long start = Metrics.start();
+        byte[] bytes = storage.load(id);
+        Metrics.stop(loadMetric, start);
+        Metrics.count(bytesReadMetric, bytes.length);
+        return bytes;
+    }
+
+    @Nullable
+    @Override
+    public byte[] loadIfPresent(@NonNull String id) throws IOException {
+        long start = Metrics.start();
+        byte[] bytes = storage.loadIfPresent(id);
+        Metrics.stop(loadMetric, start);
+        if (bytes != null) {
+            Metrics.count(bytesReadMetric, bytes.length);
+        }
+        return bytes;
+    }
+
+    @NonNull
+    @Override
+    public OutputStream write(@NonNull String id) throws IOException {
+        long start = Metrics.start();
+        OutputStream stream = storage.write(id);
+        Metrics.stop(openMetric, start);
+        return stream;
+    }
+
+    @NonNull
+    @Override
+    public InputStream read(@NonNull String id) throws IOException {
+        long start = Metrics.start();
+        InputStream stream = storage.read(id);
+        Metrics.stop(openMetric, start);
+        return stream;
+    }
+
+    @Override
+    public boolean exists(@NonNull String id) {
+        long start = Metrics.start();
+        boolean exists = storage.exists(id);
+        Metrics.stop(existsMetric, start);
+        return exists;
+    }
+
+    @Override
+    public void delete(@NonNull String id) throws IOException {
+        long start = Metrics.start();
+        storage.delete(id);
+        Metrics.stop(deleteMetric, start);
+    }
+
+    @Override
+    public void clear() throws IOException {
+        long start = Metrics.start();
+        storage.clear();
+        Metrics.stop(clearMetric, start);
+    }
+
+    @Override
+    public Set<String> entries() {
+        long start = Metrics.start();
+        Set<String> entries = storage.entries();
+        Metrics.stop(entriesMetric, start);
+        return entries;
+    }
+
+    @Override
+    public Iterator<String> iterateEntries() {
+        return storage.iterateEntries();
+    }
+
+    @Override
+    public String getSeparator() {
+        return storage.getSeparator();
+    }
+}
@@ -19,15 +19,19 @@ package com.github.cjnosal.secret_storage.storage;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
 import com.github.cjnosal.secret_storage.storage.util.PreferenceOutputStream;
+import com.github.cjnosal.secret_storage.tracing.Span;
+import com.github.cjnosal.secret_storage.tracing.Tracing;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.Set;
 
 public class PreferenceStorage implements DataStorage {
@@ -39,53 +43,102 @@ public class PreferenceStorage implements DataStorage {
 
     @Override
     public void store(@NonNull String id, @NonNull byte[] bytes) throws IOException {
-        String encoded = Encoding.base64Encode(bytes);
-        boolean success = preferences.edit().putString(id, encoded).commit();
-        if (!success) {
-            throw new IOException("Failed to save " + id + " to preferences");
+        Span span = Tracing.begin("preference_storage.store", id);
+        try {
+            String encoded = Encoding.base64Encode(bytes);
+            boolean success = preferences.edit().putString(id, encoded).commit();
+            if (!success) {
+                throw new IOException("Failed to save " + id + " to preferences");
+            }
+        } finally {
+            span.end();
         }
     }
 
     @Override
     public @NonNull byte[] load(@NonNull String id) throws IOException {
-        String byteString = preferences.getString(id, null);
-        if (byteString == null) {
-            throw new IOException("Key " + id + " not present in preferences");
+        Span span = Tracing.begin("preference_storage.load", id);
+        try {
+            byte[] bytes = loadIfPresent(id);
+            if (bytes == null) {
+                throw new IOException("Key " + id + " not present in preferences");
+            }
+            return bytes;
+        } finally {
+            span.end();
+        }
+    }
+
+    @Override
+    public @Nullable byte[] loadIfPresent(@NonNull String id) throws IOException {
+        Span span = Tracing.begin("preference_storage.load_if_present", id);
+        try {
+            String byteString = preferences.getString(id, null);
+            if (byteString == null) {
+                return null;
+            }
+            return Encoding.base64Decode(byteString);
+        } finally {
+            span.end();
         }
-        return Encoding.base64Decode(byteString);
     }
 
     @NonNull
     @Override
     public OutputStream write(@NonNull String id) throws IOException {
-        return new PreferenceOutputStream(preferences, id);
+        Span span = Tracing.begin("preference_storage.write", id);
+        try {
+            return new PreferenceOutputStream(preferences, id);
+        } finally {
+            span.end();
+        }
     }
 
     @NonNull
     @Override
     public InputStream read(@NonNull String id) throws IOException {
-        byte[] bytes = load(id);
-        return new ByteArrayInputStream(bytes);
+        Span span = Tracing.begin("preference_storage.read", id);
+        try {
+            byte[] bytes = load(id);
+            return new ByteArrayInputStream(bytes);
+        } finally {
+            span.end();
+        }
     }
 
     @Override
     public boolean exists(@NonNull String id) {
-        return preferences.contains(id);
+        Span span = Tracing.begin("preference_storage.exists", id);
+        try {
+            return preferences.contains(id);
+        } finally {
+            span.end();
+        }
     }
 
     @Override
     public void delete(@NonNull String id) throws IOException {
-        boolean success = preferences.edit().remove(id).commit();
-        if (!success) {
-            throw new IOException("Failed to delete " + id);
+        Span span = Tracing.begin("preference_storage.delete", id);
+        try {
+            boolean success = preferences.edit().remove(id).commit();
+            if (!success) {
+                throw new IOException("Failed to delete " + id);
+            }
+        } finally {
+            span.end();
         }
     }
 
     @Override
     public void clear() throws IOException {
-        boolean success = preferences.edit().clear().commit();
-        if (!success) {
-            throw new IOException("Failed to erase preferences");
+        Span span = Tracing.begin("preference_storage.clear");
+        try {
+            boolean success = preferences.edit().clear().commit();
+            if (!success) {
+                throw new IOException("Failed to erase preferences");
+            }
+        } finally {
+            span.end();
         }
     }
 
@@ -94,6 +147,12 @@ public class PreferenceStorage implements DataStorage {
         return preferences.getAll().keySet();
     }
 
+    @Override
+    public Iterator<String> iterateEntries() {
+        // SharedPreferences only exposes a snapshot of all entries
+        return preferences.getAll().keySet().iterator();
+    }
+
     @Override
     public String getSeparator() {
         return File.pathSeparator;
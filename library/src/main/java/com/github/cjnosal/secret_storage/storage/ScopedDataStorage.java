@@ -16,11 +16,14 @@
 package com.github.cjnosal.secret_storage.storage;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 public class ScopedDataStorage implements DataStorage {
@@ -44,6 +47,12 @@ public class ScopedDataStorage implements DataStorage {
         return storage.load(getScopedId(id));
     }
 
+    @Nullable
+    @Override
+    public byte[] loadIfPresent(@NonNull String id) throws IOException {
+        return storage.loadIfPresent(getScopedId(id));
+    }
+
     @NonNull
     @Override
     public OutputStream write(@NonNull String id) throws IOException {
@@ -77,14 +86,18 @@ public class ScopedDataStorage implements DataStorage {
     @Override
     public Set<String> entries() {
         Set<String> unscopedEntries = new HashSet<>();
-        for (String scopedId : storage.entries()) {
-            if (scopedId.startsWith(scope + getSeparator())) {
-                unscopedEntries.add(getUnscopedId(scopedId));
-            }
+        Iterator<String> iterator = iterateEntries();
+        while (iterator.hasNext()) {
+            unscopedEntries.add(iterator.next());
         }
         return unscopedEntries;
     }
 
+    @Override
+    public Iterator<String> iterateEntries() {
+        return new ScopeIterator(storage.iterateEntries(), scope + getSeparator());
+    }
+
     @Override
     public String getSeparator() {
         return storage.getSeparator();
@@ -102,8 +115,50 @@ public class ScopedDataStorage implements DataStorage {
         return scope + getSeparator() + id;
     }
 
+    // the scope may itself contain the separator, e.g. "tenant:kek"
     public String getUnscopedId(String scopedId) {
+        String prefix = scope + getSeparator();
+        if (scopedId.startsWith(prefix)) {
+            return scopedId.substring(prefix.length());
+        }
         String separator = getSeparator();
         return scopedId.substring(scopedId.indexOf(separator) + separator.length());
     }
+
+    private class ScopeIterator implements Iterator<String> {
+        private final Iterator<String> scopedIds;
+        private final String prefix;
+        private String next;
+
+        ScopeIterator(Iterator<String> scopedIds, String prefix) {
+            this.scopedIds = scopedIds;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && scopedIds.hasNext()) {
+                String scopedId = scopedIds.next();
+                if (scopedId.startsWith(prefix)) {
+                    next = getUnscopedId(scopedId);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
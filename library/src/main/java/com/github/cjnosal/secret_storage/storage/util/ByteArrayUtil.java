@@ -16,6 +16,7 @@
 
 package com.github.cjnosal.secret_storage.storage.util;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 public class ByteArrayUtil {
@@ -34,13 +35,22 @@ public class ByteArrayUtil {
         ByteBuffer buffer = ByteBuffer.wrap(joined);
 
         int firstLength = buffer.getInt();
+        checkLength(buffer, firstLength);
         splitArrays[0] = new byte[firstLength];
         buffer.get(splitArrays[0]);
 
         int secondLength = buffer.getInt();
+        checkLength(buffer, secondLength);
         splitArrays[1] = new byte[secondLength];
         buffer.get(splitArrays[1]);
 
         return splitArrays;
     }
+
+    // fail before allocating when a corrupt length prefix exceeds the remaining bytes
+    private static void checkLength(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+    }
 }
@@ -16,12 +16,15 @@
 
 package com.github.cjnosal.secret_storage.storage.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class DataStreamUtil {
 
+    private static final int CHUNK_SIZE = 8192;
+
     public void writeByteArray(byte[] bytes, DataOutputStream ds) throws IOException {
         ds.writeInt(bytes.length);
         ds.write(bytes);
@@ -29,8 +32,47 @@ public class DataStreamUtil {
 
     public byte[] readByteArray(DataInputStream ds) throws IOException {
         int length = ds.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length " + length);
+        }
+        return readFully(ds, length);
+    }
+
+    // for untrusted streams: lengths above maxLength are rejected, and large arrays grow as their bytes arrive, so a
+    // corrupt length prefix can't allocate more than the stream holds
+    public byte[] readByteArray(DataInputStream ds, int maxLength) throws IOException {
+        int length = ds.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid length " + length + ", expected at most " + maxLength);
+        }
+        if (length <= CHUNK_SIZE) {
+            return readFully(ds, length);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int remaining = length;
+        while (remaining > 0) {
+            int count = ds.read(chunk, 0, Math.min(chunk.length, remaining));
+            if (count == -1) {
+                throw new IOException("Length mismatch: expected " + length + " but was " + (length - remaining));
+            }
+            buffer.write(chunk, 0, count);
+            remaining -= count;
+        }
+        return buffer.toByteArray();
+    }
+
+    private byte[] readFully(DataInputStream ds, int length) throws IOException {
         byte[] bytes = new byte[length];
-        int bytesRead = ds.read(bytes);
+        // streams may return fewer bytes than requested per read
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            int count = ds.read(bytes, bytesRead, length - bytesRead);
+            if (count == -1) {
+                break;
+            }
+            bytesRead += count;
+        }
         if (bytesRead != length) {
             throw new IOException("Length mismatch: expected " + length + " but was " + bytesRead);
         }
@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.storage.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.Mac;
+
+// updates the Mac with every byte written to the wrapped stream
+public class MacOutputStream extends FilterOutputStream {
+
+    private final Mac mac;
+
+    public MacOutputStream(OutputStream out, Mac mac) {
+        super(out);
+        this.mac = mac;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mac.update((byte) b);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mac.update(b, off, len);
+        out.write(b, off, len);
+    }
+
+    public Mac getMac() {
+        return mac;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.tracing;
+
+import android.support.annotation.Nullable;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Emits a Java Flight Recorder event for each span, e.g. com.github.cjnosal.secret_storage.secret_storage.load.
+ *
+ * jdk.jfr is loaded reflectively because it doesn't exist on Android; {@link #create(String)} returns null there,
+ * and no event types are registered until a span with that name is begun. Events are only committed when a
+ * recording has them enabled and the span took longer than the threshold, which defaults to 20 ms and can be
+ * overridden by the recording settings.
+ *
+ * <pre>
+ * Tracer tracer = JfrTracer.create("10 ms");
+ * if (tracer != null) {
+ *     Tracing.setTracer(tracer);
+ * }
+ * </pre>
+ */
+public class JfrTracer implements Tracer {
+
+    public static final String DEFAULT_THRESHOLD = "20 ms";
+
+    private static final String EVENT_PREFIX = "com.github.cjnosal.secret_storage.";
+    private static final String CATEGORY = "SecretStorage";
+
+    // event fields
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_SPEC = 1;
+    private static final int FIELD_SIZE = 2;
+    private static final int FIELD_ATTRIBUTES = 3;
+
+    private final Jfr jfr;
+    private final String threshold;
+    private final ConcurrentMap<String, Object> factories = new ConcurrentHashMap<>();
+
+    private JfrTracer(Jfr jfr, String threshold) {
+        this.jfr = jfr;
+        this.threshold = threshold;
+    }
+
+    public static @Nullable JfrTracer create() {
+        return create(DEFAULT_THRESHOLD);
+    }
+
+    // threshold uses JFR syntax, e.g. "0 ms" to record every span
+    public static @Nullable JfrTracer create(String threshold) {
+        try {
+            return new JfrTracer(new Jfr(), threshold);
+        } catch (Exception e) {
+            // jdk.jfr isn't available on this runtime
+            return null;
+        }
+    }
+
+    @Override
+    public Span beginSpan(String name) {
+        try {
+            Object factory = getFactory(name);
+            if (!(Boolean) jfr.isEnabled.invoke(jfr.getEventType.invoke(factory))) {
+                return Span.NONE;
+            }
+            Object event = jfr.newEvent.invoke(factory);
+            jfr.begin.invoke(event);
+            return new EventSpan(event);
+        } catch (Exception e) {
+            // skip the event rather than fail the traced operation
+            return Span.NONE;
+        }
+    }
+
+    private Object getFactory(String name) throws Exception {
+        Object factory = factories.get(name);
+        if (factory == null) {
+            Object created = jfr.createFactory(EVENT_PREFIX + name, name, threshold);
+            factory = factories.putIfAbsent(name, created);
+            if (factory == null) {
+                factory = created;
+            }
+        }
+        return factory;
+    }
+
+    private class EventSpan implements Span {
+        private final Object event;
+        private StringBuilder attributes;
+
+        EventSpan(Object event) {
+            this.event = event;
+        }
+
+        @Override
+        public Span setAttribute(String key, String value) {
+            if (Tracing.ATTRIBUTE_ID.equals(key)) {
+                set(FIELD_ID, value);
+            } else if (Tracing.ATTRIBUTE_SPEC.equals(key)) {
+                set(FIELD_SPEC, value);
+            } else {
+                appendAttribute(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Span setAttribute(String key, long value) {
+            if (Tracing.ATTRIBUTE_SIZE.equals(key)) {
+                set(FIELD_SIZE, value);
+            } else {
+                appendAttribute(key, String.valueOf(value));
+            }
+            return this;
+        }
+
+        @Override
+        public void end() {
+            try {
+                if (attributes != null) {
+                    jfr.set.invoke(event, FIELD_ATTRIBUTES, attributes.toString());
+                }
+                jfr.end.invoke(event);
+                if ((Boolean) jfr.shouldCommit.invoke(event)) {
+                    jfr.commit.invoke(event);
+                }
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // drop the event rather than fail the traced operation
+            }
+        }
+
+        private void appendAttribute(String key, String value) {
+            if (attributes == null) {
+                attributes = new StringBuilder();
+            } else {
+                attributes.append(", ");
+            }
+            attributes.append(key).append('=').append(value);
+        }
+
+        private void set(int field, Object value) {
+            try {
+                jfr.set.invoke(event, field, value);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // drop the attribute rather than fail the traced operation
+            }
+        }
+    }
+
+    // reflective handles to jdk.jfr, resolved once
+    private static class Jfr {
+        final Method createFactory;
+        final Method getEventType;
+        final Method isEnabled;
+        final Method newEvent;
+        final Method begin;
+        final Method end;
+        final Method shouldCommit;
+        final Method commit;
+        final Method set;
+
+        private final Constructor<?> annotationElement;
+        private final Constructor<?> valueDescriptor;
+        private final Class<? extends Annotation> name;
+        private final Class<? extends Annotation> label;
+        private final Class<? extends Annotation> category;
+        private final Class<? extends Annotation> threshold;
+        private final Class<? extends Annotation> stackTrace;
+
+        Jfr() throws Exception {
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            createFactory = eventFactoryClass.getMethod("create", List.class, List.class);
+            getEventType = eventFactoryClass.getMethod("getEventType");
+            isEnabled = eventTypeClass.getMethod("isEnabled");
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+
+            annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+            name = annotation("jdk.jfr.Name");
+            label = annotation("jdk.jfr.Label");
+            category = annotation("jdk.jfr.Category");
+            threshold = annotation("jdk.jfr.Threshold");
+            stackTrace = annotation("jdk.jfr.StackTrace");
+        }
+
+        Object createFactory(String eventName, String eventLabel, String eventThreshold) throws Exception {
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotationElement.newInstance(name, eventName));
+            annotations.add(annotationElement.newInstance(label, eventLabel));
+            annotations.add(annotationElement.newInstance(category, new String[] {CATEGORY}));
+            annotations.add(annotationElement.newInstance(threshold, eventThreshold));
+            annotations.add(annotationElement.newInstance(stackTrace, false));
+            // same order as the FIELD_ constants
+            List<Object> fields = Arrays.asList(
+                    valueDescriptor.newInstance(String.class, "id"),
+                    valueDescriptor.newInstance(String.class, "spec"),
+                    valueDescriptor.newInstance(long.class, "size"),
+                    valueDescriptor.newInstance(String.class, "attributes"));
+            return createFactory.invoke(null, annotations, fields);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String className) throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(className);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.tracing;
+
+/**
+ * A timed operation started by {@link Tracer#beginSpan(String)}. end() must be called exactly once, usually in a finally block.
+ */
+public interface Span {
+
+    Span NONE = new Span() {
+        @Override
+        public Span setAttribute(String key, String value) {
+            return this;
+        }
+
+        @Override
+        public Span setAttribute(String key, long value) {
+            return this;
+        }
+
+        @Override
+        public void end() {
+        }
+    };
+
+    Span setAttribute(String key, String value);
+    Span setAttribute(String key, long value);
+    void end();
+}
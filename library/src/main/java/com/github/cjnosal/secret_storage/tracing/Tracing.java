@@ -0,0 +1,81 @@
+/*
+ *    Copyright 2016 Conor Nosal
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.cjnosal.secret_storage.tracing;
+
+import android.support.annotation.Nullable;
+
+import com.github.cjnosal.secret_storage.storage.encoding.Encoding;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Global hook for spans around unlock, key preparation, crypto and storage. Until a Tracer is installed
+ * every span is {@link Span#NONE}, so tracing costs a volatile read per operation.
+ *
+ * <pre>
+ * Span span = Tracing.begin("secret_storage.load", id);
+ * try {
+ *     ...
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ */
+public final class Tracing {
+
+    public static final String ATTRIBUTE_ID = "id";
+    public static final String ATTRIBUTE_SPEC = "spec";
+    public static final String ATTRIBUTE_SIZE = "size";
+
+    private static volatile @Nullable Tracer tracer;
+
+    private Tracing() {}
+
+    public static void setTracer(@Nullable Tracer newTracer) {
+        tracer = newTracer;
+    }
+
+    public static boolean isEnabled() {
+        return tracer != null;
+    }
+
+    public static Span begin(String name) {
+        Tracer current = tracer;
+        return current == null ? Span.NONE : current.beginSpan(name);
+    }
+
+    // entry ids are hashed so that trace backends don't receive them in the clear
+    public static Span begin(String name, String id) {
+        Tracer current = tracer;
+        if (current == null) {
+            return Span.NONE;
+        }
+        return current.beginSpan(name).setAttribute(ATTRIBUTE_ID, hashId(id));
+    }
+
+    // first 8 bytes of SHA-256, hex encoded
+    static String hashId(String id) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(Encoding.utf8Decode(id));
+            return Encoding.hexEncode(Arrays.copyOf(digest, 8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}